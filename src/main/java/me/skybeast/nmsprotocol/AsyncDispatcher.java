@@ -0,0 +1,61 @@
+package me.skybeast.nmsprotocol;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * The registered {@link AsyncPacketListener}s.
+ *
+ * @author SkyBeast
+ */
+final class AsyncDispatcher
+{
+    private static final Logger                    LOG       = Logger.getLogger("NMSProtocol");
+    private static final List<AsyncPacketListener> LISTENERS = new CopyOnWriteArrayList<>();
+    private static final ExecutorService           EXECUTOR  = Platform.asyncExecutor();
+    private static final LongAdder                 DROPPED   = new LongAdder();
+
+    static void register(AsyncPacketListener listener)   {LISTENERS.add(listener);}
+
+    static void unregister(AsyncPacketListener listener) {LISTENERS.remove(listener);}
+
+    static long getDropped()                             {return DROPPED.sum();}
+
+    /*
+     * Called on the event loop, once the packet events are done.
+     */
+    static void dispatch(PacketEvent event)
+    {
+        if (LISTENERS.isEmpty())
+            return;
+
+        PacketEvent snapshot = event.snapshot();
+        for (AsyncPacketListener listener : LISTENERS)
+        {
+            try
+            {
+                EXECUTOR.execute(() -> {
+                    try
+                    {
+                        listener.onPacket(snapshot);
+                    }
+                    catch (RuntimeException e)
+                    {
+                        LOG.log(Level.SEVERE, "Could not pass " + snapshot + " to async listener " + listener, e);
+                    }
+                });
+            }
+            catch (RejectedExecutionException e) //Listeners behind: never block the event loop
+            {
+                DROPPED.increment();
+            }
+        }
+    }
+
+    private AsyncDispatcher() {}
+}
@@ -0,0 +1,53 @@
+package me.skybeast.nmsprotocol;
+
+import javax.annotation.Nonnull;
+
+/**
+ * A packet listener called off the event loop, after the packet events.
+ * <p>
+ * It receives a {@link PacketEvent#snapshot()}: it cannot cancel the packet, and must not mutate it. Listeners run on
+ * a bounded thread pool, or on virtual threads on Java 21, with the same bound on the calls in flight. When it is
+ * reached, the calls are dropped: see {@link #getDropped()}.
+ *
+ * @author SkyBeast
+ */
+@FunctionalInterface
+public interface AsyncPacketListener
+{
+    /**
+     * Handle a packet.
+     *
+     * @param event a detached copy of the event
+     */
+    void onPacket(PacketEvent event);
+
+    /**
+     * Register a listener.
+     *
+     * @param listener the listener
+     */
+    static void register(@Nonnull AsyncPacketListener listener)
+    {
+        AsyncDispatcher.register(listener);
+    }
+
+    /**
+     * Unregister a listener.
+     *
+     * @param listener the listener
+     */
+    static void unregister(@Nonnull AsyncPacketListener listener)
+    {
+        AsyncDispatcher.unregister(listener);
+    }
+
+    /**
+     * Get the number of listener calls dropped because the pool was saturated, since startup.
+     *
+     * @return the count
+     */
+    static long getDropped()
+    {
+        return AsyncDispatcher.getDropped();
+    }
+}
@@ -0,0 +1,11 @@
+package me.skybeast.nmsprotocol;
+
+/**
+ * Marker for Bukkit listeners of the {@link PacketEvent}s that can be skipped while the event loop of a connection is
+ * lagging. Listeners are critical unless they implement it.
+ *
+ * @author SkyBeast
+ * @see LoadShedding
+ * @see HandlePacket#bestEffort()
+ */
+public interface BestEffort {}
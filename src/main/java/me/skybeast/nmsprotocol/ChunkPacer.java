@@ -0,0 +1,309 @@
+package me.skybeast.nmsprotocol;
+
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelPromise;
+import io.netty.util.collection.LongObjectHashMap;
+import io.netty.util.concurrent.ScheduledFuture;
+import me.skybeast.nmsprotocol.NMSReflection.FieldAccessor;
+
+import java.nio.channels.ClosedChannelException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+/**
+ * Spread the chunk bursts of joins, teleports and world changes over several ticks.
+ * <p>
+ * When enabled by {@link Protocol#setChunkPacing(boolean)}, full chunk packets are held in a queue per connection,
+ * and released every tick (50 ms) within a chunk count and a byte budget, closest first to the last position of the
+ * player. Packets depending on a held chunk keep their order: a partial chunk or a block change flushes the chunk
+ * first, an unload drops it, and a join or respawn drops every held chunk of the previous world.
+ * <p>
+ * Held chunks are only seen by the {@link ChunkTracker} once released. One pacer per connection, used on its event loop
+ * only.
+ *
+ * @author SkyBeast
+ */
+public final class ChunkPacer
+{
+    private static final long TICK_NANOS = TimeUnit.MILLISECONDS.toNanos(50);
+
+    private static final Class<?> MAP_CHUNK    = NMSReflection.getNMSClass("PacketPlayOutMapChunk");
+    private static final Class<?> UNLOAD_CHUNK = NMSReflection.getNMSClass("PacketPlayOutUnloadChunk");
+    private static final Class<?> LOGIN        = NMSReflection.getNMSClass("PacketPlayOutLogin");
+    private static final Class<?> RESPAWN      = NMSReflection.getNMSClass("PacketPlayOutRespawn");
+    private static final Class<?> POSITION     = NMSReflection.getNMSClass("PacketPlayOutPosition");
+    private static final Class<?> FLYING       = NMSReflection.getNMSClass("PacketPlayInFlying");
+    private static final Class<?> BLOCK_CHANGE = NMSReflection.getNMSClass("PacketPlayOutBlockChange");
+    private static final Class<?> MULTI_CHANGE = NMSReflection.getNMSClass("PacketPlayOutMultiBlockChange");
+    private static final Class<?> TILE_ENTITY  = NMSReflection.getNMSClass("PacketPlayOutTileEntityData");
+    private static final Class<?> BLOCK_ACTION = NMSReflection.getNMSClass("PacketPlayOutBlockAction");
+
+    private static final FieldAccessor<Integer> MAP_X       =
+            NMSReflection.getCountFieldOfTypeAccessor(MAP_CHUNK, int.class, 0);
+    private static final FieldAccessor<Integer> MAP_Z       =
+            NMSReflection.getCountFieldOfTypeAccessor(MAP_CHUNK, int.class, 1);
+    private static final FieldAccessor<Boolean> MAP_FULL    =
+            NMSReflection.getFirstFieldOfTypeAccessor(MAP_CHUNK, boolean.class);
+    private static final FieldAccessor<byte[]>  MAP_DATA    =
+            NMSReflection.getFirstFieldOfTypeAccessor(MAP_CHUNK, byte[].class);
+    private static final FieldAccessor<Integer> UNLOAD_X    =
+            NMSReflection.getCountFieldOfTypeAccessor(UNLOAD_CHUNK, int.class, 0);
+    private static final FieldAccessor<Integer> UNLOAD_Z    =
+            NMSReflection.getCountFieldOfTypeAccessor(UNLOAD_CHUNK, int.class, 1);
+    private static final FieldAccessor<Double>  POSITION_X  =
+            NMSReflection.getCountFieldOfTypeAccessor(POSITION, double.class, 0);
+    private static final FieldAccessor<Double>  POSITION_Z  =
+            NMSReflection.getCountFieldOfTypeAccessor(POSITION, double.class, 2);
+    private static final FieldAccessor<Set<?>>  RELATIVE    =
+            NMSReflection.getFirstFieldOfTypeAccessor(POSITION, Set.class);
+    private static final FieldAccessor<Double>  FLYING_X    =
+            NMSReflection.getCountFieldOfTypeAccessor(FLYING, double.class, 0);
+    private static final FieldAccessor<Double>  FLYING_Z    =
+            NMSReflection.getCountFieldOfTypeAccessor(FLYING, double.class, 2);
+    private static final FieldAccessor<Boolean> FLYING_POS  =
+            NMSReflection.getCountFieldOfTypeAccessor(FLYING, boolean.class, 1);
+    private static final FieldAccessor<Object>  BLOCK_POS   =
+            NMSReflection.getFirstFieldOfTypeAccessor(BLOCK_CHANGE, "{nms}.BlockPosition");
+    private static final FieldAccessor<Object>  TILE_POS    =
+            NMSReflection.getFirstFieldOfTypeAccessor(TILE_ENTITY, "{nms}.BlockPosition");
+    private static final FieldAccessor<Object>  ACTION_POS  =
+            NMSReflection.getFirstFieldOfTypeAccessor(BLOCK_ACTION, "{nms}.BlockPosition");
+    private static final FieldAccessor<Object>  MULTI_CHUNK =
+            NMSReflection.getFirstFieldOfTypeAccessor(MULTI_CHANGE, "{nms}.ChunkCoordIntPair");
+    private static final FieldAccessor<Integer> BLOCK_X     =
+            NMSReflection.getCountFieldOfTypeAccessor("{nms}.BaseBlockPosition", int.class, 0);
+    private static final FieldAccessor<Integer> BLOCK_Z     =
+            NMSReflection.getCountFieldOfTypeAccessor("{nms}.BaseBlockPosition", int.class, 2);
+    private static final FieldAccessor<Integer> CHUNK_X     =
+            NMSReflection.getCountFieldOfTypeAccessor("{nms}.ChunkCoordIntPair", int.class, 0);
+    private static final FieldAccessor<Integer> CHUNK_Z     =
+            NMSReflection.getCountFieldOfTypeAccessor("{nms}.ChunkCoordIntPair", int.class, 1);
+
+    private static volatile int     chunksPerTick = 10;
+    private static volatile int     bytesPerTick  = 512 * 1024;
+
+    private final Consumer<Object>        released;
+    private final LongObjectHashMap<Held> held = new LongObjectHashMap<>();
+    private       long                    sequence;
+    private       boolean                 located;
+    private       double                  x;
+    private       double                  z;
+    private       ScheduledFuture<?>      tick;
+
+    ChunkPacer(Consumer<Object> released) {this.released = released;}
+
+    /**
+     * Set how many chunks each connection receives per tick. At least one chunk is released every tick, whatever its
+     * size. 10 chunks and 512 KiB by default.
+     *
+     * @param chunks the maximum chunk count per tick, or 0 for no limit
+     * @param bytes  the maximum uncompressed chunk data per tick, or 0 for no limit
+     */
+    public static void setBudget(int chunks, int bytes)
+    {
+        if (chunks < 0 || bytes < 0) throw new IllegalArgumentException("chunks < 0 or bytes < 0");
+        chunksPerTick = chunks;
+        bytesPerTick = bytes;
+    }
+
+    /*
+     * Called with every packet read.
+     */
+    void observeIncoming(Object packet)
+    {
+        if (FLYING.isInstance(packet) && FLYING_POS.get(packet))
+            locate(FLYING_X.get(packet), FLYING_Z.get(packet));
+    }
+
+    /*
+     * Called with every packet about to be written. Return true if the packet is held.
+     */
+    boolean hold(ChannelHandlerContext ctx, Object packet, ChannelPromise promise)
+    {
+        Class<?> type = packet.getClass();
+        if (type == POSITION)
+            teleport(packet);
+        else if (type == LOGIN || type == RESPAWN)
+        {
+            for (Held chunk : held.values()) //Chunks of the previous world
+                chunk.promise.trySuccess();
+            held.clear();
+            located = false;
+        }
+
+        if (!Protocol.isChunkPacing())
+        {
+            if (!held.isEmpty())
+                flushAll(ctx);
+            return false;
+        }
+
+        if (type == MAP_CHUNK && MAP_FULL.get(packet))
+        {
+            long key      = ChunkTracker.key(MAP_X.get(packet), MAP_Z.get(packet));
+            Held replaced = held.put(key, new Held(key, packet, promise, sequence++));
+            if (replaced != null)
+                replaced.promise.trySuccess(); //Superseded, never sent
+            if (tick == null)
+                tick = ctx.executor().schedule(() -> release(ctx), TICK_NANOS, TimeUnit.NANOSECONDS);
+            return true;
+        }
+
+        if (held.isEmpty())
+            return false;
+
+        if (type == UNLOAD_CHUNK)
+        {
+            Held dropped = held.remove(ChunkTracker.key(UNLOAD_X.get(packet), UNLOAD_Z.get(packet)));
+            if (dropped != null)
+                dropped.promise.trySuccess(); //The unload still goes: the client may hold an older version
+        }
+        else if (type == MAP_CHUNK) //Partial: updates the full one
+            flush(ctx, ChunkTracker.key(MAP_X.get(packet), MAP_Z.get(packet)));
+        else if (type == BLOCK_CHANGE)
+            flushBlock(ctx, BLOCK_POS.get(packet));
+        else if (type == TILE_ENTITY)
+            flushBlock(ctx, TILE_POS.get(packet));
+        else if (type == BLOCK_ACTION)
+            flushBlock(ctx, ACTION_POS.get(packet));
+        else if (type == MULTI_CHANGE)
+        {
+            Object chunk = MULTI_CHUNK.get(packet);
+            flush(ctx, ChunkTracker.key(CHUNK_X.get(chunk), CHUNK_Z.get(chunk)));
+        }
+        return false;
+    }
+
+    /*
+     * Called when the handler is removed: nothing is lost.
+     */
+    void flushAll(ChannelHandlerContext ctx)
+    {
+        List<Held> all = new ArrayList<>(held.values());
+        all.sort((a, b) -> Long.compare(a.sequence, b.sequence));
+        held.clear();
+        for (Held chunk : all)
+            write(ctx, chunk);
+        ctx.flush();
+    }
+
+    /*
+     * Called when the channel is closed.
+     */
+    void discard()
+    {
+        for (Held chunk : held.values())
+            chunk.promise.tryFailure(new ClosedChannelException());
+        held.clear();
+    }
+
+    private void release(ChannelHandlerContext ctx)
+    {
+        tick = null;
+        if (held.isEmpty() || ctx.isRemoved())
+            return;
+        if (!Protocol.isChunkPacing())
+        {
+            flushAll(ctx);
+            return;
+        }
+
+        List<Held> queue = new ArrayList<>(held.values());
+        queue.sort(located ? (a, b) -> Double.compare(distance(a.key), distance(b.key))
+                           : (a, b) -> Long.compare(a.sequence, b.sequence)); //Position unknown: oldest first
+
+        int maxChunks = chunksPerTick;
+        int maxBytes  = bytesPerTick;
+        int chunks    = 0;
+        int bytes     = 0;
+        for (Held chunk : queue)
+        {
+            int size = MAP_DATA.get(chunk.packet).length;
+            if (chunks > 0 && ((maxChunks > 0 && chunks >= maxChunks) || (maxBytes > 0 && bytes + size > maxBytes)))
+                break;
+
+            held.remove(chunk.key);
+            write(ctx, chunk);
+            chunks++;
+            bytes += size;
+        }
+        ctx.flush();
+
+        if (!held.isEmpty())
+            tick = ctx.executor().schedule(() -> release(ctx), TICK_NANOS, TimeUnit.NANOSECONDS);
+    }
+
+    private void flushBlock(ChannelHandlerContext ctx, Object position)
+    {
+        flush(ctx, ChunkTracker.key(BLOCK_X.get(position) >> 4, BLOCK_Z.get(position) >> 4));
+    }
+
+    /*
+     * Write a held chunk before a packet depending on it. The packet flushes it.
+     */
+    private void flush(ChannelHandlerContext ctx, long key)
+    {
+        Held chunk = held.remove(key);
+        if (chunk != null)
+            write(ctx, chunk);
+    }
+
+    private void write(ChannelHandlerContext ctx, Held chunk)
+    {
+        released.accept(chunk.packet);
+        ctx.write(chunk.packet, chunk.promise);
+    }
+
+    private void teleport(Object packet)
+    {
+        Set<?> relative  = RELATIVE.get(packet);
+        double teleportX = POSITION_X.get(packet);
+        double teleportZ = POSITION_Z.get(packet);
+        if (relative.isEmpty())
+            locate(teleportX, teleportZ);
+        else if (located)
+            locate(isRelative(relative, "X") ? x + teleportX : teleportX,
+                   isRelative(relative, "Z") ? z + teleportZ : teleportZ);
+    }
+
+    private static boolean isRelative(Set<?> relative, String axis)
+    {
+        for (Object flag : relative)
+            if (((Enum<?>) flag).name().equals(axis))
+                return true;
+        return false;
+    }
+
+    private void locate(double x, double z)
+    {
+        this.x = x;
+        this.z = z;
+        located = true;
+    }
+
+    private double distance(long key)
+    {
+        double dx = (ChunkTracker.keyX(key) << 4) + 8 - x;
+        double dz = (ChunkTracker.keyZ(key) << 4) + 8 - z;
+        return dx * dx + dz * dz;
+    }
+
+    private static final class Held
+    {
+        private final long           key;
+        private final Object         packet;
+        private final ChannelPromise promise;
+        private final long           sequence;
+
+        private Held(long key, Object packet, ChannelPromise promise, long sequence)
+        {
+            this.key = key;
+            this.packet = packet;
+            this.promise = promise;
+            this.sequence = sequence;
+        }
+    }
+}
@@ -0,0 +1,192 @@
+package me.skybeast.nmsprotocol;
+
+import me.skybeast.nmsprotocol.NMSReflection.FieldAccessor;
+import org.bukkit.entity.Player;
+
+import javax.annotation.Nonnull;
+import java.net.SocketAddress;
+import java.util.Arrays;
+
+/**
+ * The chunks a client actually has loaded, built from the chunk, unload, join and respawn packets sent to it.
+ * <p>
+ * Only full chunk packets load a chunk: partial ones update chunks the client already has. Chunk coordinates are
+ * stored in a primitive long hash set, keyed by {@link #key(int, int)}.
+ * <p>
+ * It is updated on the event loop of the connection once a packet passed the listeners, so it must be queried from
+ * there (in a packet listener for instance). Packets sent through a {@link PacketCache} are not tracked.
+ * <p>
+ * Enabled by {@link Protocol#setChunkTracking(boolean)}.
+ *
+ * @author SkyBeast
+ */
+public final class ChunkTracker
+{
+    private static final Class<?>               MAP_CHUNK    = NMSReflection.getNMSClass("PacketPlayOutMapChunk");
+    private static final Class<?>               UNLOAD_CHUNK = NMSReflection.getNMSClass("PacketPlayOutUnloadChunk");
+    private static final Class<?>               LOGIN        = NMSReflection.getNMSClass("PacketPlayOutLogin");
+    private static final Class<?>               RESPAWN      = NMSReflection.getNMSClass("PacketPlayOutRespawn");
+    private static final FieldAccessor<Integer> MAP_X        =
+            NMSReflection.getCountFieldOfTypeAccessor(MAP_CHUNK, int.class, 0);
+    private static final FieldAccessor<Integer> MAP_Z        =
+            NMSReflection.getCountFieldOfTypeAccessor(MAP_CHUNK, int.class, 1);
+    private static final FieldAccessor<Boolean> MAP_FULL     =
+            NMSReflection.getFirstFieldOfTypeAccessor(MAP_CHUNK, boolean.class);
+    private static final FieldAccessor<Integer> UNLOAD_X     =
+            NMSReflection.getCountFieldOfTypeAccessor(UNLOAD_CHUNK, int.class, 0);
+    private static final FieldAccessor<Integer> UNLOAD_Z     =
+            NMSReflection.getCountFieldOfTypeAccessor(UNLOAD_CHUNK, int.class, 1);
+
+    private final LongHashSet loaded = new LongHashSet();
+
+    ChunkTracker() {}
+
+    /**
+     * Get the chunk tracker of a connection.
+     *
+     * @param player the player
+     * @return the tracker, or <code>null</code> if the player is not connected or chunk tracking is disabled
+     */
+    public static ChunkTracker of(@Nonnull Player player)
+    {
+        return of(player.getAddress());
+    }
+
+    /**
+     * Get the chunk tracker of a connection.
+     *
+     * @param address the address of the connection
+     * @return the tracker, or <code>null</code> if the address is not connected or chunk tracking is disabled
+     */
+    public static ChunkTracker of(@Nonnull SocketAddress address)
+    {
+        return Protocol.chunkTrackerOf(address);
+    }
+
+    public static long key(int x, int z) {return (long) x << 32 | z & 0xFFFFFFFFL;}
+
+    public static int keyX(long key)     {return (int) (key >> 32);}
+
+    public static int keyZ(long key)     {return (int) key;}
+
+    /**
+     * Check whether the client has a chunk loaded.
+     *
+     * @param x the chunk x
+     * @param z the chunk z
+     * @return <code>true</code> if loaded
+     */
+    public boolean isLoaded(int x, int z) {return loaded.contains(key(x, z));}
+
+    public boolean isLoaded(long key)     {return loaded.contains(key);}
+
+    /**
+     * Check whether the client has the chunk of a block loaded.
+     *
+     * @param blockX the block x
+     * @param blockZ the block z
+     * @return <code>true</code> if loaded
+     */
+    public boolean isBlockLoaded(int blockX, int blockZ)
+    {
+        return loaded.contains(key(blockX >> 4, blockZ >> 4));
+    }
+
+    /**
+     * Check whether the client has every chunk of an area loaded.
+     *
+     * @param minX the minimum chunk x, inclusive
+     * @param minZ the minimum chunk z, inclusive
+     * @param maxX the maximum chunk x, inclusive
+     * @param maxZ the maximum chunk z, inclusive
+     * @return <code>true</code> if every chunk is loaded
+     */
+    public boolean areLoaded(int minX, int minZ, int maxX, int maxZ)
+    {
+        for (int x = minX; x <= maxX; x++)
+            for (int z = minZ; z <= maxZ; z++)
+                if (!loaded.contains(key(x, z)))
+                    return false;
+        return true;
+    }
+
+    /**
+     * Count the chunks of an area the client has loaded.
+     *
+     * @param minX the minimum chunk x, inclusive
+     * @param minZ the minimum chunk z, inclusive
+     * @param maxX the maximum chunk x, inclusive
+     * @param maxZ the maximum chunk z, inclusive
+     * @return the number of loaded chunks
+     */
+    public int countLoaded(int minX, int minZ, int maxX, int maxZ)
+    {
+        int count = 0;
+        for (int x = minX; x <= maxX; x++)
+            for (int z = minZ; z <= maxZ; z++)
+                if (loaded.contains(key(x, z)))
+                    count++;
+        return count;
+    }
+
+    /**
+     * Keep the loaded chunks of an array of keys.
+     *
+     * @param keys the chunk keys
+     * @return a new array with the keys of the loaded chunks, in order
+     */
+    public long[] filterLoaded(@Nonnull long[] keys)
+    {
+        long[] out   = new long[keys.length];
+        int    count = 0;
+        for (long key : keys)
+            if (loaded.contains(key))
+                out[count++] = key;
+        return count == keys.length ? out : Arrays.copyOf(out, count);
+    }
+
+    /**
+     * Get every loaded chunk.
+     *
+     * @return a new array of chunk keys, in no particular order
+     */
+    public long[] getLoaded()             {return loaded.toArray();}
+
+    /**
+     * Call an action on every loaded chunk.
+     *
+     * @param action the action
+     */
+    public void forEachLoaded(@Nonnull ChunkConsumer action)
+    {
+        loaded.forEach(key -> action.accept(keyX(key), keyZ(key)));
+    }
+
+    public int size()                     {return loaded.size();}
+
+    /*
+     * Called on the event loop with every packet actually sent.
+     */
+    void observe(Object packet)
+    {
+        Class<?> type = packet.getClass();
+        if (type == MAP_CHUNK)
+        {
+            if (MAP_FULL.get(packet))
+                loaded.add(key(MAP_X.get(packet), MAP_Z.get(packet)));
+        }
+        else if (type == UNLOAD_CHUNK)
+            loaded.remove(key(UNLOAD_X.get(packet), UNLOAD_Z.get(packet)));
+        else if (type == LOGIN || type == RESPAWN) //The client drops its world
+            loaded.clear();
+    }
+
+    /**
+     * An action on chunk coordinates.
+     */
+    @FunctionalInterface
+    public interface ChunkConsumer
+    {
+        void accept(int x, int z);
+    }
+}
@@ -0,0 +1,223 @@
+package me.skybeast.nmsprotocol;
+
+import io.netty.util.collection.IntObjectHashMap;
+import me.skybeast.nmsprotocol.NMSReflection.FieldAccessor;
+import org.bukkit.entity.Player;
+
+import javax.annotation.Nonnull;
+import java.lang.reflect.Field;
+import java.net.SocketAddress;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.UUID;
+
+/**
+ * The entities a client currently knows about, built from the spawn, destroy, join and respawn packets sent to it.
+ * <p>
+ * It lets packet listeners resolve the entity ids of packets such as <code>PacketPlayInUseEntity</code> or
+ * <code>PacketPlayOutEntityVelocity</code> in constant time, without touching Bukkit. It is updated on the event loop
+ * of the connection once a packet passed the listeners, so it must be queried from there: in a packet listener, the
+ * outgoing packet being dispatched is not indexed yet. Packets sent through a {@link PacketCache} are not indexed.
+ * <p>
+ * Enabled by {@link Protocol#setEntityTracking(boolean)}.
+ *
+ * @author SkyBeast
+ */
+public final class EntityIndex
+{
+    private static final Map<Class<?>, Observer> OBSERVERS = new HashMap<>();
+    private static final ClassValue<Observer>    LOOKUP    = new ClassValue<Observer>()
+    {
+        @Override
+        protected Observer computeValue(Class<?> type) {return OBSERVERS.getOrDefault(type, Observer.NONE);}
+    };
+
+    static
+    {
+        spawn("PacketPlayOutSpawnEntity", Kind.OBJECT, 6);
+        spawn("PacketPlayOutSpawnEntityLiving", Kind.LIVING, 1);
+        spawn("PacketPlayOutNamedEntitySpawn", Kind.PLAYER, -1);
+        spawn("PacketPlayOutSpawnEntityPainting", Kind.PAINTING, -1);
+        spawn("PacketPlayOutSpawnEntityExperienceOrb", Kind.EXPERIENCE_ORB, -1);
+        spawn("PacketPlayOutSpawnEntityWeather", Kind.WEATHER, 1);
+
+        FieldAccessor<int[]> destroyed = NMSReflection.getFirstFieldOfTypeAccessor(
+                "{nms}.PacketPlayOutEntityDestroy", int[].class);
+        observe("PacketPlayOutEntityDestroy", (index, packet) -> {
+            for (int id : destroyed.get(packet))
+                index.entities.remove(id);
+        });
+
+        FieldAccessor<Integer> self = NMSReflection.getFirstFieldOfTypeAccessor("{nms}.PacketPlayOutLogin",
+                                                                                int.class);
+        observe("PacketPlayOutLogin", (index, packet) -> {
+            index.entities.clear();
+            index.selfId = self.get(packet);
+        });
+        observe("PacketPlayOutRespawn", (index, packet) -> index.entities.clear()); //The client drops its world
+    }
+
+    private final IntObjectHashMap<KnownEntity> entities = new IntObjectHashMap<>();
+    private       int                           selfId   = -1;
+
+    EntityIndex() {}
+
+    /**
+     * Get the entity index of a connection.
+     *
+     * @param player the player
+     * @return the index, or <code>null</code> if the player is not connected or entity tracking is disabled
+     */
+    public static EntityIndex of(@Nonnull Player player)
+    {
+        return of(player.getAddress());
+    }
+
+    /**
+     * Get the entity index of a connection.
+     *
+     * @param address the address of the connection
+     * @return the index, or <code>null</code> if the address is not connected or entity tracking is disabled
+     */
+    public static EntityIndex of(@Nonnull SocketAddress address)
+    {
+        return Protocol.entityIndexOf(address);
+    }
+
+    /**
+     * Get a known entity.
+     *
+     * @param id the entity id
+     * @return the entity, or <code>null</code> if the client does not know it
+     */
+    public KnownEntity get(int id)  {return entities.get(id);}
+
+    public boolean contains(int id) {return entities.containsKey(id);}
+
+    public int size()               {return entities.size();}
+
+    /**
+     * Get the entity id of the player itself, which is never spawned to its own client.
+     *
+     * @return the id, or -1 if the join packet was not seen (injected after the login)
+     */
+    public int getSelfId()          {return selfId;}
+
+    public boolean isSelf(int id)   {return id == selfId && id != -1;}
+
+    /*
+     * Called on the event loop with every packet actually sent.
+     */
+    void observe(Object packet)
+    {
+        LOOKUP.get(packet.getClass()).observe(this, packet);
+    }
+
+    /*
+     * typeCount is the place of the type id among the int fields, or -1 if the packet has none.
+     */
+    private static void spawn(String packet, Kind kind, int typeCount)
+    {
+        Class<?>               clazz = NMSReflection.getNMSClass(packet);
+        FieldAccessor<Integer> id    = NMSReflection.getFirstFieldOfTypeAccessor(clazz, int.class);
+        FieldAccessor<UUID>    uuid  = hasField(clazz, UUID.class)
+                                       ? NMSReflection.getFirstFieldOfTypeAccessor(clazz, UUID.class) : null;
+        FieldAccessor<Integer> type  = typeCount < 0 ? null
+                                                     : NMSReflection.getCountFieldOfTypeAccessor(clazz, int.class,
+                                                                                                 typeCount);
+        observe(packet, (index, msg) -> {
+            int entityId = id.get(msg);
+            index.entities.put(entityId, new KnownEntity(entityId,
+                                                         uuid == null ? null : uuid.get(msg),
+                                                         kind,
+                                                         type == null ? -1 : type.get(msg)));
+        });
+    }
+
+    private static boolean hasField(Class<?> clazz, Class<?> type)
+    {
+        for (Field field : clazz.getDeclaredFields())
+            if (field.getType() == type)
+                return true;
+        return false;
+    }
+
+    private static void observe(String packet, Observer observer)
+    {
+        OBSERVERS.put(NMSReflection.getNMSClass(packet), observer);
+    }
+
+    @FunctionalInterface
+    private interface Observer
+    {
+        Observer NONE = (index, packet) -> {};
+
+        void observe(EntityIndex index, Object packet);
+    }
+
+    /**
+     * What spawned an entity.
+     */
+    public enum Kind
+    {
+        /**
+         * A non-living entity: item, projectile, vehicle, falling block... {@link KnownEntity#getType()} is the
+         * object type id.
+         */
+        OBJECT,
+        /**
+         * A mob. {@link KnownEntity#getType()} is the entity type id.
+         */
+        LIVING,
+        PLAYER,
+        PAINTING,
+        EXPERIENCE_ORB,
+        /**
+         * A lightning bolt. {@link KnownEntity#getType()} is the weather entity type.
+         */
+        WEATHER
+    }
+
+    /**
+     * An entity known by a client, as described by its spawn packet.
+     */
+    public static final class KnownEntity
+    {
+        private final int  id;
+        private final UUID uuid;
+        private final Kind kind;
+        private final int  type;
+
+        private KnownEntity(int id, UUID uuid, Kind kind, int type)
+        {
+            this.id = id;
+            this.uuid = uuid;
+            this.kind = kind;
+            this.type = type;
+        }
+
+        public int getId()    {return id;}
+
+        /**
+         * Get the unique id of the entity.
+         *
+         * @return the unique id, or <code>null</code> for experience orbs and lightning bolts
+         */
+        public UUID getUuid() {return uuid;}
+
+        public Kind getKind() {return kind;}
+
+        /**
+         * Get the network type id of the entity.
+         *
+         * @return the type id, or -1 for players, paintings and experience orbs
+         */
+        public int getType()  {return type;}
+
+        @Override
+        public String toString()
+        {
+            return "KnownEntity{id=" + id + ", uuid=" + uuid + ", kind=" + kind + ", type=" + type + '}';
+        }
+    }
+}
@@ -0,0 +1,254 @@
+package me.skybeast.nmsprotocol;
+
+import io.netty.channel.*;
+import io.netty.util.concurrent.EventExecutor;
+
+import javax.annotation.Nonnull;
+import java.util.*;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+/**
+ * Watch the event loops of the server connections, to diagnose starved loops and connections unevenly spread across
+ * them.
+ * <p>
+ * The loops are those of the child group of the server channels stolen by {@link Protocol#inject()}. Each one runs a
+ * {@link LoadShedding} probe. Periodically, the monitor records for every loop the highest scheduling delay of its
+ * probe, its backlog estimated from that delay, its pending task count and its number of connections. The count is
+ * taken by the probe on the loop: asked from another thread, the loop blocks until it runs the request. Starved loops
+ * and imbalanced groups are logged, at most once a minute.
+ *
+ * @author SkyBeast
+ */
+public final class EventLoopMonitor
+{
+    private static final Logger LOG              = Logger.getLogger("NMSProtocol");
+    private static final long   STARVED_DELAY    = TimeUnit.MILLISECONDS.toNanos(50);
+    private static final int    STARVED_TASKS    = 1000;
+    private static final double IMBALANCE_RATIO  = 2.0; //Busiest loop over the mean
+    private static final int    IMBALANCE_MIN    = 16;  //Channels on the busiest loop before it is reported
+    private static final long   WARNING_INTERVAL = TimeUnit.MINUTES.toNanos(1);
+
+    private static volatile EventLoopGroup           group;
+    private static volatile List<LoopStats>          stats = Collections.emptyList();
+    private static          ScheduledExecutorService timer;
+    private static          long                     lastWarning;
+
+    private EventLoopMonitor() {}
+
+    /*
+     * Called by Protocol.inject: the child group is held by the ServerBootstrapAcceptor of the server channels.
+     */
+    static void discover(List<ChannelFuture> channelFutures)
+    {
+        for (ChannelFuture future : channelFutures)
+        {
+            Channel server = future.channel();
+            for (Map.Entry<String, ChannelHandler> entry : server.pipeline())
+            {
+                ChannelHandler handler = entry.getValue();
+                if (handler.getClass().getName().endsWith("ServerBootstrapAcceptor"))
+                {
+                    group = NMSReflection.<EventLoopGroup>getFirstFieldOfTypeAccessor(handler.getClass(),
+                                                                                      EventLoopGroup.class)
+                                         .get(handler);
+                    return;
+                }
+            }
+
+            group = server.eventLoop().parent(); //Same group for the server and its children
+        }
+    }
+
+    /**
+     * Start sampling. Called on injection, with a period of 1 second.
+     *
+     * @param period the period
+     * @param unit   the unit of the period
+     */
+    public static synchronized void start(long period, @Nonnull TimeUnit unit)
+    {
+        stop();
+        timer = Executors.newSingleThreadScheduledExecutor(task -> {
+            Thread thread = new Thread(task, "NMSProtocol-Monitor");
+            thread.setDaemon(true);
+            return thread;
+        });
+        timer.scheduleAtFixedRate(EventLoopMonitor::sample, period, period, unit);
+    }
+
+    /**
+     * Stop sampling. Called on cleanup.
+     */
+    public static synchronized void stop()
+    {
+        if (timer != null)
+        {
+            timer.shutdownNow();
+            timer = null;
+        }
+    }
+
+    /**
+     * Get the last sample.
+     *
+     * @return the statistics of each loop, empty before the first sample
+     */
+    public static List<LoopStats> getStats() {return stats;}
+
+    /**
+     * Get the loops starved in the last sample: their probe was late by more than 50 ms during the period, or was
+     * overdue by more than 50 ms when sampled, or they had more than 1000 pending tasks.
+     *
+     * @return the starved loops
+     */
+    public static List<LoopStats> getStarved()
+    {
+        List<LoopStats> starved = new ArrayList<>();
+        for (LoopStats loop : stats)
+            if (loop.isStarved())
+                starved.add(loop);
+        return starved;
+    }
+
+    /**
+     * Get the imbalance of the last sample.
+     *
+     * @return the number of connections of the busiest loop over the mean, 1 when perfectly balanced or without any
+     * connection
+     */
+    public static double getImbalance()
+    {
+        List<LoopStats> snapshot = stats;
+        int             max      = 0;
+        int             total    = 0;
+        for (LoopStats loop : snapshot)
+        {
+            max = Math.max(max, loop.channels);
+            total += loop.channels;
+        }
+        return total == 0 ? 1.0 : max / ((double) total / snapshot.size());
+    }
+
+    private static void sample()
+    {
+        EventLoopGroup loops = group;
+        if (loops == null)
+            return;
+
+        Map<EventLoop, Integer> channels = new HashMap<>();
+        for (Channel channel : Protocol.channels())
+            channels.merge(channel.eventLoop(), 1, Integer::sum);
+
+        List<LoopStats> sampled = new ArrayList<>();
+        int             index   = 0;
+        for (EventExecutor executor : loops)
+        {
+            if (!(executor instanceof EventLoop))
+                continue;
+
+            EventLoop          loop  = (EventLoop) executor;
+            LoadShedding.Probe probe = LoadShedding.probe(loop);
+            sampled.add(new LoopStats(index++, loop, probe.takePeak(), probe.getBacklog(), probe.getPendingTasks(),
+                                      channels.getOrDefault(loop, 0)));
+        }
+
+        stats = Collections.unmodifiableList(sampled);
+        report();
+    }
+
+    private static void report()
+    {
+        long now = System.nanoTime();
+        if (lastWarning != 0 && now - lastWarning < WARNING_INTERVAL)
+            return;
+
+        List<LoopStats> starved   = getStarved();
+        double          imbalance = getImbalance();
+        int             busiest   = 0;
+        for (LoopStats loop : stats)
+            busiest = Math.max(busiest, loop.channels);
+        boolean imbalanced = imbalance > IMBALANCE_RATIO && busiest >= IMBALANCE_MIN;
+
+        if (!starved.isEmpty())
+            LOG.warning("Starved event loops: " + starved);
+        if (imbalanced)
+            LOG.warning(String.format("Connections are unevenly spread across event loops"
+                                      + " (busiest %.1fx the mean): %s", imbalance, stats));
+        if (!starved.isEmpty() || imbalanced)
+            lastWarning = now;
+    }
+
+    /**
+     * The statistics of an event loop over a sampling period.
+     */
+    public static final class LoopStats
+    {
+        private final int       index;
+        private final EventLoop loop;
+        private final long      peakDelay;
+        private final long      backlog;
+        private final int       pendingTasks;
+        private final int       channels;
+
+        private LoopStats(int index, EventLoop loop, long peakDelay, long backlog, int pendingTasks, int channels)
+        {
+            this.index = index;
+            this.loop = loop;
+            this.peakDelay = peakDelay;
+            this.backlog = backlog;
+            this.pendingTasks = pendingTasks;
+            this.channels = channels;
+        }
+
+        public int getIndex()      {return index;}
+
+        public EventLoop getLoop() {return loop;}
+
+        /**
+         * Get the highest scheduling delay of the loop.
+         *
+         * @param unit the unit of the result
+         * @return the delay
+         */
+        public long getPeakDelay(@Nonnull TimeUnit unit)
+        {
+            return unit.convert(peakDelay, TimeUnit.NANOSECONDS);
+        }
+
+        /**
+         * Get how late the loop was at the time of the sample, that is how long the tasks queued then wait before
+         * running.
+         *
+         * @param unit the unit of the result
+         * @return the backlog
+         */
+        public long getBacklog(@Nonnull TimeUnit unit)
+        {
+            return unit.convert(backlog, TimeUnit.NANOSECONDS);
+        }
+
+        /**
+         * Get the pending task count at the last run of the probe.
+         *
+         * @return the count, or -1 if the loop does not tell
+         */
+        public int getPendingTasks() {return pendingTasks;}
+
+        public int getChannels()     {return channels;}
+
+        public boolean isStarved()
+        {
+            return peakDelay > STARVED_DELAY || backlog > STARVED_DELAY || pendingTasks > STARVED_TASKS;
+        }
+
+        @Override
+        public String toString()
+        {
+            return "#" + index + " (" + channels + " channels, " + pendingTasks + " tasks, " + peakDelay / 1_000_000
+                   + " ms late, " + backlog / 1_000_000 + " ms behind)";
+        }
+    }
+}
@@ -0,0 +1,146 @@
+package me.skybeast.nmsprotocol;
+
+import io.netty.bootstrap.ServerBootstrap;
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.*;
+import io.netty.channel.epoll.EpollEventLoopGroup;
+import io.netty.channel.epoll.EpollServerDomainSocketChannel;
+import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.channel.socket.nio.NioServerSocketChannel;
+import io.netty.channel.unix.DomainSocketAddress;
+import io.netty.handler.codec.LengthFieldBasedFrameDecoder;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Reference consumer of the {@link PacketExporter} stream, for testing. It does not need a server to run:
+ * <pre>
+ * java -cp nmsprotocol.jar:netty.jar me.skybeast.nmsprotocol.ExportConsumer 25570
+ * java -cp nmsprotocol.jar:netty.jar me.skybeast.nmsprotocol.ExportConsumer unix:/tmp/nmsprotocol.sock
+ * </pre>
+ * Every second, it prints the number of frames and bytes received per packet class.
+ *
+ * @author SkyBeast
+ */
+public final class ExportConsumer
+{
+    private static final int MAX_FRAME = 1 << 24;
+
+    private final Map<Integer, String>   classes = new ConcurrentHashMap<>();
+    private final Map<String, LongAdder> counts  = new ConcurrentHashMap<>();
+    private final LongAdder              bytes   = new LongAdder();
+
+    public static void main(String[] args) throws InterruptedException
+    {
+        if (args.length != 1)
+        {
+            System.err.println("Usage: ExportConsumer <port>|unix:<path>");
+            return;
+        }
+
+        new ExportConsumer().run(args[0]);
+    }
+
+    private void run(String bind) throws InterruptedException
+    {
+        boolean        unix    = bind.startsWith("unix:");
+        EventLoopGroup group   = unix ? new EpollEventLoopGroup(1) : new NioEventLoopGroup(1);
+        SocketAddress  address = unix
+                                 ? new DomainSocketAddress(bind.substring(5))
+                                 : new InetSocketAddress(InetAddress.getLoopbackAddress(), Integer.parseInt(bind));
+        try
+        {
+            Channel server = new ServerBootstrap()
+                    .group(group)
+                    .channel(unix ? EpollServerDomainSocketChannel.class : NioServerSocketChannel.class)
+                    .childHandler(new ChannelInitializer<Channel>()
+                    {
+                        @Override
+                        protected void initChannel(Channel ch)
+                        {
+                            ch.pipeline().addLast(new LengthFieldBasedFrameDecoder(MAX_FRAME, 0, 4, 0, 4),
+                                                  new FrameHandler());
+                        }
+                    })
+                    .bind(address).sync().channel();
+
+            System.out.println("Listening on " + address + '.');
+            group.scheduleAtFixedRate(this::report, 1, 1, TimeUnit.SECONDS);
+            server.closeFuture().sync();
+        }
+        finally
+        {
+            group.shutdownGracefully();
+        }
+    }
+
+    private void report()
+    {
+        Map<String, Long> snapshot = new TreeMap<>();
+        counts.forEach((name, count) -> {
+            long value = count.sumThenReset();
+            if (value != 0)
+                snapshot.put(name, value);
+        });
+
+        System.out.println("--- " + bytes.sumThenReset() + " bytes");
+        snapshot.forEach((name, count) -> System.out.println(name + ": " + count));
+    }
+
+    private void onFrame(ByteBuf frame)
+    {
+        bytes.add(frame.readableBytes() + 4);
+        byte type = frame.readByte();
+
+        if (type == PacketExporter.FRAME_CLASS)
+        {
+            int    id   = frame.readUnsignedShort();
+            byte[] name = new byte[frame.readUnsignedShort()];
+            frame.readBytes(name);
+            classes.put(id, new String(name, StandardCharsets.UTF_8));
+        }
+        else if (type == PacketExporter.FRAME_PACKET)
+        {
+            byte flags = frame.readByte();
+            frame.readLong(); //Time
+            String name = classes.getOrDefault(frame.readUnsignedShort(), "?");
+
+            frame.skipBytes(frame.readUnsignedByte() + 2); //Address and port
+
+            String direction = (flags & PacketExporter.FLAG_INCOMING) != 0 ? " IN" : " OUT";
+            counts.computeIfAbsent(name + direction, key -> new LongAdder()).increment();
+        }
+    }
+
+    private final class FrameHandler extends ChannelInboundHandlerAdapter
+    {
+        @Override
+        public void channelRead(ChannelHandlerContext ctx, Object msg) throws Exception
+        {
+            ByteBuf frame = (ByteBuf) msg;
+            try
+            {
+                onFrame(frame);
+            }
+            finally
+            {
+                frame.release();
+            }
+        }
+
+        @Override
+        public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause)
+        {
+            cause.printStackTrace();
+            ctx.close();
+        }
+    }
+}
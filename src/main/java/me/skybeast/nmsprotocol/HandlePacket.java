@@ -0,0 +1,57 @@
+package me.skybeast.nmsprotocol;
+
+import org.bukkit.event.EventPriority;
+
+import java.lang.annotation.*;
+
+/**
+ * Mark a method as a packet handler, registered by {@link PacketListeners#register(Object)}.
+ * <p>
+ * The method receives the typed packet, and optionally the event:
+ * <pre>
+ * &#64;HandlePacket
+ * public void onChat(PacketPlayInChat packet, PacketEvent event) {...}
+ *
+ * &#64;HandlePacket({PacketPlayOutEntityVelocity.class, PacketPlayOutEntityTeleport.class})
+ * public void onMove(Packet&lt;?&gt; packet) {...}
+ * </pre>
+ * Without packet classes, the type of the first parameter is handled.
+ *
+ * @author SkyBeast
+ */
+@Documented
+@Retention(RetentionPolicy.RUNTIME)
+@Target(ElementType.METHOD)
+public @interface HandlePacket
+{
+    /**
+     * The packet classes handled, subclasses included.
+     *
+     * @return the packet classes
+     */
+    Class<?>[] value() default {};
+
+    /**
+     * The packet classes handled, by name (see {@link NMSReflection#getClass(String)}).
+     *
+     * @return the names of the packet classes
+     */
+    String[] names() default {};
+
+    EventPriority priority() default EventPriority.NORMAL;
+
+    /**
+     * Whether the handler is skipped when the event is already cancelled.
+     *
+     * @return <code>true</code> to skip cancelled events
+     */
+    boolean ignoreCancelled() default false;
+
+    /**
+     * Whether the handler can be skipped while the event loop is lagging.
+     *
+     * @return <code>true</code> if best-effort
+     * @see LoadShedding
+     */
+    boolean bestEffort() default false;
+}
@@ -0,0 +1,609 @@
+package me.skybeast.nmsprotocol;
+
+import io.netty.bootstrap.Bootstrap;
+import io.netty.bootstrap.ServerBootstrap;
+import io.netty.channel.*;
+import io.netty.channel.local.LocalAddress;
+import io.netty.channel.local.LocalChannel;
+import io.netty.channel.local.LocalServerChannel;
+import io.netty.util.ReferenceCountUtil;
+import org.bukkit.Bukkit;
+import org.bukkit.event.EventPriority;
+import org.bukkit.event.HandlerList;
+import org.bukkit.event.Listener;
+import org.bukkit.plugin.Plugin;
+
+import javax.annotation.Nonnull;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+/**
+ * Measure how the packet handlers scale with the number of connections, event loop threads and listeners, without
+ * real clients.
+ * <p>
+ * Simulated connections are local channels on a dedicated event loop group. Their pipelines hold stand-ins for the
+ * vanilla <code>decoder</code>, <code>encoder</code> and <code>packet_handler</code>, and the real packet handler of
+ * the library between them, registered like any other connection under the unique address of its local client. Only
+ * what reaches outside the server is muted for them: the exporter and the writability event. Each event loop then
+ * pushes a mix of common packets in both directions through its channels, as fast as it can.
+ * <p>
+ * For every combination of connection count and listener count, it reports the throughput, the median and 99th
+ * percentile dispatch latency (the time spent in the library and the listeners by one packet), and the allocation
+ * rate of the event loop threads. Packets are created once and reused, so the allocations are the library's.
+ * <p>
+ * Run it from an async thread: it blocks for the whole run, and reports from that thread. It is available in game as
+ * <code>/nmsprotocol loadtest</code>.
+ *
+ * @author SkyBeast
+ */
+public final class LoadGenerator
+{
+    private static final int BURST = 16; //Packets per channel per event loop task
+
+    private final Plugin plugin;
+    private final int[]  connections;
+    private final int[]  listeners;
+    private final int    threads;
+    private final long   warmupNanos;
+    private final long   durationNanos;
+    private final Mix    mix;
+
+    private LoadGenerator(Builder builder)
+    {
+        plugin = builder.plugin;
+        connections = builder.connections;
+        listeners = builder.listeners;
+        threads = builder.threads;
+        warmupNanos = builder.warmupNanos;
+        durationNanos = builder.durationNanos;
+        mix = new Mix(builder.packets);
+    }
+
+    /**
+     * Start building a load generator.
+     *
+     * @param plugin the plugin registering the test listeners
+     * @return a new Builder
+     */
+    public static Builder builder(@Nonnull Plugin plugin)
+    {
+        return new Builder(plugin);
+    }
+
+    /**
+     * Run every combination, and report one line per combination.
+     *
+     * @param out where to report
+     * @throws InterruptedException if interrupted while waiting for the event loops
+     */
+    public void run(@Nonnull Consumer<String> out) throws InterruptedException
+    {
+        out.accept(String.format("%7s %9s %7s | %12s | %9s | %9s | %10s",
+                                 "conns", "listeners", "threads", "packets/s", "p50 (ns)", "p99 (ns)", "alloc MB/s"));
+
+        for (int count : connections)
+        {
+            EventLoopGroup group = new DefaultEventLoopGroup(threads);
+            try
+            {
+                Connections simulated = connect(group, count);
+                try
+                {
+                    for (int listenerCount : listeners)
+                        out.accept(measure(simulated, count, listenerCount).toString());
+                }
+                finally
+                {
+                    simulated.close();
+                }
+            }
+            finally
+            {
+                group.shutdownGracefully(0, 1, TimeUnit.SECONDS).sync();
+            }
+        }
+    }
+
+    private Connections connect(EventLoopGroup group, int count) throws InterruptedException
+    {
+        Connections    simulated = new Connections();
+        LocalAddress   address   = new LocalAddress("NMSProtocol-LoadTest-" + UUID.randomUUID());
+        CountDownLatch ready     = new CountDownLatch(count);
+
+        simulated.server = new ServerBootstrap()
+                .group(group)
+                .channel(LocalServerChannel.class)
+                .childHandler(new ChannelInitializer<Channel>()
+                {
+                    @Override
+                    protected void initChannel(Channel ch)
+                    {
+                        Histogram histogram = simulated.histograms.computeIfAbsent(ch.eventLoop(),
+                                                                                   loop -> new Histogram());
+                        ch.pipeline().addLast("decoder", new StandInDecoder(histogram))
+                          .addLast("encoder", StandInEncoder.INSTANCE)
+                          .addLast("packet_handler", new StandInPacketHandler(histogram));
+                        Protocol.attach(ch, true);
+                        simulated.channels.add(ch);
+                        ready.countDown();
+                    }
+                })
+                .bind(address).sync().channel();
+
+        Bootstrap client = new Bootstrap()
+                .group(group)
+                .channel(LocalChannel.class)
+                .handler(new ChannelInboundHandlerAdapter());
+        for (int i = 0; i < count; i++)
+            simulated.clients.add(client.connect(address).sync().channel());
+
+        ready.await();
+        return simulated;
+    }
+
+    private Result measure(Connections simulated, int count, int listenerCount) throws InterruptedException
+    {
+        Listener owner = new Listener() {};
+        for (int i = 0; i < listenerCount; i++)
+            Bukkit.getPluginManager().registerEvent(PacketEvent.class, owner, EventPriority.NORMAL,
+                                                    (listener, event) -> ((PacketEvent) event).getPacket().getClass(),
+                                                    plugin);
+
+        try
+        {
+            Map<EventLoop, List<Channel>> byLoop = new HashMap<>();
+            for (Channel channel : simulated.channels)
+                byLoop.computeIfAbsent(channel.eventLoop(), loop -> new ArrayList<>()).add(channel);
+
+            CountDownLatch done    = new CountDownLatch(byLoop.size());
+            long           now     = System.nanoTime();
+            List<Driver>   drivers = new ArrayList<>();
+            for (Map.Entry<EventLoop, List<Channel>> entry : byLoop.entrySet())
+            {
+                Driver driver = new Driver(entry.getKey(), entry.getValue(),
+                                           simulated.histograms.get(entry.getKey()),
+                                           now + warmupNanos, now + warmupNanos + durationNanos, done);
+                drivers.add(driver);
+                entry.getKey().execute(driver);
+            }
+            done.await();
+
+            Histogram total     = new Histogram();
+            long      allocated = 0;
+            for (Driver driver : drivers)
+            {
+                total.add(driver.histogram);
+                allocated += driver.allocated;
+            }
+
+            double seconds = durationNanos / 1e9;
+            return new Result(count, listenerCount, byLoop.size(), total.count / seconds, total.percentile(0.50),
+                              total.percentile(0.99), allocated < 0 ? -1 : allocated / seconds / (1 << 20));
+        }
+        finally
+        {
+            HandlerList.unregisterAll(owner);
+        }
+    }
+
+    /*
+     * The channels of one run.
+     */
+    private static final class Connections
+    {
+        private final Queue<Channel>            channels   = new ConcurrentLinkedQueue<>();
+        private final List<Channel>             clients    = new ArrayList<>();
+        private final Map<EventLoop, Histogram> histograms = new ConcurrentHashMap<>();
+        private       Channel                   server;
+
+        private void close() throws InterruptedException
+        {
+            for (Channel client : clients)
+                client.close();
+            for (Channel channel : channels)
+                channel.close().sync(); //Unregisters its packet handler
+            server.close().sync();
+        }
+    }
+
+    /*
+     * Pushes packets through the channels of one event loop, then reschedules itself until the deadline.
+     */
+    private final class Driver implements Runnable
+    {
+        private final EventLoop      loop;
+        private final List<Channel>  channels;
+        private final Histogram      histogram;
+        private final long           warmupEnd;
+        private final long           end;
+        private final CountDownLatch done;
+        private       boolean        measuring;
+        private       long           allocatedStart;
+        private       long           allocated;
+
+        private Driver(EventLoop loop, List<Channel> channels, Histogram histogram, long warmupEnd, long end,
+                       CountDownLatch done)
+        {
+            this.loop = loop;
+            this.channels = channels;
+            this.histogram = histogram;
+            this.warmupEnd = warmupEnd;
+            this.end = end;
+            this.done = done;
+        }
+
+        @Override
+        public void run()
+        {
+            long now = System.nanoTime();
+            if (!measuring && now >= warmupEnd)
+            {
+                measuring = true;
+                histogram.reset();
+                allocatedStart = allocatedBytes();
+            }
+            if (now >= end)
+            {
+                allocated = allocatedStart < 0 ? -1 : allocatedBytes() - allocatedStart;
+                done.countDown();
+                return;
+            }
+
+            ThreadLocalRandom random = ThreadLocalRandom.current();
+            for (Channel channel : channels)
+            {
+                for (int i = 0; i < BURST; i++)
+                {
+                    int    index  = mix.next(random);
+                    Object packet = mix.packets[index];
+                    if (mix.incoming[index])
+                        channel.pipeline().fireChannelRead(packet);
+                    else
+                        Protocol.sendPacket(channel.remoteAddress(), packet);
+                }
+            }
+            loop.execute(this);
+        }
+    }
+
+    /*
+     * Bytes allocated by the current thread, or -1 if the JVM cannot tell.
+     */
+    private static long allocatedBytes()
+    {
+        ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        if (!(bean instanceof com.sun.management.ThreadMXBean))
+            return -1;
+
+        return ((com.sun.management.ThreadMXBean) bean).getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+
+    /*
+     * Times inbound packets, from the head of the pipeline to the stand-in packet_handler.
+     */
+    private static final class StandInDecoder extends ChannelInboundHandlerAdapter
+    {
+        private final Histogram histogram;
+
+        private StandInDecoder(Histogram histogram) {this.histogram = histogram;}
+
+        @Override
+        public void channelRead(ChannelHandlerContext ctx, Object msg)
+        {
+            long start = System.nanoTime();
+            ctx.fireChannelRead(msg);
+            histogram.record(System.nanoTime() - start);
+        }
+    }
+
+    /*
+     * Swallows outbound packets.
+     */
+    @ChannelHandler.Sharable
+    private static final class StandInEncoder extends ChannelOutboundHandlerAdapter
+    {
+        private static final StandInEncoder INSTANCE = new StandInEncoder();
+
+        @Override
+        public void write(ChannelHandlerContext ctx, Object msg, ChannelPromise promise)
+        {
+            ReferenceCountUtil.release(msg);
+            promise.trySuccess();
+        }
+
+        @Override
+        public void flush(ChannelHandlerContext ctx) {}
+    }
+
+    /*
+     * Swallows inbound packets, and times outbound packets down to the stand-in encoder.
+     */
+    private static final class StandInPacketHandler extends ChannelDuplexHandler
+    {
+        private final Histogram histogram;
+
+        private StandInPacketHandler(Histogram histogram) {this.histogram = histogram;}
+
+        @Override
+        public void channelRead(ChannelHandlerContext ctx, Object msg)
+        {
+            ReferenceCountUtil.release(msg);
+        }
+
+        @Override
+        public void write(ChannelHandlerContext ctx, Object msg, ChannelPromise promise)
+        {
+            long start = System.nanoTime();
+            ctx.write(msg, promise);
+            histogram.record(System.nanoTime() - start);
+        }
+    }
+
+    /*
+     * Log-linear histogram of nanoseconds, 32 sub-buckets per power of 2 (about 3% precision). Written by a single
+     * event loop.
+     */
+    private static final class Histogram
+    {
+        private static final int SUB_BITS = 5;
+        private static final int SUB      = 1 << SUB_BITS;
+
+        private final long[] counts = new long[(64 - SUB_BITS) * SUB];
+        private       long   count;
+
+        private void record(long value)
+        {
+            counts[index(Math.max(value, 0))]++;
+            count++;
+        }
+
+        private void reset()
+        {
+            Arrays.fill(counts, 0);
+            count = 0;
+        }
+
+        private void add(Histogram other)
+        {
+            for (int i = 0; i < counts.length; i++)
+                counts[i] += other.counts[i];
+            count += other.count;
+        }
+
+        private long percentile(double percentile)
+        {
+            long rank = (long) Math.ceil(count * percentile);
+            long seen = 0;
+            for (int i = 0; i < counts.length; i++)
+            {
+                seen += counts[i];
+                if (seen >= rank && seen != 0)
+                    return value(i);
+            }
+            return 0;
+        }
+
+        private static int index(long value)
+        {
+            if (value < SUB << 1)
+                return (int) value;
+
+            int exponent = 63 - Long.numberOfLeadingZeros(value);
+            return (exponent - SUB_BITS + 1) * SUB + (int) (value >>> exponent - SUB_BITS & SUB - 1);
+        }
+
+        private static long value(int index)
+        {
+            if (index < SUB << 1)
+                return index;
+
+            int exponent = index / SUB + SUB_BITS - 1;
+            return (long) (SUB + index % SUB) << exponent - SUB_BITS;
+        }
+    }
+
+    /*
+     * Weighted packet mix.
+     */
+    private static final class Mix
+    {
+        private final Object[]  packets;
+        private final boolean[] incoming;
+        private final int[]     cumulative;
+
+        private Mix(List<Entry> entries)
+        {
+            packets = new Object[entries.size()];
+            incoming = new boolean[entries.size()];
+            cumulative = new int[entries.size()];
+            int total = 0;
+            for (int i = 0; i < entries.size(); i++)
+            {
+                Entry entry = entries.get(i);
+                packets[i] = entry.packet;
+                incoming[i] = entry.incoming;
+                total += entry.weight;
+                cumulative[i] = total;
+            }
+        }
+
+        private int next(Random random)
+        {
+            int pick = random.nextInt(cumulative[cumulative.length - 1]);
+            int i    = Arrays.binarySearch(cumulative, pick + 1);
+            return i >= 0 ? i : -i - 1;
+        }
+    }
+
+    private static final class Entry
+    {
+        private final Object  packet;
+        private final boolean incoming;
+        private final int     weight;
+
+        private Entry(Object packet, boolean incoming, int weight)
+        {
+            this.packet = packet;
+            this.incoming = incoming;
+            this.weight = weight;
+        }
+    }
+
+    private static final class Result
+    {
+        private final int    connections;
+        private final int    listeners;
+        private final int    threads;
+        private final double throughput;
+        private final long   p50;
+        private final long   p99;
+        private final double allocation;
+
+        private Result(int connections, int listeners, int threads, double throughput, long p50, long p99,
+                       double allocation)
+        {
+            this.connections = connections;
+            this.listeners = listeners;
+            this.threads = threads;
+            this.throughput = throughput;
+            this.p50 = p50;
+            this.p99 = p99;
+            this.allocation = allocation;
+        }
+
+        @Override
+        public String toString()
+        {
+            return String.format("%7d %9d %7d | %,12.0f | %,9d | %,9d | %,10.1f",
+                                 connections, listeners, threads, throughput, p50, p99, allocation);
+        }
+    }
+
+    /**
+     * A builder for {@link LoadGenerator}s.
+     */
+    public static final class Builder
+    {
+        private final Plugin      plugin;
+        private final List<Entry> packets       = new ArrayList<>();
+        private       int[]       connections   = {100, 1000, 5000};
+        private       int[]       listeners     = {0, 1, 10};
+        private       int         threads       = Runtime.getRuntime().availableProcessors();
+        private       long        warmupNanos   = TimeUnit.SECONDS.toNanos(1);
+        private       long        durationNanos = TimeUnit.SECONDS.toNanos(5);
+
+        private Builder(Plugin plugin) {this.plugin = plugin;}
+
+        /**
+         * Set the connection counts to test.
+         *
+         * @param connections the connection counts, 100, 1000 and 5000 by default
+         * @return this Builder
+         */
+        public Builder connections(@Nonnull int... connections)
+        {
+            for (int count : connections)
+                if (count <= 0) throw new IllegalArgumentException("connections <= 0");
+            this.connections = connections.clone();
+            return this;
+        }
+
+        /**
+         * Set the listener counts to test. Listeners are registered on {@link PacketEvent} and only read the packet.
+         *
+         * @param listeners the listener counts, 0, 1 and 10 by default
+         * @return this Builder
+         */
+        public Builder listeners(@Nonnull int... listeners)
+        {
+            for (int count : listeners)
+                if (count < 0) throw new IllegalArgumentException("listeners < 0");
+            this.listeners = listeners.clone();
+            return this;
+        }
+
+        /**
+         * Set the number of event loop threads.
+         *
+         * @param threads the thread count, the number of processors by default
+         * @return this Builder
+         */
+        public Builder threads(int threads)
+        {
+            if (threads <= 0) throw new IllegalArgumentException("threads <= 0");
+            this.threads = threads;
+            return this;
+        }
+
+        /**
+         * Set how long each combination runs, after a warmup.
+         *
+         * @param warmup   the warmup, 1 second by default
+         * @param duration the measured duration, 5 seconds by default
+         * @param unit     the unit of both durations
+         * @return this Builder
+         */
+        public Builder duration(long warmup, long duration, @Nonnull TimeUnit unit)
+        {
+            if (warmup < 0 || duration <= 0) throw new IllegalArgumentException("warmup < 0 or duration <= 0");
+            warmupNanos = unit.toNanos(warmup);
+            durationNanos = unit.toNanos(duration);
+            return this;
+        }
+
+        /**
+         * Add a packet to the mix. Its instance is reused for every send.
+         *
+         * @param packet   the packet
+         * @param incoming whether it is received or sent
+         * @param weight   its relative frequency
+         * @return this Builder
+         */
+        public Builder packet(@Nonnull Object packet, boolean incoming, int weight)
+        {
+            if (weight <= 0) throw new IllegalArgumentException("weight <= 0");
+            packets.add(new Entry(packet, incoming, weight));
+            return this;
+        }
+
+        /**
+         * Build the load generator. Without any packet, the mix is made of movement, entity and keep alive packets,
+         * mostly outgoing.
+         *
+         * @return a new LoadGenerator
+         */
+        public LoadGenerator build()
+        {
+            if (packets.isEmpty())
+                defaultMix();
+            return new LoadGenerator(this);
+        }
+
+        private void defaultMix()
+        {
+            packet("PacketPlayInFlying$PacketPlayInPositionLook", true, 20);
+            packet("PacketPlayInFlying$PacketPlayInPosition", true, 10);
+            packet("PacketPlayInArmAnimation", true, 2);
+            packet("PacketPlayInKeepAlive", true, 1);
+            packet("PacketPlayOutEntity$PacketPlayOutRelEntityMove", false, 30);
+            packet("PacketPlayOutEntity$PacketPlayOutRelEntityMoveLook", false, 20);
+            packet("PacketPlayOutEntityHeadRotation", false, 15);
+            packet("PacketPlayOutEntityVelocity", false, 8);
+            packet("PacketPlayOutEntityTeleport", false, 5);
+            packet("PacketPlayOutEntityMetadata", false, 5);
+            packet("PacketPlayOutKeepAlive", false, 1);
+        }
+
+        private void packet(String name, boolean incoming, int weight)
+        {
+            packet(PacketFactory.of("{nms}." + name).create(), incoming, weight);
+        }
+    }
+}
@@ -0,0 +1,206 @@
+package me.skybeast.nmsprotocol;
+
+import io.netty.channel.Channel;
+import io.netty.channel.EventLoop;
+import io.netty.util.concurrent.SingleThreadEventExecutor;
+import org.bukkit.entity.Player;
+
+import javax.annotation.Nonnull;
+import java.net.SocketAddress;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+
+/**
+ * Skip the best-effort work of the packet handlers while an event loop is lagging.
+ * <p>
+ * Every event loop serving connections runs a probe: a task scheduled every 10 ms, whose lateness is the queueing
+ * delay of the loop. When it goes above the enter threshold, the loop starts shedding, until it goes below the exit
+ * threshold. While shedding, the handlers of the loop skip the {@link BestEffort} listeners and the
+ * {@link HandlePacket#bestEffort()} methods and, if enabled, the {@link PacketExporter} and the
+ * {@link AsyncPacketListener}s.
+ *
+ * @author SkyBeast
+ */
+public final class LoadShedding
+{
+    private static final Logger                LOG          = Logger.getLogger("NMSProtocol");
+    private static final long                  PERIOD_NANOS = TimeUnit.MILLISECONDS.toNanos(10);
+    private static final Map<EventLoop, Probe> PROBES       = new ConcurrentHashMap<>();
+    private static volatile boolean enabled    = true;
+    private static volatile boolean shedObservers;
+    private static volatile long    enterNanos = TimeUnit.MILLISECONDS.toNanos(100);
+    private static volatile long    exitNanos  = TimeUnit.MILLISECONDS.toNanos(20);
+
+    private LoadShedding() {}
+
+    /**
+     * Enable or disable shedding. Enabled by default.
+     *
+     * @param enabled whether lagging event loops shed work
+     */
+    public static void setEnabled(boolean enabled) {LoadShedding.enabled = enabled;}
+
+    public static boolean isEnabled()              {return enabled;}
+
+    /**
+     * Set the queueing delays to start and stop shedding. 100 ms and 20 ms by default.
+     *
+     * @param enter the delay above which a loop starts shedding
+     * @param exit  the delay below which it stops
+     * @param unit  the unit of both delays
+     */
+    public static void setThresholds(long enter, long exit, @Nonnull TimeUnit unit)
+    {
+        if (exit < 0 || enter < exit) throw new IllegalArgumentException("exit < 0 or enter < exit");
+        enterNanos = unit.toNanos(enter);
+        exitNanos = unit.toNanos(exit);
+    }
+
+    /**
+     * Also skip the packet exporter and the async listeners while shedding. Disabled by default.
+     *
+     * @param shed whether to skip them
+     */
+    public static void setShedObservers(boolean shed) {shedObservers = shed;}
+
+    /**
+     * Check whether the event loop of a connection is shedding.
+     *
+     * @param player the player
+     * @return <code>true</code> if shedding
+     */
+    public static boolean isShedding(@Nonnull Player player)
+    {
+        return isShedding(player.getAddress());
+    }
+
+    /**
+     * Check whether the event loop of a connection is shedding.
+     *
+     * @param address the address of the connection
+     * @return <code>true</code> if shedding, <code>false</code> if not or if the address is not connected
+     */
+    public static boolean isShedding(@Nonnull SocketAddress address)
+    {
+        Channel channel = Protocol.channelOf(address);
+        return channel != null && probe(channel.eventLoop()).isShedding();
+    }
+
+    /**
+     * Get the last queueing delay measured on the event loop of a connection.
+     *
+     * @param address the address of the connection
+     * @param unit    the unit of the result
+     * @return the delay, or -1 if the address is not connected
+     */
+    public static long getDelay(@Nonnull SocketAddress address, @Nonnull TimeUnit unit)
+    {
+        Channel channel = Protocol.channelOf(address);
+        return channel == null ? -1 : unit.convert(probe(channel.eventLoop()).delay, TimeUnit.NANOSECONDS);
+    }
+
+    /*
+     * Get the probe of a loop, starting it on first use.
+     */
+    static Probe probe(EventLoop loop)
+    {
+        Probe probe = PROBES.get(loop);
+        if (probe != null)
+            return probe;
+
+        Probe created = new Probe(loop);
+        probe = PROBES.putIfAbsent(loop, created);
+        if (probe != null)
+            return probe;
+
+        created.schedule();
+        return created;
+    }
+
+    /*
+     * Called by Protocol.clean.
+     */
+    static void stopAll()
+    {
+        for (Probe probe : PROBES.values())
+            probe.stopped = true;
+        PROBES.clear();
+    }
+
+    static final class Probe implements Runnable
+    {
+        private final    EventLoop  loop;
+        private final    AtomicLong peak = new AtomicLong(); //Taken by EventLoopMonitor
+        private volatile long       expected; //Also read by EventLoopMonitor
+        private volatile long       delay;
+        private volatile int        pendingTasks = -1; //Counted on the loop, where it does not block
+        private volatile boolean    shedding;
+        private volatile boolean    stopped;
+
+        private Probe(EventLoop loop) {this.loop = loop;}
+
+        boolean isShedding()          {return shedding && enabled;}
+
+        boolean isSheddingObservers() {return shedObservers && isShedding();}
+
+        long getDelay()               {return delay;}
+
+        /*
+         * The pending task count of the loop at the last run, or -1 if the loop does not tell.
+         */
+        int getPendingTasks()         {return pendingTasks;}
+
+        /*
+         * The highest delay since the last call.
+         */
+        long takePeak()               {return peak.getAndSet(0);}
+
+        /*
+         * How late the loop is now, from any thread: the delay of the last run, or how overdue the next one is if the
+         * loop has not reached it yet.
+         */
+        long getBacklog()
+        {
+            long next = expected;
+            return next == 0 ? delay : Math.max(delay, System.nanoTime() - next); //0: not scheduled yet
+        }
+
+        private void schedule()
+        {
+            expected = System.nanoTime() + PERIOD_NANOS;
+            loop.schedule(this, PERIOD_NANOS, TimeUnit.NANOSECONDS);
+        }
+
+        @Override
+        public void run()
+        {
+            if (stopped || loop.isShuttingDown())
+            {
+                PROBES.remove(loop, this);
+                return;
+            }
+
+            long late = Math.max(System.nanoTime() - expected, 0);
+            delay = late;
+            if (loop instanceof SingleThreadEventExecutor)
+                pendingTasks = ((SingleThreadEventExecutor) loop).pendingTasks();
+            peak.accumulateAndGet(late, Math::max);
+            if (!shedding && late > enterNanos)
+            {
+                shedding = true;
+                LOG.warning("Event loop " + Thread.currentThread().getName() + " is " + late / 1_000_000
+                            + " ms late, skipping best-effort listeners.");
+            }
+            else if (shedding && late < exitNanos)
+            {
+                shedding = false;
+                LOG.info("Event loop " + Thread.currentThread().getName() + " recovered.");
+            }
+
+            schedule();
+        }
+    }
+}
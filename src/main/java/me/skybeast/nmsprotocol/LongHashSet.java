@@ -0,0 +1,167 @@
+package me.skybeast.nmsprotocol;
+
+import java.util.Arrays;
+import java.util.function.LongConsumer;
+
+/**
+ * A set of primitive longs: open addressing with linear probing, in a single <code>long[]</code>.
+ * <p>
+ * Not thread-safe.
+ *
+ * @author SkyBeast
+ */
+final class LongHashSet
+{
+    private static final long  EMPTY       = Long.MIN_VALUE; //Stored apart when it is an actual element
+    private static final float LOAD_FACTOR = 0.5F;
+
+    private long[]  table;
+    private int     mask;
+    private int     size;
+    private int     resizeAt;
+    private boolean hasEmpty;
+
+    LongHashSet()
+    {
+        allocate(16);
+    }
+
+    int size()         {return size + (hasEmpty ? 1 : 0);}
+
+    boolean isEmpty()  {return size() == 0;}
+
+    boolean contains(long value)
+    {
+        if (value == EMPTY)
+            return hasEmpty;
+
+        for (int i = index(value); ; i = i + 1 & mask)
+        {
+            long slot = table[i];
+            if (slot == value)
+                return true;
+            if (slot == EMPTY)
+                return false;
+        }
+    }
+
+    boolean add(long value)
+    {
+        if (value == EMPTY)
+        {
+            boolean added = !hasEmpty;
+            hasEmpty = true;
+            return added;
+        }
+
+        for (int i = index(value); ; i = i + 1 & mask)
+        {
+            long slot = table[i];
+            if (slot == value)
+                return false;
+            if (slot == EMPTY)
+            {
+                table[i] = value;
+                if (++size > resizeAt)
+                    rehash(table.length << 1);
+                return true;
+            }
+        }
+    }
+
+    boolean remove(long value)
+    {
+        if (value == EMPTY)
+        {
+            boolean removed = hasEmpty;
+            hasEmpty = false;
+            return removed;
+        }
+
+        for (int i = index(value); ; i = i + 1 & mask)
+        {
+            long slot = table[i];
+            if (slot == EMPTY)
+                return false;
+            if (slot == value)
+            {
+                shiftBack(i);
+                size--;
+                return true;
+            }
+        }
+    }
+
+    void clear()
+    {
+        Arrays.fill(table, EMPTY);
+        size = 0;
+        hasEmpty = false;
+    }
+
+    void forEach(LongConsumer action)
+    {
+        if (hasEmpty)
+            action.accept(EMPTY);
+        for (long slot : table)
+            if (slot != EMPTY)
+                action.accept(slot);
+    }
+
+    long[] toArray()
+    {
+        long[] array = new long[size()];
+        int    i     = 0;
+        if (hasEmpty)
+            array[i++] = EMPTY;
+        for (long slot : table)
+            if (slot != EMPTY)
+                array[i++] = slot;
+        return array;
+    }
+
+    /*
+     * Backward shift deletion: move up the following entries of the cluster that would not be found anymore.
+     */
+    private void shiftBack(int hole)
+    {
+        for (int i = hole + 1 & mask; ; i = i + 1 & mask)
+        {
+            long slot = table[i];
+            if (slot == EMPTY)
+                break;
+
+            int home = index(slot);
+            if ((i - home & mask) >= (i - hole & mask)) //Its home is at or before the hole
+            {
+                table[hole] = slot;
+                hole = i;
+            }
+        }
+        table[hole] = EMPTY;
+    }
+
+    private int index(long value)
+    {
+        long hash = value * 0x9E3779B97F4A7C15L; //Fibonacci hashing, chunk keys are clustered
+        return (int) (hash ^ hash >>> 32) & mask;
+    }
+
+    private void rehash(int capacity)
+    {
+        long[] old = table;
+        allocate(capacity);
+        size = 0;
+        for (long slot : old)
+            if (slot != EMPTY)
+                add(slot);
+    }
+
+    private void allocate(int capacity)
+    {
+        table = new long[capacity];
+        Arrays.fill(table, EMPTY);
+        mask = capacity - 1;
+        resizeAt = (int) (capacity * LOAD_FACTOR);
+    }
+}
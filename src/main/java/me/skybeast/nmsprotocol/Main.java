@@ -1,11 +1,77 @@
 package me.skybeast.nmsprotocol;
 
+import org.bukkit.Bukkit;
+import org.bukkit.command.Command;
+import org.bukkit.command.CommandSender;
 import org.bukkit.event.Listener;
 import org.bukkit.plugin.java.JavaPlugin;
 
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+
 public class Main extends JavaPlugin implements Listener
 {
     @Override public void onDisable() {Protocol.clean();}
 
-    @Override public void onEnable()  {Protocol.inject();}
+    @Override public void onEnable()  {Protocol.inject(this);}
+
+    /*
+     * /nmsprotocol loadtest [connections,...] [listeners,...] [threads] [seconds]
+     */
+    @Override
+    public boolean onCommand(CommandSender sender, Command command, String label, String[] args)
+    {
+        if (args.length == 0 || !args[0].equalsIgnoreCase("loadtest"))
+            return false;
+
+        LoadGenerator.Builder builder = LoadGenerator.builder(this);
+        try
+        {
+            if (args.length > 1) builder.connections(parseInts(args[1]));
+            if (args.length > 2) builder.listeners(parseInts(args[2]));
+            if (args.length > 3) builder.threads(Integer.parseInt(args[3]));
+            if (args.length > 4) builder.duration(1, Integer.parseInt(args[4]), TimeUnit.SECONDS);
+        }
+        catch (IllegalArgumentException e) //Includes NumberFormatException
+        {
+            sender.sendMessage("Invalid argument: " + e.getMessage());
+            return false;
+        }
+
+        LoadGenerator generator = builder.build();
+        Thread thread = new Thread(() -> {
+            try
+            {
+                generator.run(line -> report(sender, line));
+            }
+            catch (InterruptedException e)
+            {
+                Thread.currentThread().interrupt();
+            }
+            catch (RuntimeException e)
+            {
+                getLogger().log(Level.SEVERE, "Load test failed", e);
+            }
+        }, "NMSProtocol-LoadTest");
+        thread.setDaemon(true);
+        thread.start();
+
+        sender.sendMessage("Load test started.");
+        return true;
+    }
+
+    /*
+     * CommandSender is not thread safe: report from the main thread.
+     */
+    private void report(CommandSender sender, String message)
+    {
+        if (isEnabled())
+            Bukkit.getScheduler().runTask(this, () -> sender.sendMessage(message));
+    }
+
+    private static int[] parseInts(String list)
+    {
+        return Arrays.stream(list.split(",")).mapToInt(Integer::parseInt).toArray();
+    }
 }
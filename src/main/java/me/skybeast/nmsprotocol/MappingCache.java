@@ -0,0 +1,260 @@
+package me.skybeast.nmsprotocol;
+
+import me.skybeast.nmsprotocol.NMSReflection.FieldAccessor;
+import org.bukkit.Bukkit;
+
+import javax.annotation.Nonnull;
+import java.io.*;
+import java.lang.reflect.Field;
+import java.net.URISyntaxException;
+import java.security.CodeSource;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+
+/**
+ * A persistent cache of resolved field mappings.
+ * <p>
+ * Scans such as {@link NMSReflection#getCountFieldOfTypeAccessor(Class, Class, int)} walk every field of a class
+ * hierarchy. Their results are stored under a key, and written to a compact file of the plugin data folder. The file
+ * is keyed by {@link NMSReflection#VERSION} and a hash of the server jar: on the next boot, the mappings are loaded
+ * and only checked (the field exists, and has the expected name or type) instead of rediscovered. The fields of the
+ * {@link NMSAccessor}s resolved by reflection, on versions without a generated implementation, go through it.
+ *
+ * @author SkyBeast
+ */
+public final class MappingCache
+{
+    private static final Logger LOG       = Logger.getLogger("NMSProtocol");
+    private static final String FILE_NAME = "mappings.bin";
+    private static final int    MAGIC     = 0x4E4D5350; //NMSP
+    private static final int    FORMAT    = 1;
+
+    private static final Map<String, String>           STORED   = new ConcurrentHashMap<>(); //key -> class#field
+    private static final Map<String, FieldAccessor<?>> RESOLVED = new ConcurrentHashMap<>();
+    private static volatile File    file;
+    private static volatile boolean dirty;
+
+    private MappingCache() {}
+
+    /**
+     * Load the mappings stored in a folder. Stale mappings (other version or server jar) are discarded.
+     *
+     * @param folder the data folder
+     */
+    public static void load(@Nonnull File folder)
+    {
+        file = new File(folder, FILE_NAME);
+        STORED.clear();
+        RESOLVED.clear();
+        dirty = false;
+
+        if (!file.isFile())
+            return;
+
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file))))
+        {
+            if (in.readInt() != MAGIC || in.readInt() != FORMAT
+                || !in.readUTF().equals(NMSReflection.VERSION) || in.readLong() != serverJarHash())
+            {
+                LOG.info("Mapping cache is stale, it will be rebuilt.");
+                dirty = true;
+                return;
+            }
+
+            for (int i = in.readInt(); i > 0; i--)
+                STORED.put(in.readUTF(), in.readUTF());
+        }
+        catch (IOException e)
+        {
+            LOG.log(Level.WARNING, "Cannot read the mapping cache, it will be rebuilt.", e);
+            STORED.clear();
+            dirty = true;
+        }
+    }
+
+    /**
+     * Write the mappings if any was discovered since they were loaded.
+     */
+    public static void save()
+    {
+        File target = file;
+        if (target == null || !dirty)
+            return;
+
+        target.getParentFile().mkdirs();
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(target))))
+        {
+            out.writeInt(MAGIC);
+            out.writeInt(FORMAT);
+            out.writeUTF(NMSReflection.VERSION);
+            out.writeLong(serverJarHash());
+
+            Map<String, String> snapshot = new HashMap<>(STORED);
+            out.writeInt(snapshot.size());
+            for (Map.Entry<String, String> entry : snapshot.entrySet())
+            {
+                out.writeUTF(entry.getKey());
+                out.writeUTF(entry.getValue());
+            }
+            dirty = false;
+        }
+        catch (IOException e)
+        {
+            LOG.log(Level.WARNING, "Cannot write the mapping cache.", e);
+        }
+    }
+
+    /**
+     * Get a FieldAccessor by its class and name, cached under a key.
+     *
+     * @param key   the key of the mapping
+     * @param clazz the class of the field
+     * @param name  the name of the field
+     * @return a FieldAccessor holding the Field
+     * @throws NMSReflection.NMSReflectionException if the field was not found
+     */
+    public static <T> FieldAccessor<T> getFieldAccessor(@Nonnull String key, @Nonnull Class<?> clazz,
+                                                        @Nonnull String name)
+    {
+        FieldAccessor<T> accessor = resolve(key, clazz, name, null);
+        return accessor != null ? accessor : store(key, NMSReflection.getFieldAccessor(clazz, name));
+    }
+
+    /**
+     * Find a field accessor by its clazz, type and place in the clazz, cached under a key.
+     *
+     * @param key   the key of the mapping
+     * @param clazz the class of the field
+     * @param type  the type of the field
+     * @param count the place of the field
+     * @return a FieldAccessor holding the Field
+     * @throws NMSReflection.NMSReflectionException if the field was not found
+     */
+    public static <T> FieldAccessor<T> getCountFieldOfTypeAccessor(@Nonnull String key, @Nonnull Class<?> clazz,
+                                                                   @Nonnull Class<?> type, int count)
+    {
+        FieldAccessor<T> accessor = resolve(key, clazz, null, type);
+        return accessor != null ? accessor
+                                : store(key, NMSReflection.getCountFieldOfTypeAccessor(clazz, type, count));
+    }
+
+    /*
+     * Resolve and check a stored mapping. Return null if missing or invalid.
+     */
+    @SuppressWarnings("unchecked")
+    private static <T> FieldAccessor<T> resolve(String key, Class<?> clazz, String name, Class<?> type)
+    {
+        FieldAccessor<T> accessor = (FieldAccessor<T>) RESOLVED.get(key);
+        if (accessor != null && matches(accessor.get(), clazz, name, type))
+            return accessor;
+
+        String mapping = STORED.get(key);
+        if (mapping == null)
+            return null;
+
+        int index = mapping.indexOf('#');
+        try
+        {
+            Class<?> declaring = Class.forName(mapping.substring(0, index), false, clazz.getClassLoader());
+            Field    field     = declaring.getDeclaredField(mapping.substring(index + 1));
+            if (!matches(field, clazz, name, type))
+                return null;
+
+            accessor = NMSReflection.getFieldAccessor(field);
+            RESOLVED.put(key, accessor);
+            return accessor;
+        }
+        catch (ReflectiveOperationException | LinkageError e)
+        {
+            return null; //Rediscover
+        }
+    }
+
+    private static boolean matches(Field field, Class<?> clazz, String name, Class<?> type)
+    {
+        return field.getDeclaringClass().isAssignableFrom(clazz)
+               && (name == null || field.getName().equals(name))
+               && (type == null || field.getType() == type);
+    }
+
+    private static <T> FieldAccessor<T> store(String key, FieldAccessor<T> accessor)
+    {
+        Field field = accessor.get();
+        STORED.put(key, field.getDeclaringClass().getName() + '#' + field.getName());
+        RESOLVED.put(key, accessor);
+        dirty = true;
+        return accessor;
+    }
+
+    /*
+     * The central directory of a jar holds the name, size and CRC of every entry: hashing all of it along with the
+     * length identifies the content without reading the whole file. It is located by the end of central directory
+     * record, the last 22 bytes of the jar before a comment of up to 65535 bytes. Without one (or with ZIP64), the
+     * whole file is hashed.
+     */
+    private static long serverJarHash() throws IOException
+    {
+        CodeSource source = Bukkit.getServer().getClass().getProtectionDomain().getCodeSource();
+        if (source == null)
+            return 0L;
+
+        File jar;
+        try
+        {
+            jar = new File(source.getLocation().toURI());
+        }
+        catch (URISyntaxException e)
+        {
+            throw new IOException(e);
+        }
+
+        try (RandomAccessFile raf = new RandomAccessFile(jar, "r"))
+        {
+            long   length = raf.length();
+            byte[] tail   = new byte[(int) Math.min(length, 22 + 65535)];
+            raf.seek(length - tail.length);
+            raf.readFully(tail);
+
+            long start = 0;
+            long size  = length;
+            for (int i = tail.length - 22; i >= 0; i--)
+            {
+                if (readInt(tail, i) != 0x06054B50) //End of central directory signature
+                    continue;
+
+                long directorySize   = readInt(tail, i + 12) & 0xFFFFFFFFL;
+                long directoryOffset = readInt(tail, i + 16) & 0xFFFFFFFFL;
+                if (directorySize != 0xFFFFFFFFL && directoryOffset != 0xFFFFFFFFL
+                    && directoryOffset + directorySize <= length)
+                {
+                    start = directoryOffset;
+                    size = directorySize;
+                }
+                break;
+            }
+
+            CRC32  crc    = new CRC32();
+            byte[] buffer = new byte[8192];
+            raf.seek(start);
+            for (long left = size; left > 0; )
+            {
+                int read = raf.read(buffer, 0, (int) Math.min(buffer.length, left));
+                if (read < 0)
+                    throw new EOFException(jar.getPath());
+                crc.update(buffer, 0, read);
+                left -= read;
+            }
+            return length << 32 ^ crc.getValue();
+        }
+    }
+
+    private static int readInt(byte[] bytes, int index) //Little endian
+    {
+        return bytes[index] & 0xFF | (bytes[index + 1] & 0xFF) << 8 | (bytes[index + 2] & 0xFF) << 16
+               | bytes[index + 3] << 24;
+    }
+}
@@ -0,0 +1,264 @@
+package me.skybeast.nmsprotocol;
+
+import io.netty.channel.ChannelHandlerContext;
+import me.skybeast.nmsprotocol.NMSReflection.FieldAccessor;
+
+import javax.annotation.Nonnull;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Collapse the movement packets of a connection while the main thread is behind. Enabled by
+ * {@link Protocol#setMovementAggregation(boolean)}.
+ * <p>
+ * The server handles each <code>PacketPlayInFlying</code> in a main thread task. When a tick lasts longer than the lag
+ * threshold, a connection forwards at most one movement until the next tick starts: the following ones are merged
+ * into a pending packet holding the latest position, the latest look and the ground state. The pending packet is
+ * forwarded as soon as a tick starts, so a lagged tick processes one move per player instead of dozens.
+ * <p>
+ * Order is kept: a ground state change, a teleport confirmation or any other packet forwards the pending movement
+ * first. So does a move landing too far from the last position forwarded, for the server checks a movement packet
+ * against the distance it is allowed to travel: a squared distance of at most 0.3 per merged packet and never above 64,
+ * below the 100 of its "moved too quickly" check. Ticks are observed through <code>MinecraftServer.currentTick</code>,
+ * checked every 10 ms while a movement is pending. Listeners see every packet, merging happens once they passed, into a
+ * copy of the first held packet: the received ones may still be read by async listeners. One aggregator per connection,
+ * used on its event loop only.
+ *
+ * @author SkyBeast
+ */
+public final class MovementAggregator
+{
+    private static final long   POLL_NANOS       = TimeUnit.MILLISECONDS.toNanos(10);
+    private static final double SQUARED_PER_MOVE = 0.3;
+    private static final double MAX_SQUARED      = 64.0;
+
+    private static final Class<?>               FLYING        = NMSReflection.getNMSClass("PacketPlayInFlying");
+    private static final Class<?>               POSITION      =
+            NMSReflection.getNMSClass("PacketPlayInFlying$PacketPlayInPosition");
+    private static final Class<?>               LOOK          =
+            NMSReflection.getNMSClass("PacketPlayInFlying$PacketPlayInLook");
+    private static final Class<?>               POSITION_LOOK =
+            NMSReflection.getNMSClass("PacketPlayInFlying$PacketPlayInPositionLook");
+    private static final FieldAccessor<Integer> CURRENT_TICK  =
+            NMSReflection.getFieldAccessor("{nms}.MinecraftServer", "currentTick");
+    private static final FieldAccessor<Object>  X             = field(double.class, 0);
+    private static final FieldAccessor<Object>  Y             = field(double.class, 1);
+    private static final FieldAccessor<Object>  Z             = field(double.class, 2);
+    private static final FieldAccessor<Object>  YAW           = field(float.class, 0);
+    private static final FieldAccessor<Object>  PITCH         = field(float.class, 1);
+    private static final FieldAccessor<Object>  ON_GROUND     = field(boolean.class, 0);
+    private static final FieldAccessor<Object>  HAS_POSITION  = field(boolean.class, 1);
+    private static final FieldAccessor<Object>  HAS_LOOK      = field(boolean.class, 2);
+    private static final List<FieldAccessor<Object>> FIELDS =
+            Arrays.asList(X, Y, Z, YAW, PITCH, ON_GROUND, HAS_POSITION, HAS_LOOK);
+
+    private static final LongAdder MERGED = new LongAdder();
+    private static volatile long    thresholdNanos = TimeUnit.MILLISECONDS.toNanos(100);
+
+    private Object  pending;
+    private boolean copied; //Whether pending is our own copy
+    private int     moves; //Packets merged into pending, itself included
+    private boolean anchored; //Whether a position was forwarded
+    private double  anchorX, anchorY, anchorZ;
+    private boolean polling;
+    private boolean movedThisTick;
+    private int     tick;
+    private long    tickSeen;
+
+    MovementAggregator() {}
+
+    /**
+     * Set how long a tick lasts before movements are merged. 100 ms by default.
+     *
+     * @param threshold the duration
+     * @param unit      the unit of the duration
+     */
+    public static void setLagThreshold(long threshold, @Nonnull TimeUnit unit)
+    {
+        if (threshold < 0) throw new IllegalArgumentException("threshold < 0");
+        thresholdNanos = unit.toNanos(threshold);
+    }
+
+    /**
+     * Get the number of movements merged into another one since startup.
+     *
+     * @return the count
+     */
+    public static long getMerged() {return MERGED.sum();}
+
+    /*
+     * Called with every packet read that passed the listeners. Return true if the packet is held, false if it must be
+     * forwarded by the caller -- after the pending movement, forwarded here.
+     */
+    boolean read(ChannelHandlerContext ctx, Object packet)
+    {
+        if (!Protocol.isMovementAggregation() || !FLYING.isInstance(packet))
+        {
+            flush(ctx);
+            return false;
+        }
+
+        boolean ticked = observeTick();
+        if (pending != null)
+        {
+            if (ticked || !ON_GROUND.get(pending).equals(ON_GROUND.get(packet)) || isTooFar(packet))
+                flush(ctx); //The ground change or the long move goes through
+            else
+            {
+                merge(packet);
+                return true;
+            }
+        }
+
+        if (!movedThisTick || System.nanoTime() - tickSeen < thresholdNanos)
+        {
+            movedThisTick = true;
+            anchor(packet);
+            return false;
+        }
+
+        pending = packet; //Decoded for us, not seen by the server yet
+        copied = false;
+        moves = 1;
+        if (!polling)
+        {
+            polling = true;
+            ctx.executor().schedule(() -> poll(ctx), POLL_NANOS, TimeUnit.NANOSECONDS);
+        }
+        return true;
+    }
+
+    /*
+     * Forward the pending movement, if any. Also called when the handler is removed.
+     */
+    void flush(ChannelHandlerContext ctx)
+    {
+        if (pending == null)
+            return;
+
+        Object movement = retype(pending);
+        pending = null;
+        movedThisTick = true;
+        anchor(movement);
+        ctx.fireChannelRead(movement);
+    }
+
+    /*
+     * Called when the channel is closed.
+     */
+    void discard() {pending = null;}
+
+    private void poll(ChannelHandlerContext ctx)
+    {
+        if (pending == null || ctx.isRemoved())
+        {
+            polling = false;
+            return;
+        }
+
+        if (observeTick() || !Protocol.isMovementAggregation())
+        {
+            polling = false;
+            flush(ctx);
+            return;
+        }
+
+        ctx.executor().schedule(() -> poll(ctx), POLL_NANOS, TimeUnit.NANOSECONDS);
+    }
+
+    /*
+     * Return true if a tick started since the last call.
+     */
+    private boolean observeTick()
+    {
+        int current = CURRENT_TICK.get(null);
+        if (current == tick && tickSeen != 0)
+            return false;
+
+        tick = current;
+        tickSeen = System.nanoTime();
+        movedThisTick = false;
+        return true;
+    }
+
+    /*
+     * Return true if merging the packet moves the pending movement past the distance the server allows for it.
+     */
+    private boolean isTooFar(Object packet)
+    {
+        if (!(boolean) HAS_POSITION.get(packet))
+            return false;
+        if (!anchored)
+            return true; //Nothing to measure from
+
+        double dx = (double) X.get(packet) - anchorX;
+        double dy = (double) Y.get(packet) - anchorY;
+        double dz = (double) Z.get(packet) - anchorZ;
+        return dx * dx + dy * dy + dz * dz > Math.min(SQUARED_PER_MOVE * (moves + 1), MAX_SQUARED);
+    }
+
+    /*
+     * Remember the position of a movement forwarded to the server.
+     */
+    private void anchor(Object movement)
+    {
+        if (!(boolean) HAS_POSITION.get(movement))
+            return;
+
+        anchored = true;
+        anchorX = (double) X.get(movement);
+        anchorY = (double) Y.get(movement);
+        anchorZ = (double) Z.get(movement);
+    }
+
+    private void merge(Object packet)
+    {
+        if (!copied)
+        {
+            pending = copy(pending, pending.getClass());
+            copied = true;
+        }
+
+        if ((boolean) HAS_POSITION.get(packet))
+        {
+            X.set(pending, X.get(packet));
+            Y.set(pending, Y.get(packet));
+            Z.set(pending, Z.get(packet));
+            HAS_POSITION.set(pending, true);
+        }
+        if ((boolean) HAS_LOOK.get(packet))
+        {
+            YAW.set(pending, YAW.get(packet));
+            PITCH.set(pending, PITCH.get(packet));
+            HAS_LOOK.set(pending, true);
+        }
+        moves++;
+        MERGED.increment();
+    }
+
+    /*
+     * The class matching the merged flags, for listeners further down the pipeline.
+     */
+    private static Object retype(Object movement)
+    {
+        boolean  position = (boolean) HAS_POSITION.get(movement);
+        boolean  look     = (boolean) HAS_LOOK.get(movement);
+        Class<?> type     = position ? look ? POSITION_LOOK : POSITION : look ? LOOK : FLYING;
+        return movement.getClass() == type ? movement : copy(movement, type);
+    }
+
+    private static Object copy(Object movement, Class<?> type)
+    {
+        Object copy = PacketFactory.of(type).create();
+        for (FieldAccessor<Object> field : FIELDS)
+            field.set(copy, field.get(movement));
+        return copy;
+    }
+
+    private static FieldAccessor<Object> field(Class<?> type, int count)
+    {
+        return NMSReflection.getCountFieldOfTypeAccessor(FLYING, type, count);
+    }
+}
@@ -0,0 +1,40 @@
+package me.skybeast.nmsprotocol;
+
+import java.lang.annotation.*;
+
+/**
+ * Mark an interface as the accessor of a server class, implemented by {@link NMSAccessors#get(Class)}.
+ * <p>
+ * Each method of the interface is annotated with {@link NMSField}, {@link NMSMethod} or {@link NMSConstructor}, and
+ * default methods are not allowed. Instance members take the instance as their first parameter:
+ * <pre>
+ * &#64;NMSAccessor("{nms}.EntityPlayer")
+ * public interface EntityPlayerAccessor
+ * {
+ *     &#64;NMSField("playerConnection")
+ *     Object getConnection(Object player);
+ *
+ *     &#64;NMSField(type = "int", index = 0)
+ *     void setPing(Object player, int ping); //A setter returns void and takes the value last
+ *
+ *     &#64;NMSMethod(value = "a", params = {"{nms}.Packet"})
+ *     void send(Object connection, Object packet);
+ * }
+ * </pre>
+ * The accessor processor of the build checks the members against the server jar, and generates the implementation for
+ * its version. Other versions fall back to reflection, resolved when the accessor is first requested.
+ *
+ * @author SkyBeast
+ */
+@Documented
+@Retention(RetentionPolicy.RUNTIME)
+@Target(ElementType.TYPE)
+public @interface NMSAccessor
+{
+    /**
+     * The target class (see {@link NMSReflection#getClass(String)}).
+     *
+     * @return the name of the target class
+     */
+    String value();
+}
@@ -0,0 +1,264 @@
+package me.skybeast.nmsprotocol;
+
+import me.skybeast.nmsprotocol.NMSReflection.NMSReflectionException;
+
+import javax.annotation.Nonnull;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.*;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Get the implementations of the {@link NMSAccessor} interfaces.
+ * <p>
+ * The accessor processor generates, at build time, an implementation of each accessor for the server jar of the build:
+ * <code>a.b.Outer$Inner</code> is implemented by <code>a.b.Outer_Inner_v1_12_R1</code>. It reads and calls public
+ * members directly, and the others through constant {@link MethodHandle}s. The implementation matching
+ * {@link NMSReflection#VERSION} is chosen at runtime. Without one, the members are resolved by reflection, once, when
+ * the accessor is first requested, and the fields are kept in the {@link MappingCache} for the next boots.
+ *
+ * @author SkyBeast
+ */
+public final class NMSAccessors
+{
+    private static final Logger               LOG    = Logger.getLogger("NMSProtocol");
+    private static final MethodHandles.Lookup LOOKUP = MethodHandles.lookup();
+    private static final Object[]             NO_ARG = new Object[0];
+
+    private static final ClassValue<Object> CACHE = new ClassValue<Object>()
+    {
+        @Override
+        protected Object computeValue(Class<?> type) {return create(type);}
+    };
+
+    private NMSAccessors() {}
+
+    /**
+     * Get the implementation of an accessor.
+     *
+     * @param accessor the accessor interface
+     * @return the cached implementation
+     * @throws IllegalArgumentException if the interface is not a valid accessor
+     * @throws NMSReflectionException   if a member cannot be found
+     */
+    public static <T> T get(@Nonnull Class<T> accessor)
+    {
+        return accessor.cast(CACHE.get(accessor));
+    }
+
+    /**
+     * Get the name of the generated implementation of an accessor for the running version.
+     *
+     * @param accessor the accessor interface
+     * @return the binary name of the implementation
+     */
+    public static String implementationName(@Nonnull Class<?> accessor)
+    {
+        return accessor.getName().replace('$', '_') + '_' + NMSReflection.VERSION;
+    }
+
+    private static Object create(Class<?> accessor)
+    {
+        if (!accessor.isInterface() || !accessor.isAnnotationPresent(NMSAccessor.class))
+            throw new IllegalArgumentException(accessor + " is not an @NMSAccessor interface");
+        for (Method method : accessor.getMethods())
+            if (method.isDefault()) //The reflective proxy could not call it: rejected on every version
+                throw new IllegalArgumentException("@NMSAccessor " + accessor.getName() + " has a default method: "
+                                                   + method.getName());
+
+        Class<?> generated;
+        try
+        {
+            generated = Class.forName(implementationName(accessor), true, accessor.getClassLoader());
+        }
+        catch (ClassNotFoundException e)
+        {
+            LOG.fine("No accessor generated for " + accessor.getName() + " on " + NMSReflection.VERSION
+                     + ", using reflection");
+            return reflective(accessor);
+        }
+        catch (LinkageError e) //Generated for another build of the same version
+        {
+            LOG.log(Level.WARNING, "The generated accessor of " + accessor.getName() + " does not match the server"
+                                   + ", using reflection", e);
+            return reflective(accessor);
+        }
+
+        try
+        {
+            Constructor<?> constructor = generated.getDeclaredConstructor();
+            constructor.setAccessible(true);
+            return constructor.newInstance();
+        }
+        catch (ReflectiveOperationException e)
+        {
+            throw new NMSReflectionException(e);
+        }
+    }
+
+    /*
+     * Same rules as the processor. Every handle is spread to (Object[])Object.
+     */
+    private static Object reflective(Class<?> accessor)
+    {
+        Class<?>                  target  = NMSReflection.getClass(accessor.getAnnotation(NMSAccessor.class).value());
+        Map<Method, MethodHandle> handles = new HashMap<>();
+        for (Method method : accessor.getMethods())
+            if (!Modifier.isStatic(method.getModifiers()))
+                handles.put(method, resolve(target, method)
+                        .asType(MethodType.methodType(method.getReturnType(), method.getParameterTypes()))
+                        .asType(MethodType.genericMethodType(method.getParameterCount()))
+                        .asSpreader(Object[].class, method.getParameterCount()));
+
+        return Proxy.newProxyInstance(accessor.getClassLoader(), new Class<?>[]{accessor}, (proxy, method, args) -> {
+            MethodHandle handle = handles.get(method);
+            if (handle != null)
+                return (Object) handle.invokeExact(args == null ? NO_ARG : args);
+
+            switch (method.getName()) //Object methods
+            {
+                case "equals":
+                    return proxy == args[0];
+                case "hashCode":
+                    return System.identityHashCode(proxy);
+                case "toString":
+                    return accessor.getName() + "[reflective]";
+                default:
+                    throw new AbstractMethodError(method.toString());
+            }
+        });
+    }
+
+    private static MethodHandle resolve(Class<?> target, Method method)
+    {
+        NMSField       field       = method.getAnnotation(NMSField.class);
+        NMSMethod      call        = method.getAnnotation(NMSMethod.class);
+        NMSConstructor constructor = method.getAnnotation(NMSConstructor.class);
+        int            arity       = method.getParameterCount();
+        try
+        {
+            if (field != null)
+            {
+                String key = method.getDeclaringClass().getName() + '.' + method.getName() + '/' + arity;
+                Field resolved = field.value().isEmpty()
+                                 ? MappingCache.getCountFieldOfTypeAccessor(key, target, type(field.type()),
+                                                                            field.index()).get()
+                                 : MappingCache.getFieldAccessor(key, target, field.value()).get();
+                resolved.setAccessible(true);
+
+                int getterArity = Modifier.isStatic(resolved.getModifiers()) ? 0 : 1;
+                if (method.getReturnType() == void.class && arity == getterArity + 1)
+                    return LOOKUP.unreflectSetter(resolved);
+                if (arity == getterArity)
+                    return LOOKUP.unreflectGetter(resolved);
+                throw invalid(method, resolved);
+            }
+
+            if (call != null)
+            {
+                Method resolved = call.params().length == 0 ? findMethod(target, call.value(), arity)
+                                                            : NMSReflection.getMethodAccessor(target, call.value(),
+                                                                                              types(call.params()))
+                                                                           .get();
+                if (resolved.getParameterCount() + (Modifier.isStatic(resolved.getModifiers()) ? 0 : 1) != arity)
+                    throw invalid(method, resolved);
+                resolved.setAccessible(true);
+                return LOOKUP.unreflect(resolved);
+            }
+
+            if (constructor != null)
+            {
+                Constructor<?> resolved = constructor.params().length == 0
+                                          ? findConstructor(target, arity)
+                                          : NMSReflection.getConstructorAccessor(target, types(constructor.params()))
+                                                         .get();
+                if (resolved.getParameterCount() != arity)
+                    throw invalid(method, resolved);
+                resolved.setAccessible(true);
+                return LOOKUP.unreflectConstructor(resolved);
+            }
+        }
+        catch (IllegalAccessException e)
+        {
+            throw new NMSReflectionException(e);
+        }
+
+        throw new IllegalArgumentException(method + " has no @NMSField, @NMSMethod or @NMSConstructor annotation");
+    }
+
+    /*
+     * The only method with the name taking the arguments of the accessor: the instance first, unless static.
+     */
+    private static Method findMethod(Class<?> target, String name, int arity)
+    {
+        List<Method> found = new ArrayList<>();
+        for (Class<?> search = target; search != null; search = search.getSuperclass())
+            for (Method method : search.getDeclaredMethods())
+                if (method.getName().equals(name) && !method.isBridge() && !method.isSynthetic()
+                    && method.getParameterCount() + (Modifier.isStatic(method.getModifiers()) ? 0 : 1) == arity)
+                    found.add(method);
+
+        if (found.size() != 1)
+            throw new NMSReflectionException(found.size() + " methods " + name + " with " + arity
+                                             + " arguments in " + target + ", declare their parameters");
+        return found.get(0);
+    }
+
+    private static Constructor<?> findConstructor(Class<?> target, int arity)
+    {
+        Constructor<?> found = null;
+        for (Constructor<?> constructor : target.getDeclaredConstructors())
+            if (constructor.getParameterCount() == arity)
+            {
+                if (found != null)
+                    throw new NMSReflectionException("Several constructors with " + arity + " arguments in " + target
+                                                     + ", declare their parameters");
+                found = constructor;
+            }
+
+        if (found == null)
+            throw new NMSReflectionException("Cannot find a constructor with " + arity + " arguments in " + target);
+        return found;
+    }
+
+    private static Class<?>[] types(String[] names)
+    {
+        Class<?>[] types = new Class<?>[names.length];
+        for (int i = 0; i < names.length; i++)
+            types[i] = type(names[i]);
+        return types;
+    }
+
+    /*
+     * A class name, a primitive name, or either with [] suffixes.
+     */
+    private static Class<?> type(String name)
+    {
+        if (name.endsWith("[]"))
+            return Array.newInstance(type(name.substring(0, name.length() - 2)), 0).getClass();
+
+        switch (name)
+        {
+            case "boolean": return boolean.class;
+            case "byte":    return byte.class;
+            case "short":   return short.class;
+            case "char":    return char.class;
+            case "int":     return int.class;
+            case "long":    return long.class;
+            case "float":   return float.class;
+            case "double":  return double.class;
+            default:        return NMSReflection.getClass(name);
+        }
+    }
+
+    private static IllegalArgumentException invalid(Method method, Member member)
+    {
+        return new IllegalArgumentException(method + " does not take the arguments of " + member);
+    }
+}
@@ -0,0 +1,22 @@
+package me.skybeast.nmsprotocol;
+
+import java.lang.annotation.*;
+
+/**
+ * Call a constructor of the target class of an {@link NMSAccessor}.
+ *
+ * @author SkyBeast
+ */
+@Documented
+@Retention(RetentionPolicy.RUNTIME)
+@Target(ElementType.METHOD)
+public @interface NMSConstructor
+{
+    /**
+     * The parameter types of the constructor, as class names or primitive names, with a <code>[]</code> suffix for
+     * arrays.
+     *
+     * @return the names of the parameter types, or none to find the only constructor with the arity
+     */
+    String[] params() default {};
+}
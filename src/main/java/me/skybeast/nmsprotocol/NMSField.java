@@ -0,0 +1,38 @@
+package me.skybeast.nmsprotocol;
+
+import java.lang.annotation.*;
+
+/**
+ * Read or write a field of the target class of an {@link NMSAccessor}. A method returning void and taking the value
+ * last is a setter, any other is a getter.
+ *
+ * @author SkyBeast
+ */
+@Documented
+@Retention(RetentionPolicy.RUNTIME)
+@Target(ElementType.METHOD)
+public @interface NMSField
+{
+    /**
+     * The name of the field, searched in parent classes too.
+     *
+     * @return the name, or an empty string to find the field by {@link #type()}
+     */
+    String value() default "";
+
+    /**
+     * The exact type of the field, when it is found by type, as a class name or a primitive name, with a
+     * <code>[]</code> suffix for arrays.
+     *
+     * @return the name of the type
+     */
+    String type() default "";
+
+    /**
+     * The index of the field among the fields with the same type, as in
+     * {@link NMSReflection#getCountFieldOfTypeAccessor(Class, Class, int)}.
+     *
+     * @return the index
+     */
+    int index() default 0;
+}
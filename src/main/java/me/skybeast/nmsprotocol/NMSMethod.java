@@ -0,0 +1,29 @@
+package me.skybeast.nmsprotocol;
+
+import java.lang.annotation.*;
+
+/**
+ * Call a method of the target class of an {@link NMSAccessor}.
+ *
+ * @author SkyBeast
+ */
+@Documented
+@Retention(RetentionPolicy.RUNTIME)
+@Target(ElementType.METHOD)
+public @interface NMSMethod
+{
+    /**
+     * The name of the method, searched in parent classes too.
+     *
+     * @return the name
+     */
+    String value();
+
+    /**
+     * The parameter types of the method, as class names or primitive names, with a <code>[]</code> suffix for
+     * arrays.
+     *
+     * @return the names of the parameter types, or none to find the only method with the name and arity
+     */
+    String[] params() default {};
+}
@@ -54,7 +54,15 @@ public final class NMSReflection
      */
     private static Field findField(Class<?> clazz, String name)
     {
-        return findField(clazz, name, clazz);
+        Object trace = Telemetry.beginResolution();
+        try
+        {
+            return findField(clazz, name, clazz);
+        }
+        finally
+        {
+            Telemetry.endResolution(trace, "field", clazz, name);
+        }
     }
 
     /*
@@ -83,7 +91,15 @@ public final class NMSReflection
                                      Class<?>[] argsType)
 
     {
-        return findMethod(clazz, name, argsType, clazz);
+        Object trace = Telemetry.beginResolution();
+        try
+        {
+            return findMethod(clazz, name, argsType, clazz);
+        }
+        finally
+        {
+            Telemetry.endResolution(trace, "method", clazz, name);
+        }
     }
 
     /*
@@ -119,6 +135,7 @@ public final class NMSReflection
      */
     private static <T> Constructor<T> findConstructor(Class<T> clazz, Class<?>[] argsType)
     {
+        Object trace = Telemetry.beginResolution();
         try
         {
             return clazz.getDeclaredConstructor(argsType);
@@ -127,6 +144,10 @@ public final class NMSReflection
         {
             throw new NMSReflectionException(e);
         }
+        finally
+        {
+            Telemetry.endResolution(trace, "constructor", clazz, Arrays.toString(argsType));
+        }
     }
 
     /*
@@ -134,6 +155,7 @@ public final class NMSReflection
      */
     private static <T> Class<T> findClass(String name)
     {
+        Object trace = Telemetry.beginResolution();
         try
         {
             return (Class<T>) Class.forName(name);
@@ -142,6 +164,10 @@ public final class NMSReflection
         {
             throw new NMSReflectionException(e);
         }
+        finally
+        {
+            Telemetry.endResolution(trace, "class", null, name);
+        }
     }
 
     /*
@@ -151,7 +177,15 @@ public final class NMSReflection
                                           Class<?> type,
                                           int count)
     {
-        return countFieldOfType(clazz, type, count, clazz);
+        Object trace = Telemetry.beginResolution();
+        try
+        {
+            return countFieldOfType(clazz, type, count, clazz);
+        }
+        finally
+        {
+            Telemetry.endResolution(trace, "field", clazz, type.getName() + '#' + count);
+        }
     }
 
     /*
@@ -272,13 +306,13 @@ public final class NMSReflection
      */
     public static final class NMSReflectionException extends RuntimeException
     {
-        private NMSReflectionException()                            {}
+        NMSReflectionException()                            {}
 
-        private NMSReflectionException(String arg0)                 {super(arg0);}
+        NMSReflectionException(String arg0)                 {super(arg0);}
 
-        private NMSReflectionException(String arg0, Throwable arg1) {super(arg0, arg1);}
+        NMSReflectionException(String arg0, Throwable arg1) {super(arg0, arg1);}
 
-        private NMSReflectionException(Throwable arg0)              {super(arg0);}
+        NMSReflectionException(Throwable arg0)              {super(arg0);}
     }
 
 	/*
@@ -395,7 +429,7 @@ public final class NMSReflection
     public static <T> FieldAccessor<T> getFieldAccessor(@Nonnull Field field)
     {
         field.setAccessible(true); // Disable Accessible check -- Faster
-        return () -> field;
+        return Platform.fieldAccessor(field); // VarHandle-backed on Java 21
     }
 
     /**
@@ -1014,7 +1048,8 @@ public final class NMSReflection
     }
 
     /**
-     * Call a constructor.
+     * Call a constructor. The constructor is looked up on each call, prefer {@link PacketFactory} to build packets
+     * repeatedly.
      *
      * @param clazz    the class where the constructor is
      * @param argsType the args type of the constructor
@@ -1028,7 +1063,8 @@ public final class NMSReflection
     }
 
     /**
-     * Call a constructor. This method resolves the class.
+     * Call a constructor. This method resolves the class. The class and the constructor are looked up on each call,
+     * prefer {@link PacketFactory} to build packets repeatedly.
      *
      * @param clazz    a string representing the clazz
      * @param argsType the args type of the constructor
@@ -0,0 +1,296 @@
+package me.skybeast.nmsprotocol;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelHandler;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelPipeline;
+import io.netty.util.AttributeKey;
+import me.skybeast.nmsprotocol.NMSReflection.MethodAccessor;
+import org.bukkit.entity.Player;
+
+import javax.annotation.Nonnull;
+import java.net.SocketAddress;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.zip.Deflater;
+
+/**
+ * A cache of pre-encoded outgoing packets, for large packets sent identically to many players (maps, tab headers,
+ * resource-pack prompts, schematic chunks...).
+ * <p>
+ * A packet is registered once under a key. On the first send for a given protocol state and compression threshold,
+ * it is encoded (packet id and data) and compressed into an immutable buffer; every following send writes that
+ * buffer directly after the <code>encoder</code> and <code>compress</code> stages. Encoded buffers are evicted in
+ * least-recently-used order when the cache goes above its byte budget.
+ * <p>
+ * Cached sends do not go through the packet events, filters and rewriters.
+ *
+ * @author SkyBeast
+ */
+public final class PacketCache
+{
+    private final Map<Object, Object>   packets = new ConcurrentHashMap<>();
+    private final Map<Variant, ByteBuf> encoded = new LinkedHashMap<>(16, 0.75F, true); //Access order
+    private final long                  maxBytes;
+    private       long                  bytes;
+
+    /**
+     * Create a cache.
+     *
+     * @param maxBytes the maximum size of the encoded buffers, in bytes
+     */
+    public PacketCache(long maxBytes)
+    {
+        if (maxBytes <= 0) throw new IllegalArgumentException("maxBytes <= 0");
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * Register a packet, replacing and invalidating the previous packet under the same key. The packet must not be
+     * mutated afterwards.
+     *
+     * @param key    the key
+     * @param packet the packet
+     */
+    public void put(@Nonnull Object key, @Nonnull Object packet)
+    {
+        packets.put(key, packet);
+        evict(key);
+    }
+
+    /**
+     * Unregister a packet and release its encoded buffers.
+     *
+     * @param key the key
+     */
+    public void invalidate(@Nonnull Object key)
+    {
+        packets.remove(key);
+        evict(key);
+    }
+
+    /**
+     * Unregister every packet and release every encoded buffer.
+     */
+    public synchronized void invalidateAll()
+    {
+        packets.clear();
+        encoded.values().forEach(ByteBuf::release);
+        encoded.clear();
+        bytes = 0;
+    }
+
+    public synchronized long getSize() {return bytes;}
+
+    public long getMaxSize()           {return maxBytes;}
+
+    /**
+     * Send a cached packet.
+     *
+     * @param to  the player
+     * @param key the key of the packet
+     * @return <code>false</code> if the player is not connected or the key is unknown
+     */
+    public boolean send(@Nonnull Player to, @Nonnull Object key)
+    {
+        return send(to.getAddress(), key);
+    }
+
+    /**
+     * Send a cached packet.
+     *
+     * @param to  the address of the connection
+     * @param key the key of the packet
+     * @return <code>false</code> if the address is not connected or the key is unknown
+     */
+    public boolean send(@Nonnull SocketAddress to, @Nonnull Object key)
+    {
+        Channel channel = Protocol.channelOf(to);
+        Object  packet  = packets.get(key);
+        if (channel == null || packet == null)
+            return false;
+
+        if (channel.eventLoop().inEventLoop())
+            write(channel, key, packet);
+        else
+            channel.eventLoop().execute(() -> write(channel, key, packet));
+        return true;
+    }
+
+    /*
+     * On the event loop: the pipeline is stable.
+     */
+    private void write(Channel channel, Object key, Object packet)
+    {
+        ChannelPipeline       pipeline   = channel.pipeline();
+        ChannelHandler        compressor = pipeline.get("compress");
+        ChannelHandlerContext ctx        = pipeline.context(compressor != null ? "compress" : "encoder");
+        if (ctx == null)
+            return; //Closed
+
+        Object  state     = channel.attr(Encoder.PROTOCOL).get();
+        int     threshold = compressor != null ? Encoder.threshold(compressor) : -1;
+        Variant variant   = new Variant(key, state, threshold);
+
+        ByteBuf buf = get(variant);
+        if (buf == null)
+            buf = put(variant, packet, Encoder.encode(packet, state, threshold));
+
+        ctx.writeAndFlush(buf); //Next outbound handler is the prepender
+    }
+
+    /*
+     * Return a retained duplicate, or null.
+     */
+    private synchronized ByteBuf get(Variant variant)
+    {
+        ByteBuf buf = encoded.get(variant);
+        return buf == null ? null : buf.retainedDuplicate();
+    }
+
+    /*
+     * Return a retained duplicate of the cached buffer, or the buffer itself if the packet is not the one registered
+     * anymore.
+     */
+    private synchronized ByteBuf put(Variant variant, Object packet, ByteBuf buf)
+    {
+        if (packets.get(variant.key) != packet) //Replaced or invalidated while encoding
+            return buf;
+
+        ByteBuf previous = encoded.putIfAbsent(variant, buf);
+        if (previous != null) //Encoded concurrently on another event loop
+        {
+            buf.release();
+            return previous.retainedDuplicate();
+        }
+
+        bytes += buf.readableBytes();
+        Iterator<ByteBuf> it = encoded.values().iterator();
+        while (bytes > maxBytes && it.hasNext())
+        {
+            ByteBuf eldest = it.next();
+            if (eldest == buf)
+                continue; //Keep at least the one being sent
+            bytes -= eldest.readableBytes();
+            eldest.release();
+            it.remove();
+        }
+        return buf.retainedDuplicate();
+    }
+
+    private synchronized void evict(Object key)
+    {
+        Iterator<Map.Entry<Variant, ByteBuf>> it = encoded.entrySet().iterator();
+        while (it.hasNext())
+        {
+            Map.Entry<Variant, ByteBuf> entry = it.next();
+            if (entry.getKey().key.equals(key))
+            {
+                bytes -= entry.getValue().readableBytes();
+                entry.getValue().release();
+                it.remove();
+            }
+        }
+    }
+
+    private static final class Variant
+    {
+        private final Object key;
+        private final Object state;
+        private final int    threshold;
+
+        private Variant(Object key, Object state, int threshold)
+        {
+            this.key = key;
+            this.state = state;
+            this.threshold = threshold;
+        }
+
+        @Override public boolean equals(Object o)
+        {
+            if (this == o) return true;
+            if (!(o instanceof Variant)) return false;
+            Variant other = (Variant) o;
+            return threshold == other.threshold && state == other.state && key.equals(other.key);
+        }
+
+        @Override public int hashCode()
+        {
+            return Objects.hash(key, state, threshold);
+        }
+    }
+
+    /*
+     * Mirrors PacketEncoder and PacketCompressor.
+     */
+    private static final class Encoder
+    {
+        private static final AttributeKey<Object>    PROTOCOL    = AttributeKey.valueOf("protocol");
+        private static final Object                  CLIENTBOUND =
+                NMSReflection.getStaticValue("{nms}.EnumProtocolDirection", "CLIENTBOUND");
+        private static final MethodAccessor<Integer> PACKET_ID   =
+                NMSReflection.getMethodAccessor("{nms}.EnumProtocol", "a",
+                                                NMSReflection.getClass("{nms}.EnumProtocolDirection"),
+                                                NMSReflection.getClass("{nms}.Packet"));
+        private static final ClassValue<NMSReflection.FieldAccessor<Integer>> THRESHOLD =
+                new ClassValue<NMSReflection.FieldAccessor<Integer>>()
+                {
+                    @Override
+                    protected NMSReflection.FieldAccessor<Integer> computeValue(Class<?> type)
+                    {
+                        return NMSReflection.getFirstFieldOfTypeAccessor(type, int.class);
+                    }
+                };
+
+        private static int threshold(ChannelHandler compressor)
+        {
+            return THRESHOLD.get(compressor.getClass()).get(compressor);
+        }
+
+        private static ByteBuf encode(Object packet, Object state, int threshold)
+        {
+            Integer id = PACKET_ID.invoke(state, CLIENTBOUND, packet);
+            if (id == null)
+                throw new IllegalArgumentException("Packet " + packet.getClass() + " is not registered in " + state);
+
+            ByteBuf data = Unpooled.buffer();
+            PacketSerializer.writeVarInt(data, id);
+            PacketSerializer.write(packet, data);
+            if (threshold < 0)
+                return data;
+
+            ByteBuf out  = Unpooled.buffer();
+            int     size = data.readableBytes();
+            if (size < threshold)
+            {
+                PacketSerializer.writeVarInt(out, 0);
+                out.writeBytes(data);
+            }
+            else
+            {
+                PacketSerializer.writeVarInt(out, size);
+                Deflater deflater = new Deflater();
+                try
+                {
+                    deflater.setInput(data.array(), data.arrayOffset() + data.readerIndex(), size);
+                    deflater.finish();
+                    byte[] chunk = new byte[8192];
+                    while (!deflater.finished())
+                        out.writeBytes(chunk, 0, deflater.deflate(chunk));
+                }
+                finally
+                {
+                    deflater.end();
+                }
+            }
+
+            data.release();
+            return out;
+        }
+    }
+}
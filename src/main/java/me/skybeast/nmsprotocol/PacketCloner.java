@@ -0,0 +1,416 @@
+package me.skybeast.nmsprotocol;
+
+import me.skybeast.nmsprotocol.NMSReflection.NMSReflectionException;
+import me.skybeast.nmsprotocol.PacketStructure.Slot;
+
+import javax.annotation.Nonnull;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Array;
+import java.lang.reflect.Method;
+import java.util.*;
+
+/**
+ * Fast packet copies, to send per-viewer variants of one packet without mutating an instance other connections may
+ * still be encoding.
+ * <p>
+ * A PacketCloner is cached per packet class. The fields of the class and a copier for each field and each
+ * {@link Mode} are resolved once, so that a copy costs one constructor call and one getter and setter call per field:
+ * <pre>
+ * Object variant = PacketCloner.copyOf(metadata, PacketCloner.Mode.COPY_ON_WRITE);
+ * </pre>
+ * Cloners hold no mutable state: they can be used from any thread, every I/O thread included. The copies themselves
+ * are plain packets, owned by the caller.
+ *
+ * @author SkyBeast
+ */
+@SuppressWarnings("unchecked")
+public final class PacketCloner<T>
+{
+    private static final MethodHandles.Lookup LOOKUP         = MethodHandles.lookup();
+    private static final MethodType           COPY_TYPE      = MethodType.methodType(Object.class, Object.class);
+    private static final Class<?>             ITEM_STACK     = NMSReflection.getNMSClass("ItemStack");
+    private static final Class<?>             NBT_BASE       = NMSReflection.getNMSClass("NBTBase");
+    private static final Class<?>             WATCHED        = NMSReflection.getNMSClass("DataWatcher$Item");
+    private static final Class<?>             WATCHER_OBJECT = NMSReflection.getNMSClass("DataWatcherObject");
+    private static final Class<?>[]           IMMUTABLE      = {
+            String.class, Number.class, Boolean.class, Character.class, Enum.class, UUID.class, Class.class,
+            WATCHER_OBJECT,
+            NMSReflection.getNMSClass("BaseBlockPosition"),
+            NMSReflection.getNMSClass("IBlockData"),
+            NMSReflection.getNMSClass("Vector3f")
+    };
+
+    private static final MethodHandle ITEM_STACK_COPY = handle(NMSReflection.getMethodAccessor(ITEM_STACK,
+                                                                                               "cloneItemStack")
+                                                                            .get());
+    private static final MethodHandle NBT_COPY        = handle(NMSReflection.getMethodAccessor(NBT_BASE, "clone")
+                                                                            .get());
+    private static final MethodHandle WATCHED_NEW;
+    private static final Slot         WATCHED_OBJECT  = PacketStructure.of(WATCHED).getSlot(WATCHER_OBJECT, 0);
+    private static final Slot         WATCHED_VALUE   = PacketStructure.of(WATCHED).getSlot(Object.class, 0);
+
+    static
+    {
+        try
+        {
+            WATCHED_NEW = LOOKUP.unreflectConstructor(NMSReflection.getConstructorAccessor(WATCHED, WATCHER_OBJECT,
+                                                                                           Object.class).get())
+                                .asType(MethodType.methodType(Object.class, Object.class, Object.class));
+        }
+        catch (IllegalAccessException e)
+        {
+            throw new NMSReflectionException(e);
+        }
+    }
+
+    /*
+     * How a value of a given runtime class is deep-copied.
+     */
+    private static final ClassValue<Copier> DEEP_VALUES = new ClassValue<Copier>()
+    {
+        @Override
+        protected Copier computeValue(Class<?> type) {return deepCopier(type);}
+    };
+
+    private static final ClassValue<PacketCloner<?>> CACHE = new ClassValue<PacketCloner<?>>()
+    {
+        @Override
+        protected PacketCloner<?> computeValue(Class<?> type) {return new PacketCloner<>(type);}
+    };
+
+    private final Class<T>        type;
+    private final PacketStructure structure;
+    private final Slot[]          slots;
+    private final Copier[][]      copiers; //Per mode, per slot -- null when the value is shared
+
+    private PacketCloner(Class<T> type)
+    {
+        this.type = type;
+        structure = PacketStructure.of(type);
+        slots = structure.getSlots().toArray(new Slot[0]);
+        copiers = new Copier[Mode.values().length][slots.length];
+        for (int i = 0; i < slots.length; i++)
+        {
+            Class<?> fieldType = slots[i].getType();
+            copiers[Mode.DEEP.ordinal()][i] = isShared(fieldType) ? null : deepField(fieldType);
+            copiers[Mode.COPY_ON_WRITE.ordinal()][i] = copyOnWriteField(fieldType);
+        }
+    }
+
+    /**
+     * Get the cloner of a packet class.
+     *
+     * @param type the packet class
+     * @return the cached cloner
+     */
+    public static <T> PacketCloner<T> of(@Nonnull Class<T> type)
+    {
+        return (PacketCloner<T>) CACHE.get(type);
+    }
+
+    /**
+     * Get the cloner of a packet class. This method resolves the class.
+     *
+     * @param type a string representing the packet class
+     * @return the cached cloner
+     * @throws NMSReflectionException if the class cannot be found
+     */
+    public static <T> PacketCloner<T> of(@Nonnull String type)
+    {
+        return of(NMSReflection.<T>getClass(type));
+    }
+
+    /**
+     * Copy a packet with the cloner of its class.
+     *
+     * @param packet the packet
+     * @param mode   what is copied beside the packet itself
+     * @return the copy
+     */
+    public static <T> T copyOf(@Nonnull T packet, @Nonnull Mode mode)
+    {
+        return of((Class<T>) packet.getClass()).copy(packet, mode);
+    }
+
+    public Class<T> getType() {return type;}
+
+    /**
+     * Copy a packet.
+     *
+     * @param packet the packet, which is only read
+     * @param mode   what is copied beside the packet itself
+     * @return the copy
+     */
+    public T copy(@Nonnull T packet, @Nonnull Mode mode)
+    {
+        Copier[] fieldCopiers = copiers[mode.ordinal()];
+        T        copy         = (T) structure.newInstance();
+        for (int i = 0; i < slots.length; i++)
+        {
+            Object value  = slots[i].get(packet);
+            Copier copier = fieldCopiers[i];
+            slots[i].set(copy, copier == null || value == null ? value : copier.copy(value));
+        }
+        return copy;
+    }
+
+    /**
+     * What a copy shares with the original packet.
+     */
+    public enum Mode
+    {
+        /**
+         * Every field is shared: collections, item stacks and metadata items included. Replacing a field of the copy
+         * is fine, mutating its values is not.
+         */
+        SHALLOW,
+        /**
+         * Every mutable value is copied, recursively: arrays, collections, maps, item stacks, NBT tags and the
+         * <code>DataWatcher</code> items of metadata lists. Immutable values are shared, as well as the values no
+         * copy is known for, such as chat components, game profiles and whole <code>DataWatcher</code>s (which are
+         * read when encoding anyway).
+         */
+        DEEP,
+        /**
+         * Lists are wrapped, and only copied on their first modification. Arrays, sets and maps are copied without
+         * their elements, everything else is shared. It costs about as much as {@link #SHALLOW}: use it when a few
+         * elements of a list are replaced, such as a <code>DataWatcher</code> item of a metadata packet. Elements
+         * must be replaced, not mutated.
+         */
+        COPY_ON_WRITE
+    }
+
+    /*
+     * Copy a value, whatever its class.
+     */
+    private static Object deepCopy(Object value)
+    {
+        return value == null ? null : DEEP_VALUES.get(value.getClass()).copy(value);
+    }
+
+    private static boolean isShared(Class<?> type)
+    {
+        if (type.isPrimitive())
+            return true;
+
+        for (Class<?> immutable : IMMUTABLE)
+            if (immutable.isAssignableFrom(type))
+                return true;
+        return false;
+    }
+
+    /*
+     * The copy must fit the field: an immutable or unusual collection type is shared instead.
+     */
+    private static Copier deepField(Class<?> fieldType)
+    {
+        return value -> {
+            Object copy = deepCopy(value);
+            return fieldType.isInstance(copy) ? copy : value;
+        };
+    }
+
+    private static Copier copyOnWriteField(Class<?> fieldType)
+    {
+        if (fieldType.isArray())
+            return PacketCloner::shallowArray;
+        if (fieldType == List.class || fieldType == Collection.class || fieldType == Iterable.class)
+            return value -> value instanceof List ? new CowList<>((List<Object>) value) : shallowCollection(value);
+        if (Collection.class.isAssignableFrom(fieldType) || Map.class.isAssignableFrom(fieldType))
+            return value -> {
+                Object copy = value instanceof Map ? shallowMap((Map<Object, Object>) value) : shallowCollection(value);
+                return fieldType.isInstance(copy) ? copy : value;
+            };
+        return null;
+    }
+
+    private static Copier deepCopier(Class<?> type)
+    {
+        if (isShared(type))
+            return value -> value;
+        if (type.isArray())
+            return type.getComponentType().isPrimitive() ? PacketCloner::shallowArray : PacketCloner::deepArray;
+        if (ITEM_STACK.isAssignableFrom(type))
+            return value -> invoke(ITEM_STACK_COPY, value);
+        if (NBT_BASE.isAssignableFrom(type))
+            return value -> invoke(NBT_COPY, value);
+        if (WATCHED.isAssignableFrom(type))
+            return PacketCloner::deepWatched;
+        if (EnumSet.class.isAssignableFrom(type))
+            return value -> ((EnumSet<?>) value).clone();
+        if (EnumMap.class.isAssignableFrom(type))
+            return value -> {
+                EnumMap<?, Object> copy = new EnumMap<>((EnumMap<?, Object>) value);
+                copy.replaceAll((key, element) -> deepCopy(element));
+                return copy;
+            };
+        if (List.class.isAssignableFrom(type))
+            return value -> {
+                List<?>      list = (List<?>) value;
+                List<Object> copy = new ArrayList<>(list.size());
+                for (Object element : list)
+                    copy.add(deepCopy(element));
+                return copy;
+            };
+        if (Set.class.isAssignableFrom(type))
+            return value -> {
+                Set<Object> copy = new LinkedHashSet<>();
+                for (Object element : (Set<?>) value)
+                    copy.add(deepCopy(element));
+                return copy;
+            };
+        if (Collection.class.isAssignableFrom(type))
+            return value -> {
+                Collection<?> collection = (Collection<?>) value;
+                List<Object>  copy       = new ArrayList<>(collection.size());
+                for (Object element : collection)
+                    copy.add(deepCopy(element));
+                return copy;
+            };
+        if (Map.class.isAssignableFrom(type))
+            return value -> {
+                Map<Object, Object> copy = new LinkedHashMap<>();
+                for (Map.Entry<?, ?> entry : ((Map<?, ?>) value).entrySet())
+                    copy.put(entry.getKey(), deepCopy(entry.getValue())); //Keys are meant to be immutable
+                return copy;
+            };
+        return value -> value; //Unknown: shared
+    }
+
+    private static Object shallowArray(Object array)
+    {
+        int    length = Array.getLength(array);
+        Object copy   = Array.newInstance(array.getClass().getComponentType(), length);
+        System.arraycopy(array, 0, copy, 0, length);
+        return copy;
+    }
+
+    private static Object deepArray(Object array)
+    {
+        Object[] copy = ((Object[]) array).clone();
+        for (int i = 0; i < copy.length; i++)
+            copy[i] = deepCopy(copy[i]);
+        return copy;
+    }
+
+    private static Object shallowCollection(Object value)
+    {
+        if (value instanceof EnumSet)
+            return ((EnumSet<?>) value).clone();
+        if (value instanceof Set)
+            return new LinkedHashSet<>((Set<?>) value);
+        return new ArrayList<>((Collection<?>) value);
+    }
+
+    private static Object shallowMap(Map<Object, Object> value)
+    {
+        return value instanceof EnumMap ? new EnumMap<>((EnumMap<?, ?>) value) : new LinkedHashMap<>(value);
+    }
+
+    /*
+     * A new item with the same key and a copy of the value: the item is mutable, and holds a dirty flag.
+     */
+    private static Object deepWatched(Object item)
+    {
+        try
+        {
+            return (Object) WATCHED_NEW.invokeExact(WATCHED_OBJECT.get(item), deepCopy(WATCHED_VALUE.get(item)));
+        }
+        catch (Throwable t)
+        {
+            throw rethrow(t);
+        }
+    }
+
+    private static Object invoke(MethodHandle copy, Object value)
+    {
+        try
+        {
+            return (Object) copy.invokeExact(value);
+        }
+        catch (Throwable t)
+        {
+            throw rethrow(t);
+        }
+    }
+
+    private static MethodHandle handle(Method method)
+    {
+        try
+        {
+            return LOOKUP.unreflect(method).asType(COPY_TYPE);
+        }
+        catch (IllegalAccessException e)
+        {
+            throw new NMSReflectionException(e);
+        }
+    }
+
+    private static RuntimeException rethrow(Throwable t)
+    {
+        if (t instanceof RuntimeException)
+            return (RuntimeException) t;
+        if (t instanceof Error)
+            throw (Error) t;
+        return new NMSReflectionException(t);
+    }
+
+    /**
+     * Copy a value.
+     */
+    @FunctionalInterface
+    private interface Copier
+    {
+        Object copy(Object value);
+    }
+
+    /**
+     * A list reading through another one until its first modification, which copies it.
+     */
+    private static final class CowList<E> extends AbstractList<E> implements RandomAccess
+    {
+        private List<E> list;
+        private boolean copied;
+
+        private CowList(List<E> list) {this.list = list;}
+
+        @Override
+        public E get(int index) {return list.get(index);}
+
+        @Override
+        public int size()       {return list.size();}
+
+        @Override
+        public E set(int index, E element)
+        {
+            return writable().set(index, element);
+        }
+
+        @Override
+        public void add(int index, E element)
+        {
+            writable().add(index, element);
+            modCount++;
+        }
+
+        @Override
+        public E remove(int index)
+        {
+            E removed = writable().remove(index);
+            modCount++;
+            return removed;
+        }
+
+        private List<E> writable()
+        {
+            if (!copied)
+            {
+                list = new ArrayList<>(list);
+                copied = true;
+            }
+            return list;
+        }
+    }
+}
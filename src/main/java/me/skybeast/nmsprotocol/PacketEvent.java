@@ -6,12 +6,18 @@ import org.bukkit.event.Event;
 import org.bukkit.event.HandlerList;
 
 import java.net.SocketAddress;
-import java.util.Objects;
 
+/**
+ * Base class of the packet events.
+ * <p>
+ * When event reuse is enabled (see {@link Protocol#setEventReuse(boolean)}), the same instance is dispatched for
+ * every packet of a connection and direction, so it must not be kept after the handler returns. Use
+ * {@link #snapshot()} to get a detached copy.
+ */
 public abstract class PacketEvent extends Event implements Cancellable
 {
     private static final HandlerList HANDLERS = new HandlerList();
-    private final Object        packet;
+    private       Object        packet;
     private final SocketAddress address;
     private       boolean       cancel;
 
@@ -40,19 +46,21 @@ public abstract class PacketEvent extends Event implements Cancellable
 
     public Player getPlayer()                          {return Protocol.getPlayer(address);}
 
-    @Override public boolean equals(Object o)
+    /**
+     * Get a detached copy of this event, safe to keep after the handler returned.
+     *
+     * @return a new event holding the same packet, address and cancel state
+     */
+    public abstract PacketEvent snapshot();
+
+    /*
+     * Prepare a reused event for the next packet.
+     */
+    PacketEvent reuse(Object packet)
     {
-        if (this == o) return true;
-        if (o == null || getClass() != o.getClass()) return false;
-        PacketEvent other = (PacketEvent) o;
-        return cancel == other.cancel &&
-               Objects.equals(packet, other.packet) &&
-               Objects.equals(address, other.address);
-    }
-
-    @Override public int hashCode()
-    {
-        return Objects.hash(isIncoming(), packet, address, cancel);
+        this.packet = packet;
+        cancel = false;
+        return this;
     }
 
     @Override public String toString()
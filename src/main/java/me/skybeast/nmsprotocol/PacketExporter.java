@@ -0,0 +1,474 @@
+package me.skybeast.nmsprotocol;
+
+import io.netty.bootstrap.Bootstrap;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.buffer.CompositeByteBuf;
+import io.netty.buffer.PooledByteBufAllocator;
+import io.netty.channel.*;
+import io.netty.channel.epoll.Epoll;
+import io.netty.channel.epoll.EpollDomainSocketChannel;
+import io.netty.channel.epoll.EpollEventLoopGroup;
+import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.channel.socket.nio.NioSocketChannel;
+import io.netty.channel.unix.DomainSocketAddress;
+import io.netty.util.ReferenceCountUtil;
+
+import javax.annotation.Nonnull;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Predicate;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Stream selected packet events to an external consumer, over a Unix domain socket (Linux, native epoll) or a TCP
+ * connection.
+ * <p>
+ * Frames are length-prefixed (big endian):
+ * <pre>
+ * int    length of the rest of the frame
+ * byte   type: {@link #FRAME_CLASS} or {@link #FRAME_PACKET}
+ *
+ * FRAME_CLASS:  short id, short length, UTF-8 simple name of the packet class
+ * FRAME_PACKET: byte flags ({@link #FLAG_INCOMING}, {@link #FLAG_RAW}), long time (ms), short class id,
+ *               byte address length, address bytes, short port,
+ *               packet data as written by the encoder (without packet id) if FLAG_RAW
+ * </pre>
+ * Each connection receives the definition of a class before the first packet referencing it, so the ids stay valid
+ * across reconnections and dropped frames.
+ * <p>
+ * Packets are encoded on the I/O thread into pooled buffers and handed to a bounded queue. A single writer thread
+ * drains it, and writes the frames in batches. When the queue is full, the {@link Backpressure} policy decides
+ * whether the I/O thread drops the frame or waits.
+ *
+ * @author SkyBeast
+ * @see ExportConsumer
+ */
+public final class PacketExporter
+{
+    public static final byte FRAME_CLASS   = 0;
+    public static final byte FRAME_PACKET  = 1;
+    public static final byte FLAG_INCOMING = 1;
+    public static final byte FLAG_RAW      = 1 << 1;
+
+    private static final Logger LOG             = Logger.getLogger("NMSProtocol");
+    private static final int    CLASS_ID_OFFSET = 14; //Length, type, flags, time
+
+    private static volatile PacketExporter active;
+
+    private final    SocketAddress            target;
+    private final    Predicate<Class<?>>      selector;
+    private final    boolean                  raw;
+    private final    Backpressure             backpressure;
+    private final    long                     blockNanos;
+    private final    int                      batchSize;
+    private final    BlockingQueue<ByteBuf>   queue;
+    private final    Map<Class<?>, Short>     classIds = new ConcurrentHashMap<>();
+    private final    Map<Short, byte[]>       names    = new ConcurrentHashMap<>(); //Read by the writer
+    private final    AtomicInteger            nextId   = new AtomicInteger();
+    private final    LongAdder                exported = new LongAdder();
+    private final    LongAdder                dropped  = new LongAdder();
+    private final    ByteBufAllocator         alloc    = PooledByteBufAllocator.DEFAULT;
+    private final    Class<? extends Channel> channelClass;
+    private          EventLoopGroup           group;
+    private          Thread                   writer;
+    private volatile boolean                  running;
+
+    private PacketExporter(Builder builder)
+    {
+        target = builder.target;
+        selector = builder.selector;
+        raw = builder.raw;
+        backpressure = builder.backpressure;
+        blockNanos = builder.blockNanos;
+        batchSize = builder.batchSize;
+        queue = new ArrayBlockingQueue<>(builder.capacity);
+
+        if (target instanceof DomainSocketAddress)
+        {
+            if (!Epoll.isAvailable())
+                throw new IllegalStateException("Unix domain sockets need the native epoll transport",
+                                                Epoll.unavailabilityCause());
+            channelClass = EpollDomainSocketChannel.class;
+        }
+        else
+            channelClass = NioSocketChannel.class;
+    }
+
+    /**
+     * Start building an exporter.
+     *
+     * @param target a {@link DomainSocketAddress} or a (loopback) {@link InetSocketAddress}
+     * @return a new Builder
+     */
+    public static Builder to(@Nonnull SocketAddress target)
+    {
+        return new Builder(target);
+    }
+
+    /**
+     * Get the running exporter.
+     *
+     * @return the running exporter, or <code>null</code>
+     */
+    public static PacketExporter getActive() {return active;}
+
+    /**
+     * Start exporting. Stop the previously running exporter, if any. A stopped exporter can be started again.
+     */
+    public synchronized void start()
+    {
+        PacketExporter previous = active;
+        if (previous != null)
+            previous.stop();
+        if (running)
+            return;
+
+        EventLoopGroup loop = channelClass == EpollDomainSocketChannel.class
+                              ? new EpollEventLoopGroup(1)
+                              : new NioEventLoopGroup(1);
+        group = loop;
+        running = true;
+        writer = new Thread(() -> drain(loop), "NMSProtocol-Exporter");
+        writer.setDaemon(true);
+        writer.start();
+        active = this;
+    }
+
+    /**
+     * Stop exporting and release the pending frames.
+     */
+    public synchronized void stop()
+    {
+        if (active == this)
+            active = null;
+        running = false;
+
+        if (writer != null)
+        {
+            writer.interrupt();
+            writer = null;
+        }
+
+        ByteBuf frame;
+        while ((frame = queue.poll()) != null)
+            frame.release();
+        if (group != null)
+        {
+            group.shutdownGracefully(0, 1, TimeUnit.SECONDS);
+            group = null;
+        }
+    }
+
+    public long getExported() {return exported.sum();}
+
+    public long getDropped()  {return dropped.sum();}
+
+    public int getPending()   {return queue.size();}
+
+    /*
+     * Called by the injected handler, on the I/O thread.
+     */
+    static void export(Object packet, boolean incoming, SocketAddress address)
+    {
+        PacketExporter exporter = active;
+        if (exporter != null && exporter.selector.test(packet.getClass()))
+            exporter.enqueue(packet, incoming, address);
+    }
+
+    private void enqueue(Object packet, boolean incoming, SocketAddress address)
+    {
+        if (!running) //Stopped since export read it
+            return;
+
+        ByteBuf frame = alloc.buffer();
+        try
+        {
+            short id = classId(packet.getClass());
+            frame.writeInt(0); //Length, set below
+            frame.writeByte(FRAME_PACKET);
+            frame.writeByte((incoming ? FLAG_INCOMING : 0) | (raw ? FLAG_RAW : 0));
+            frame.writeLong(System.currentTimeMillis());
+            frame.writeShort(id);
+            writeAddress(frame, address);
+            if (raw)
+                PacketSerializer.write(packet, frame);
+            frame.setInt(0, frame.readableBytes() - 4);
+        }
+        catch (RuntimeException e)
+        {
+            frame.release();
+            dropped.increment();
+            return;
+        }
+
+        offer(frame);
+    }
+
+    private void offer(ByteBuf frame)
+    {
+        boolean queued;
+        if (backpressure == Backpressure.DROP)
+            queued = queue.offer(frame);
+        else
+        {
+            try
+            {
+                queued = queue.offer(frame, blockNanos, TimeUnit.NANOSECONDS);
+            }
+            catch (InterruptedException e)
+            {
+                Thread.currentThread().interrupt();
+                queued = false;
+            }
+        }
+
+        if (!queued || !running && queue.remove(frame)) //Queued after stop drained the queue: nobody takes it
+        {
+            frame.release();
+            dropped.increment();
+        }
+    }
+
+    /*
+     * Ids are allocated once and never reused. The writer sends the definitions, see define.
+     */
+    private short classId(Class<?> type)
+    {
+        Short id = classIds.get(type);
+        if (id != null)
+            return id;
+
+        synchronized (classIds)
+        {
+            id = classIds.get(type);
+            if (id != null)
+                return id;
+
+            id = (short) nextId.getAndIncrement();
+            names.put(id, type.getSimpleName().getBytes(StandardCharsets.UTF_8));
+            classIds.put(type, id);
+            return id;
+        }
+    }
+
+    private static void writeAddress(ByteBuf frame, SocketAddress address)
+    {
+        if (address instanceof InetSocketAddress && ((InetSocketAddress) address).getAddress() != null)
+        {
+            InetSocketAddress inet  = (InetSocketAddress) address;
+            byte[]            bytes = inet.getAddress().getAddress();
+            frame.writeByte(bytes.length).writeBytes(bytes).writeShort(inet.getPort());
+        }
+        else
+            frame.writeByte(0).writeShort(0);
+    }
+
+    /*
+     * Writer thread.
+     */
+    private void drain(EventLoopGroup group)
+    {
+        List<ByteBuf> batch   = new ArrayList<>(batchSize);
+        Set<Short>    defined = new HashSet<>(); //Classes the consumer knows, on this connection
+        Channel       channel = null;
+
+        while (running)
+        {
+            try
+            {
+                batch.add(queue.take());
+                queue.drainTo(batch, batchSize - 1);
+
+                if (channel == null || !channel.isActive())
+                {
+                    defined.clear();
+                    channel = connect(group);
+                }
+
+                if (channel == null)
+                {
+                    dropped.add(batch.size());
+                    batch.forEach(ReferenceCountUtil::release);
+                    batch.clear(); //Released once, even if the sleep is interrupted
+                    TimeUnit.SECONDS.sleep(1); //Retry later
+                    continue;
+                }
+
+                int              frames = batch.size();
+                CompositeByteBuf out    = alloc.compositeBuffer(frames * 2);
+                for (ByteBuf frame : batch)
+                {
+                    short id = frame.getShort(frame.readerIndex() + CLASS_ID_OFFSET);
+                    if (defined.add(id))
+                        out.addComponent(true, define(id));
+                    out.addComponent(true, frame);
+                }
+                batch.clear(); //Owned by the composite buffer
+
+                if (channel.writeAndFlush(out).awaitUninterruptibly().isSuccess()) //Blocks while not writable
+                    exported.add(frames);
+                else
+                {
+                    dropped.add(frames);
+                    defined.clear(); //The definitions may have been lost too
+                }
+            }
+            catch (InterruptedException e)
+            {
+                batch.forEach(ReferenceCountUtil::release);
+                break;
+            }
+            finally
+            {
+                batch.clear();
+            }
+        }
+
+        if (channel != null)
+            channel.close();
+    }
+
+    private ByteBuf define(short id)
+    {
+        byte[] name = names.get(id);
+        return alloc.buffer(9 + name.length)
+                    .writeInt(5 + name.length)
+                    .writeByte(FRAME_CLASS)
+                    .writeShort(id)
+                    .writeShort(name.length)
+                    .writeBytes(name);
+    }
+
+    private Channel connect(EventLoopGroup group)
+    {
+        ChannelFuture future = new Bootstrap().group(group)
+                                              .channel(channelClass)
+                                              .handler(new ChannelInboundHandlerAdapter())
+                                              .connect(target)
+                                              .awaitUninterruptibly();
+        if (future.isSuccess())
+        {
+            LOG.info("Packet exporter connected to " + target + '.');
+            return future.channel();
+        }
+
+        LOG.log(Level.WARNING, "Packet exporter cannot connect to " + target + '.', future.cause());
+        return null;
+    }
+
+    /**
+     * What the I/O thread does when the queue is full.
+     */
+    public enum Backpressure
+    {
+        /**
+         * Drop the frame immediately. Never slows the server down.
+         */
+        DROP,
+
+        /**
+         * Wait for room, up to the configured timeout, then drop the frame.
+         */
+        BLOCK
+    }
+
+    /**
+     * Build a PacketExporter.
+     */
+    public static final class Builder
+    {
+        private final SocketAddress       target;
+        private       Predicate<Class<?>> selector     = type -> true;
+        private       boolean             raw          = true;
+        private       Backpressure        backpressure = Backpressure.DROP;
+        private       long                blockNanos   = TimeUnit.MILLISECONDS.toNanos(5);
+        private       int                 batchSize    = 256;
+        private       int                 capacity     = 65536;
+
+        private Builder(SocketAddress target) {this.target = target;}
+
+        /**
+         * Select the exported packets by class.
+         *
+         * @param selector the selector
+         * @return this Builder
+         */
+        public Builder select(@Nonnull Predicate<Class<?>> selector)
+        {
+            this.selector = selector;
+            return this;
+        }
+
+        /**
+         * Whether to include the serialized packet data, or only the metadata.
+         *
+         * @param raw <code>true</code> to include the packet data (default)
+         * @return this Builder
+         */
+        public Builder raw(boolean raw)
+        {
+            this.raw = raw;
+            return this;
+        }
+
+        /**
+         * Set the backpressure policy.
+         *
+         * @param backpressure the policy, {@link Backpressure#DROP} by default
+         * @param timeout      the maximum time to block for {@link Backpressure#BLOCK}
+         * @param unit         the unit of the timeout
+         * @return this Builder
+         */
+        public Builder backpressure(@Nonnull Backpressure backpressure, long timeout, @Nonnull TimeUnit unit)
+        {
+            this.backpressure = backpressure;
+            blockNanos = unit.toNanos(timeout);
+            return this;
+        }
+
+        /**
+         * Set the maximum number of frames written at once.
+         *
+         * @param batchSize the batch size, 256 by default
+         * @return this Builder
+         */
+        public Builder batchSize(int batchSize)
+        {
+            if (batchSize < 1) throw new IllegalArgumentException("batchSize < 1");
+            this.batchSize = batchSize;
+            return this;
+        }
+
+        /**
+         * Set the maximum number of pending frames.
+         *
+         * @param capacity the capacity of the queue, 65536 by default
+         * @return this Builder
+         */
+        public Builder capacity(int capacity)
+        {
+            if (capacity < 1) throw new IllegalArgumentException("capacity < 1");
+            this.capacity = capacity;
+            return this;
+        }
+
+        public PacketExporter build()
+        {
+            return new PacketExporter(this);
+        }
+    }
+}
@@ -0,0 +1,299 @@
+package me.skybeast.nmsprotocol;
+
+import me.skybeast.nmsprotocol.NMSReflection.NMSReflectionException;
+import me.skybeast.nmsprotocol.PacketStructure.Slot;
+
+import javax.annotation.Nonnull;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Constructor;
+import java.util.Arrays;
+
+/**
+ * Fast packet construction.
+ * <p>
+ * A PacketFactory is cached per packet class. The no-arg constructor, the other constructors and the field setters
+ * are resolved once, so that building a packet costs one constructor call and one setter call per field:
+ * <pre>
+ * PacketFactory&lt;?&gt;          factory = PacketFactory.of("{nms}.PacketPlayOutScoreboardScore");
+ * PacketFactory.Template&lt;?&gt; score   = factory.template("a", "b", "c", "d"); //Once
+ *
+ * Object packet = score.create(entry, objective, 42, action);                //Hot path
+ * </pre>
+ *
+ * @author SkyBeast
+ */
+@SuppressWarnings("unchecked")
+public final class PacketFactory<T>
+{
+    private static final ClassValue<PacketFactory<?>> CACHE = new ClassValue<PacketFactory<?>>()
+    {
+        @Override
+        protected PacketFactory<?> computeValue(Class<?> type) {return new PacketFactory<>(type);}
+    };
+
+    private final Class<T>        type;
+    private final PacketStructure structure;
+
+    private PacketFactory(Class<T> type)
+    {
+        this.type = type;
+        structure = PacketStructure.of(type);
+    }
+
+    /**
+     * Get the factory of a packet class.
+     *
+     * @param type the packet class
+     * @return the cached factory
+     */
+    public static <T> PacketFactory<T> of(@Nonnull Class<T> type)
+    {
+        return (PacketFactory<T>) CACHE.get(type);
+    }
+
+    /**
+     * Get the factory of a packet class. This method resolves the class.
+     *
+     * @param type a string representing the packet class
+     * @return the cached factory
+     * @throws NMSReflectionException if the class cannot be found
+     */
+    public static <T> PacketFactory<T> of(@Nonnull String type)
+    {
+        return of(NMSReflection.<T>getClass(type));
+    }
+
+    public Class<T> getType() {return type;}
+
+    /**
+     * Call the no-arg constructor. A class without one is allocated without running any constructor: its fields keep
+     * their default values (<code>null</code>, 0, <code>false</code>) until set.
+     *
+     * @return the new packet
+     */
+    public T create()
+    {
+        return (T) structure.newInstance();
+    }
+
+    /**
+     * Resolve a constructor.
+     *
+     * @param argsType the args type of the constructor
+     * @return a Creator calling the constructor
+     * @throws NMSReflectionException if the constructor was not found
+     */
+    public Creator<T> constructor(@Nonnull Class<?>... argsType)
+    {
+        try
+        {
+            Constructor<T> ctor = type.getDeclaredConstructor(argsType);
+            ctor.setAccessible(true);
+            MethodHandle handle = MethodHandles.lookup().unreflectConstructor(ctor)
+                                               .asType(MethodType.genericMethodType(argsType.length))
+                                               .asSpreader(Object[].class, argsType.length);
+            return new Creator<>(handle);
+        }
+        catch (ReflectiveOperationException e)
+        {
+            throw new NMSReflectionException(e);
+        }
+    }
+
+    /**
+     * Resolve a template: the no-arg constructor followed by the given fields, in order.
+     *
+     * @param fields the names of the fields
+     * @return the Template
+     * @throws NMSReflectionException if a field was not found
+     */
+    public Template<T> template(@Nonnull String... fields)
+    {
+        Slot[] slots = new Slot[fields.length];
+        for (int i = 0; i < fields.length; i++)
+            slots[i] = structure.getSlot(fields[i]);
+        return new Template<>(this, slots);
+    }
+
+    /**
+     * Resolve a template: the no-arg constructor followed by the fields of the given types, in order. The xth
+     * occurrence of a type maps to the xth field of that type.
+     *
+     * @param types the types of the fields
+     * @return the Template
+     * @throws NMSReflectionException if a field was not found
+     */
+    public Template<T> template(@Nonnull Class<?>... types)
+    {
+        Slot[] slots = new Slot[types.length];
+        for (int i = 0; i < types.length; i++)
+        {
+            int count = 0;
+            for (int j = 0; j < i; j++)
+                if (types[j] == types[i])
+                    count++;
+            slots[i] = structure.getSlot(types[i], count);
+        }
+        return new Template<>(this, slots);
+    }
+
+    /**
+     * Start building a packet field by field. For packets built often, prefer a {@link Template}.
+     *
+     * @return a new Builder
+     */
+    public Builder<T> builder()
+    {
+        return new Builder<>(this);
+    }
+
+    /**
+     * A resolved constructor.
+     */
+    public static final class Creator<T>
+    {
+        private final MethodHandle handle;
+
+        private Creator(MethodHandle handle) {this.handle = handle;}
+
+        /**
+         * Call the constructor.
+         *
+         * @param args the args of the constructor
+         * @return the new packet
+         */
+        public T create(Object... args)
+        {
+            try
+            {
+                return (T) (Object) handle.invokeExact(args);
+            }
+            catch (RuntimeException | Error e)
+            {
+                throw e;
+            }
+            catch (Throwable t)
+            {
+                throw new NMSReflectionException(t);
+            }
+        }
+    }
+
+    /**
+     * A resolved no-arg constructor and list of fields.
+     */
+    public static final class Template<T>
+    {
+        private final PacketFactory<T> factory;
+        private final Slot[]           slots;
+
+        private Template(PacketFactory<T> factory, Slot[] slots)
+        {
+            this.factory = factory;
+            this.slots = slots;
+        }
+
+        /**
+         * Build a packet.
+         *
+         * @param values the values of the fields, in the order of the template
+         * @return the new packet
+         * @throws IllegalArgumentException if the number of values does not match the template
+         */
+        public T create(Object... values)
+        {
+            if (values.length != slots.length)
+                throw new IllegalArgumentException("Expected " + slots.length + " values, got " + values.length);
+
+            T packet = factory.create();
+            for (int i = 0; i < slots.length; i++)
+                slots[i].set(packet, values[i]);
+            return packet;
+        }
+
+        /**
+         * Fill an existing packet.
+         *
+         * @param packet the packet
+         * @param values the values of the fields, in the order of the template
+         * @return the packet
+         * @throws IllegalArgumentException if the number of values does not match the template
+         */
+        public T fill(T packet, Object... values)
+        {
+            if (values.length != slots.length)
+                throw new IllegalArgumentException("Expected " + slots.length + " values, got " + values.length);
+
+            for (int i = 0; i < slots.length; i++)
+                slots[i].set(packet, values[i]);
+            return packet;
+        }
+    }
+
+    /**
+     * Build a packet field by field.
+     */
+    public static final class Builder<T>
+    {
+        private final PacketFactory<T> factory;
+        private       Slot[]           slots  = new Slot[4];
+        private       Object[]         values = new Object[4];
+        private       int              size;
+
+        private Builder(PacketFactory<T> factory) {this.factory = factory;}
+
+        /**
+         * Set a field.
+         *
+         * @param field the name of the field
+         * @param value the value
+         * @return this Builder
+         * @throws NMSReflectionException if the field was not found
+         */
+        public Builder<T> set(@Nonnull String field, Object value)
+        {
+            return set(factory.structure.getSlot(field), value);
+        }
+
+        /**
+         * Set the xth field of a type.
+         *
+         * @param type  the type of the field
+         * @param count x
+         * @param value the value
+         * @return this Builder
+         * @throws NMSReflectionException if the field was not found
+         */
+        public Builder<T> set(@Nonnull Class<?> type, int count, Object value)
+        {
+            return set(factory.structure.getSlot(type, count), value);
+        }
+
+        private Builder<T> set(Slot slot, Object value)
+        {
+            if (size == slots.length)
+            {
+                slots = Arrays.copyOf(slots, size << 1);
+                values = Arrays.copyOf(values, size << 1);
+            }
+            slots[size] = slot;
+            values[size++] = value;
+            return this;
+        }
+
+        /**
+         * Build the packet.
+         *
+         * @return the new packet
+         */
+        public T build()
+        {
+            T packet = factory.create();
+            for (int i = 0; i < size; i++)
+                slots[i].set(packet, values[i]);
+            return packet;
+        }
+    }
+}
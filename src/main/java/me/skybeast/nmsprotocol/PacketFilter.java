@@ -0,0 +1,280 @@
+package me.skybeast.nmsprotocol;
+
+import me.skybeast.nmsprotocol.PacketStructure.Slot;
+
+import javax.annotation.Nonnull;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Function;
+import java.util.function.Predicate;
+
+/**
+ * A declarative packet rule: <i>packet class X where field Y meets condition Z, then cancel or rewrite</i>.
+ * <pre>
+ * PacketFilter.register(PacketFilter.on("{nms}.PacketPlayInChat")
+ *                                   .where("a", (String msg) -&gt; msg.startsWith("/op"))
+ *                                   .cancel());
+ * </pre>
+ * Every active rule matching a packet class is compiled, on the first packet of that class, into a single evaluator
+ * holding pre-resolved field getters. All rules are then checked in one pass by the injected handler, before the
+ * packet events are called.
+ * <p>
+ * A packet instance is often sent to many connections: rewrite rules never mutate it, they write to a copy made by
+ * {@link PacketRewriter.Context}, and the copy goes on through the pipeline.
+ *
+ * @author SkyBeast
+ */
+public final class PacketFilter
+{
+    private static final PacketFilter[] NONE = new PacketFilter[0];
+
+    private static volatile Rules rules = new Rules(NONE);
+
+    private final Class<?>                packetClass;
+    private final List<Predicate<Object>> conditions;
+    private final Slot                    rewriteSlot; //null if cancel
+    private final Function<Object, ?>     rewrite;
+
+    private PacketFilter(Builder builder, Slot rewriteSlot, Function<Object, ?> rewrite)
+    {
+        packetClass = builder.packetClass;
+        conditions = new ArrayList<>(builder.conditions);
+        this.rewriteSlot = rewriteSlot;
+        this.rewrite = rewrite;
+    }
+
+    /**
+     * Start a rule on a packet class. The rule also applies to its sub classes.
+     *
+     * @param packetClass the packet class
+     * @return a new Builder
+     */
+    public static Builder on(@Nonnull Class<?> packetClass)
+    {
+        return new Builder(packetClass);
+    }
+
+    /**
+     * Start a rule on a packet class. This method resolves the class.
+     *
+     * @param packetClass a string representing the packet class
+     * @return a new Builder
+     * @throws NMSReflection.NMSReflectionException if the class cannot be found
+     */
+    public static Builder on(@Nonnull String packetClass)
+    {
+        return new Builder(NMSReflection.getClass(packetClass));
+    }
+
+    /**
+     * Activate a rule.
+     *
+     * @param filter the rule
+     */
+    public static synchronized void register(@Nonnull PacketFilter filter)
+    {
+        PacketFilter[] filters = Arrays.copyOf(rules.filters, rules.filters.length + 1);
+        filters[filters.length - 1] = filter;
+        rules = new Rules(filters);
+    }
+
+    /**
+     * Deactivate a rule.
+     *
+     * @param filter the rule
+     */
+    public static synchronized void unregister(@Nonnull PacketFilter filter)
+    {
+        PacketFilter[] filters = Arrays.stream(rules.filters).filter(registered -> registered != filter)
+                                       .toArray(PacketFilter[]::new);
+        if (filters.length != rules.filters.length)
+            rules = new Rules(filters);
+    }
+
+    /**
+     * Deactivate every rule.
+     */
+    public static synchronized void unregisterAll()
+    {
+        rules = new Rules(NONE);
+    }
+
+    public Class<?> getPacketClass() {return packetClass;}
+
+    public boolean isCancelling()    {return rewriteSlot == null;}
+
+    /*
+     * Run every active rule against the packet, in registration order. Return the packet to forward: the original
+     * one or its rewritten copy, or null if it must be dropped.
+     */
+    static Object apply(PacketRewriter.Context context, Object packet)
+    {
+        Rules current = rules;
+        if (current.filters.length == 0)
+            return packet;
+
+        PacketFilter[] matching = current.compiled.computeIfAbsent(packet.getClass(), current::compile);
+        if (matching.length == 0)
+            return packet;
+
+        context.reset(packet);
+        try
+        {
+            for (PacketFilter rule : matching)
+            {
+                if (!rule.matches(context.getPacket()))
+                    continue;
+
+                if (rule.rewriteSlot == null)
+                    return null;
+
+                Slot   slot     = rule.rewriteSlot;
+                Object previous = slot.get(context.getPacket());
+                Object value    = rule.rewrite.apply(previous);
+                if (!Objects.equals(previous, value))
+                    slot.set(context.edit(), value);
+            }
+            return context.getPacket();
+        }
+        finally
+        {
+            context.reset(null); //Do not retain the packet
+        }
+    }
+
+    private boolean matches(Object packet)
+    {
+        for (Predicate<Object> condition : conditions)
+            if (!condition.test(packet))
+                return false;
+        return true;
+    }
+
+    /*
+     * The active rules and their compiled tables, replaced as a whole on each change: a table compiled from an old
+     * list can only land in the old map.
+     */
+    private static final class Rules
+    {
+        private final PacketFilter[]                filters;
+        private final Map<Class<?>, PacketFilter[]> compiled = new ConcurrentHashMap<>();
+
+        private Rules(PacketFilter[] filters) {this.filters = filters;}
+
+        private PacketFilter[] compile(Class<?> type)
+        {
+            List<PacketFilter> matching = new ArrayList<>();
+            for (PacketFilter filter : filters)
+                if (filter.packetClass.isAssignableFrom(type))
+                    matching.add(filter);
+
+            return matching.isEmpty() ? NONE : matching.toArray(new PacketFilter[matching.size()]);
+        }
+    }
+
+    /**
+     * Build a PacketFilter. Fields are resolved when the condition is added, so typos fail fast.
+     */
+    public static final class Builder
+    {
+        private final Class<?>                packetClass;
+        private final PacketStructure         structure;
+        private final List<Predicate<Object>> conditions = new ArrayList<>();
+
+        private Builder(Class<?> packetClass)
+        {
+            this.packetClass = packetClass;
+            structure = PacketStructure.of(packetClass);
+        }
+
+        /**
+         * Add a condition on a field.
+         *
+         * @param field     the name of the field
+         * @param condition the condition on the value of the field
+         * @return this Builder
+         * @throws NMSReflection.NMSReflectionException if the field was not found
+         */
+        public <T> Builder where(@Nonnull String field, @Nonnull Predicate<T> condition)
+        {
+            return where(structure.getSlot(field), condition);
+        }
+
+        /**
+         * Add a condition on the xth field of a type.
+         *
+         * @param type      the type of the field
+         * @param count     x
+         * @param condition the condition on the value of the field
+         * @return this Builder
+         * @throws NMSReflection.NMSReflectionException if the field was not found
+         */
+        public <T> Builder where(@Nonnull Class<T> type, int count, @Nonnull Predicate<? super T> condition)
+        {
+            return where(structure.getSlot(type, count), condition);
+        }
+
+        /**
+         * Add a condition on the whole packet.
+         *
+         * @param condition the condition
+         * @return this Builder
+         */
+        public Builder where(@Nonnull Predicate<Object> condition)
+        {
+            conditions.add(condition);
+            return this;
+        }
+
+        @SuppressWarnings("unchecked")
+        private Builder where(Slot slot, Predicate<?> condition)
+        {
+            Predicate<Object> test = (Predicate<Object>) condition;
+            conditions.add(packet -> test.test(slot.get(packet)));
+            return this;
+        }
+
+        /**
+         * Drop the matching packets.
+         *
+         * @return the rule
+         */
+        public PacketFilter cancel()
+        {
+            return new PacketFilter(this, null, null);
+        }
+
+        /**
+         * Rewrite a field of the matching packets.
+         *
+         * @param field    the name of the field
+         * @param function the function computing the new value from the current one
+         * @return the rule
+         * @throws NMSReflection.NMSReflectionException if the field was not found
+         */
+        @SuppressWarnings("unchecked")
+        public <T> PacketFilter rewrite(@Nonnull String field, @Nonnull Function<T, ? extends T> function)
+        {
+            return new PacketFilter(this, structure.getSlot(field), (Function<Object, ?>) function);
+        }
+
+        /**
+         * Rewrite the xth field of a type of the matching packets.
+         *
+         * @param type     the type of the field
+         * @param count    x
+         * @param function the function computing the new value from the current one
+         * @return the rule
+         * @throws NMSReflection.NMSReflectionException if the field was not found
+         */
+        @SuppressWarnings("unchecked")
+        public <T> PacketFilter rewrite(@Nonnull Class<T> type, int count, @Nonnull Function<T, ? extends T> function)
+        {
+            return new PacketFilter(this, structure.getSlot(type, count), (Function<Object, ?>) function);
+        }
+    }
+}
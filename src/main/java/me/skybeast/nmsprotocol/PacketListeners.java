@@ -0,0 +1,303 @@
+package me.skybeast.nmsprotocol;
+
+import org.bukkit.event.EventPriority;
+
+import javax.annotation.Nonnull;
+import java.lang.invoke.*;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Register objects whose {@link HandlePacket} methods receive typed packets.
+ * <p>
+ * Methods are scanned once, at registration. Each one gets a direct invoker: a class spun by
+ * {@link LambdaMetafactory} when the method and its class are public, a {@link MethodHandle} otherwise. Invokers are
+ * compiled into a dispatch table per concrete packet class, so a packet only reaches the methods handling it, without
+ * reflection or type check.
+ * <p>
+ * Handlers run on the event loop of the connection, in priority order, before the Bukkit listeners of the
+ * {@link PacketEvent}s. {@link EventPriority#MONITOR} handlers run after every Bukkit listener.
+ *
+ * @author SkyBeast
+ */
+public final class PacketListeners
+{
+    private static final Logger               LOG         = Logger.getLogger("NMSProtocol");
+    private static final MethodHandles.Lookup LOOKUP      = MethodHandles.lookup();
+    private static final MethodType           INVOKE_TYPE = MethodType.methodType(void.class, Object.class,
+                                                                                  Object.class, PacketEvent.class);
+    private static final MethodType           SHORT_TYPE  = MethodType.methodType(void.class, Object.class,
+                                                                                  Object.class);
+
+    private static volatile Tables tables = new Tables(new Handler[0]);
+
+    private PacketListeners() {}
+
+    /**
+     * Register the {@link HandlePacket} methods of an object.
+     *
+     * @param listener the object
+     * @throws IllegalArgumentException if a method has an invalid signature
+     */
+    public static synchronized void register(@Nonnull Object listener)
+    {
+        List<Handler> found = new ArrayList<>();
+        for (Class<?> search = listener.getClass(); search != null && search != Object.class;
+             search = search.getSuperclass())
+            for (Method method : search.getDeclaredMethods())
+            {
+                HandlePacket annotation = method.getAnnotation(HandlePacket.class);
+                if (annotation != null && !method.isBridge() && !method.isSynthetic())
+                    found.add(handler(listener, method, annotation));
+            }
+
+        List<Handler> handlers = new ArrayList<>(Arrays.asList(tables.handlers));
+        handlers.addAll(found);
+        tables = new Tables(handlers.toArray(new Handler[0]));
+    }
+
+    /**
+     * Unregister the methods of an object.
+     *
+     * @param listener the object
+     */
+    public static synchronized void unregister(@Nonnull Object listener)
+    {
+        Handler[] handlers = Arrays.stream(tables.handlers).filter(handler -> handler.listener != listener)
+                                   .toArray(Handler[]::new);
+        if (handlers.length != tables.handlers.length)
+            tables = new Tables(handlers);
+    }
+
+    /*
+     * Called with every event: first the handlers before the Bukkit listeners, then the monitors. While shedding, the
+     * best-effort handlers are skipped.
+     */
+    static void dispatch(PacketEvent event, boolean monitor, boolean shedding)
+    {
+        Tables current = tables;
+        if (current.handlers.length == 0)
+            return;
+
+        Object packet = event.getPacket();
+        Table  table  = current.compiled.computeIfAbsent(packet.getClass(), current::compile);
+        for (Handler handler : monitor ? table.monitors : table.handlers)
+        {
+            if ((handler.ignoreCancelled && event.isCancelled()) || (shedding && handler.bestEffort))
+                continue;
+
+            try
+            {
+                handler.invoker.invoke(handler.listener, packet, event);
+            }
+            catch (RuntimeException e)
+            {
+                LOG.log(Level.SEVERE, "Could not pass " + packet.getClass().getSimpleName() + " to " + handler, e);
+            }
+        }
+    }
+
+    private static Handler handler(Object listener, Method method, HandlePacket annotation)
+    {
+        Class<?>[] params = method.getParameterTypes();
+        if (Modifier.isStatic(method.getModifiers()) || method.getReturnType() != void.class
+            || params.length < 1 || params.length > 2 || (params.length == 2 && params[1] != PacketEvent.class))
+            throw new IllegalArgumentException(
+                    "@HandlePacket method " + method + " must be an instance method returning void, taking a packet"
+                    + " and optionally a PacketEvent");
+
+        List<Class<?>> packetClasses = new ArrayList<>(Arrays.asList(annotation.value()));
+        for (String name : annotation.names())
+            packetClasses.add(NMSReflection.getClass(name));
+        if (packetClasses.isEmpty())
+        {
+            if (params[0] == Object.class)
+                throw new IllegalArgumentException("@HandlePacket method " + method + " must declare its packets");
+            packetClasses.add(params[0]);
+        }
+
+        for (Class<?> packetClass : packetClasses)
+            if (!params[0].isAssignableFrom(packetClass))
+                throw new IllegalArgumentException(
+                        "@HandlePacket method " + method + " cannot take a " + packetClass.getName());
+
+        return new Handler(listener, method, packetClasses.toArray(new Class<?>[0]), annotation.priority(),
+                           annotation.ignoreCancelled(), annotation.bestEffort(), invoker(method));
+    }
+
+    private static Invoker invoker(Method method)
+    {
+        MethodHandle handle;
+        try
+        {
+            method.setAccessible(true);
+            handle = LOOKUP.unreflect(method);
+        }
+        catch (IllegalAccessException e)
+        {
+            throw new NMSReflection.NMSReflectionException(e);
+        }
+
+        boolean withEvent = method.getParameterCount() == 2;
+        if (isPublic(method) && isVisible(method.getDeclaringClass()) && isVisible(method.getParameterTypes()[0]))
+        {
+            try
+            {
+                return spin(handle, withEvent);
+            }
+            catch (Throwable e) //LambdaConversionException, or a linkage error
+            {
+                LOG.log(Level.FINE, "Cannot spin an invoker for " + method + ", using a method handle", e);
+            }
+        }
+
+        MethodHandle generic = (withEvent ? handle : MethodHandles.dropArguments(handle, 2, PacketEvent.class))
+                .asType(INVOKE_TYPE);
+        return (listener, packet, event) -> {
+            try
+            {
+                generic.invokeExact(listener, packet, event);
+            }
+            catch (RuntimeException | Error e)
+            {
+                throw e;
+            }
+            catch (Throwable e)
+            {
+                throw new NMSReflection.NMSReflectionException(e);
+            }
+        };
+    }
+
+    /*
+     * The spun class casts and calls the method directly.
+     */
+    private static Invoker spin(MethodHandle handle, boolean withEvent) throws Throwable
+    {
+        if (withEvent)
+            return (Invoker) LambdaMetafactory.metafactory(LOOKUP, "invoke", MethodType.methodType(Invoker.class),
+                                                           INVOKE_TYPE, handle, handle.type())
+                                              .getTarget().invokeExact();
+
+        ShortInvoker invoker = (ShortInvoker) LambdaMetafactory.metafactory(
+                LOOKUP, "invoke", MethodType.methodType(ShortInvoker.class), SHORT_TYPE, handle, handle.type())
+                                                               .getTarget().invokeExact();
+        return (listener, packet, event) -> invoker.invoke(listener, packet);
+    }
+
+    private static boolean isPublic(Method method)
+    {
+        if (!Modifier.isPublic(method.getModifiers()))
+            return false;
+
+        for (Class<?> type = method.getDeclaringClass(); type != null; type = type.getEnclosingClass())
+            if (!Modifier.isPublic(type.getModifiers()))
+                return false;
+        return true;
+    }
+
+    /*
+     * The spun class resolves the types through our class loader.
+     */
+    private static boolean isVisible(Class<?> type)
+    {
+        try
+        {
+            return Class.forName(type.getName(), false, PacketListeners.class.getClassLoader()) == type;
+        }
+        catch (ClassNotFoundException | LinkageError e)
+        {
+            return false;
+        }
+    }
+
+    @FunctionalInterface
+    interface Invoker
+    {
+        void invoke(Object listener, Object packet, PacketEvent event);
+    }
+
+    @FunctionalInterface
+    interface ShortInvoker
+    {
+        void invoke(Object listener, Object packet);
+    }
+
+    private static final class Handler
+    {
+        private final Object        listener;
+        private final Method        method;
+        private final Class<?>[]    packetClasses;
+        private final EventPriority priority;
+        private final boolean       ignoreCancelled;
+        private final boolean       bestEffort;
+        private final Invoker       invoker;
+
+        private Handler(Object listener, Method method, Class<?>[] packetClasses, EventPriority priority,
+                        boolean ignoreCancelled, boolean bestEffort, Invoker invoker)
+        {
+            this.listener = listener;
+            this.method = method;
+            this.packetClasses = packetClasses;
+            this.priority = priority;
+            this.ignoreCancelled = ignoreCancelled;
+            this.bestEffort = bestEffort;
+            this.invoker = invoker;
+        }
+
+        @Override
+        public String toString()
+        {
+            return method.getDeclaringClass().getName() + '#' + method.getName();
+        }
+    }
+
+    /*
+     * The registered handlers and their tables, replaced as a whole on each change: a table compiled from old handlers
+     * can only land in the old map.
+     */
+    private static final class Tables
+    {
+        private final Handler[]           handlers;
+        private final Map<Class<?>, Table> compiled = new ConcurrentHashMap<>();
+
+        private Tables(Handler[] handlers) {this.handlers = handlers;}
+
+        private Table compile(Class<?> type)
+        {
+            List<Handler> matching = new ArrayList<>();
+            for (Handler handler : handlers)
+                for (Class<?> packetClass : handler.packetClasses)
+                    if (packetClass.isAssignableFrom(type))
+                    {
+                        matching.add(handler);
+                        break;
+                    }
+
+            matching.sort(Comparator.comparing(handler -> handler.priority)); //Stable: registration order kept
+
+            List<Handler> regular  = new ArrayList<>();
+            List<Handler> monitors = new ArrayList<>();
+            for (Handler handler : matching)
+                (handler.priority == EventPriority.MONITOR ? monitors : regular).add(handler);
+
+            return new Table(regular.toArray(new Handler[0]), monitors.toArray(new Handler[0]));
+        }
+    }
+
+    private static final class Table
+    {
+        private final Handler[] handlers;
+        private final Handler[] monitors;
+
+        private Table(Handler[] handlers, Handler[] monitors)
+        {
+            this.handlers = handlers;
+            this.monitors = monitors;
+        }
+    }
+}
@@ -0,0 +1,159 @@
+package me.skybeast.nmsprotocol;
+
+import me.skybeast.nmsprotocol.NMSReflection.FieldAccessor;
+import org.bukkit.entity.Player;
+import org.bukkit.event.EventPriority;
+
+import javax.annotation.Nonnull;
+import java.net.SocketAddress;
+import java.util.Objects;
+
+/**
+ * A step of the outgoing packet rewrite pipeline.
+ * <p>
+ * Rewriters are chained per packet class, ordered by {@link EventPriority}, and run after the send events on the
+ * packets that were not cancelled. They never mutate the packet handed to the pipeline: the first effective
+ * {@link Context#set(FieldAccessor, Object)} clones it, and the following rewriters of the chain work on that same
+ * copy. A packet therefore goes through the whole chain with one lookup and at most one copy.
+ *
+ * @author SkyBeast
+ */
+@FunctionalInterface
+public interface PacketRewriter
+{
+    /**
+     * Rewrite a packet.
+     *
+     * @param context the packet being rewritten
+     */
+    void rewrite(Context context);
+
+    /**
+     * Register a rewriter for a packet class and its sub classes.
+     *
+     * @param packetClass the packet class
+     * @param priority    the place in the chain, {@link EventPriority#LOWEST} runs first
+     * @param rewriter    the rewriter
+     */
+    static void register(@Nonnull Class<?> packetClass, @Nonnull EventPriority priority,
+                         @Nonnull PacketRewriter rewriter)
+    {
+        RewritePipeline.register(packetClass, priority, rewriter);
+    }
+
+    /**
+     * Register a rewriter for a packet class and its sub classes. This method resolves the class.
+     *
+     * @param packetClass a string representing the packet class
+     * @param priority    the place in the chain, {@link EventPriority#LOWEST} runs first
+     * @param rewriter    the rewriter
+     */
+    static void register(@Nonnull String packetClass, @Nonnull EventPriority priority,
+                         @Nonnull PacketRewriter rewriter)
+    {
+        register(NMSReflection.getClass(packetClass), priority, rewriter);
+    }
+
+    /**
+     * Unregister a rewriter from every packet class.
+     *
+     * @param rewriter the rewriter
+     */
+    static void unregister(@Nonnull PacketRewriter rewriter)
+    {
+        RewritePipeline.unregister(rewriter);
+    }
+
+    /**
+     * The packet being rewritten.
+     * <p>
+     * One Context is owned by each connection, and only used from its event loop.
+     */
+    final class Context
+    {
+        private final SocketAddress address;
+        private       Object        packet;
+        private       boolean       copied;
+
+        Context(SocketAddress address) {this.address = address;}
+
+        /**
+         * Get the current packet: the original one, or its copy if a previous rewriter changed something. It must
+         * not be mutated directly.
+         *
+         * @return the current packet
+         */
+        public Object getPacket()         {return packet;}
+
+        /**
+         * Check whether the packet has already been copied.
+         *
+         * @return <code>true</code> if a rewriter changed something
+         */
+        public boolean isCopied()         {return copied;}
+
+        public SocketAddress getAddress() {return address;}
+
+        public Player getPlayer()         {return Protocol.getPlayer(address);}
+
+        /**
+         * Read a field of the current packet.
+         *
+         * @param accessor a cached accessor
+         * @return the value of the field
+         */
+        public <T> T get(@Nonnull FieldAccessor<T> accessor)
+        {
+            return accessor.get(packet);
+        }
+
+        /**
+         * Write a field. The packet is copied first if it was not already, unless the value is unchanged.
+         *
+         * @param accessor a cached accessor
+         * @param value    the new value
+         */
+        public <T> void set(@Nonnull FieldAccessor<T> accessor, T value)
+        {
+            if (Objects.equals(accessor.get(packet), value))
+                return; //Nothing changed -- no copy
+
+            copy();
+            accessor.set(packet, value);
+        }
+
+        /**
+         * Get the packet to mutate directly, copying it first if it was not already.
+         *
+         * @return a private copy of the packet
+         */
+        public Object edit()
+        {
+            copy();
+            return packet;
+        }
+
+        private void copy()
+        {
+            if (copied) return;
+
+            packet = PacketCloner.copyOf(packet, PacketCloner.Mode.COPY_ON_WRITE);
+            copied = true;
+        }
+
+        Context reset(Object packet)
+        {
+            return reset(packet, false);
+        }
+
+        /*
+         * copied: the packet is already a private copy, made by PacketFilter.
+         */
+        Context reset(Object packet, boolean copied)
+        {
+            this.packet = packet;
+            this.copied = copied;
+            return this;
+        }
+    }
+}
@@ -0,0 +1,106 @@
+package me.skybeast.nmsprotocol;
+
+import io.netty.buffer.ByteBuf;
+import me.skybeast.nmsprotocol.NMSReflection.FieldAccessor;
+import me.skybeast.nmsprotocol.NMSReflection.MethodAccessor;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Write packets the way the encoder does, through <code>Packet#b(PacketDataSerializer)</code>. The buffers a packet
+ * holds, such as custom payloads, are left as they were: the write drains them.
+ *
+ * @author SkyBeast
+ */
+final class PacketSerializer
+{
+    private static final Class<Object>                    SERIALIZER_CLASS =
+            NMSReflection.getClass("{nms}.PacketDataSerializer");
+    private static final PacketFactory.Creator<Object>    SERIALIZER       =
+            PacketFactory.of(SERIALIZER_CLASS).constructor(ByteBuf.class);
+    private static final ClassValue<MethodAccessor<Void>> WRITE            = new ClassValue<MethodAccessor<Void>>()
+    {
+        @Override
+        protected MethodAccessor<Void> computeValue(Class<?> type)
+        {
+            return NMSReflection.getMethodAccessor(type, "b", SERIALIZER_CLASS);
+        }
+    };
+
+    /*
+     * The buffer fields of a packet class, such as the payload of both custom payload packets: the write reads them.
+     */
+    private static final ClassValue<List<FieldAccessor<ByteBuf>>> BUFFERS =
+            new ClassValue<List<FieldAccessor<ByteBuf>>>()
+            {
+                @Override
+                protected List<FieldAccessor<ByteBuf>> computeValue(Class<?> type)
+                {
+                    List<FieldAccessor<ByteBuf>> buffers = new ArrayList<>();
+                    for (Class<?> search = type; search != null && search != Object.class;
+                         search = search.getSuperclass())
+                        for (Field field : search.getDeclaredFields())
+                            if (!Modifier.isStatic(field.getModifiers())
+                                && ByteBuf.class.isAssignableFrom(field.getType()))
+                                buffers.add(NMSReflection.getFieldAccessor(field));
+                    return buffers.isEmpty() ? Collections.emptyList() : buffers;
+                }
+            };
+
+    private PacketSerializer() {}
+
+    /*
+     * Write the packet data, without its id.
+     */
+    static void write(Object packet, ByteBuf out)
+    {
+        List<FieldAccessor<ByteBuf>> buffers = BUFFERS.get(packet.getClass());
+        if (buffers.isEmpty())
+        {
+            WRITE.get(packet.getClass()).invoke(packet, wrap(out));
+            return;
+        }
+
+        int[] readerIndexes = new int[buffers.size()]; //Read by the write: rewound for the encoder or the server
+        for (int i = 0; i < readerIndexes.length; i++)
+        {
+            ByteBuf buffer = buffers.get(i).get(packet);
+            readerIndexes[i] = buffer == null ? -1 : buffer.readerIndex();
+        }
+        try
+        {
+            WRITE.get(packet.getClass()).invoke(packet, wrap(out));
+        }
+        finally
+        {
+            for (int i = 0; i < readerIndexes.length; i++)
+            {
+                ByteBuf buffer = buffers.get(i).get(packet);
+                if (buffer != null && readerIndexes[i] >= 0)
+                    buffer.readerIndex(readerIndexes[i]);
+            }
+        }
+    }
+
+    /*
+     * Wrap a buffer into a PacketDataSerializer, without copy.
+     */
+    static Object wrap(ByteBuf buf)
+    {
+        return SERIALIZER.create(buf);
+    }
+
+    static void writeVarInt(ByteBuf out, int value)
+    {
+        while ((value & ~0x7F) != 0)
+        {
+            out.writeByte(value & 0x7F | 0x80);
+            value >>>= 7;
+        }
+        out.writeByte(value);
+    }
+}
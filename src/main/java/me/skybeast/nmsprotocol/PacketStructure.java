@@ -0,0 +1,214 @@
+package me.skybeast.nmsprotocol;
+
+import me.skybeast.nmsprotocol.NMSReflection.NMSReflectionException;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * The instance fields of a packet class, resolved once and cached per class.
+ * <p>
+ * Every field is exposed as a {@link Slot} holding pre-bound {@link MethodHandle} getter and setter, so that hot
+ * paths never look a field up by name or call {@link Field#setAccessible(boolean)}.
+ *
+ * @author SkyBeast
+ */
+final class PacketStructure
+{
+    private static final MethodType GETTER_TYPE = MethodType.methodType(Object.class, Object.class);
+    private static final MethodType SETTER_TYPE = MethodType.methodType(void.class, Object.class, Object.class);
+
+    private static final ClassValue<PacketStructure> CACHE = new ClassValue<PacketStructure>()
+    {
+        @Override
+        protected PacketStructure computeValue(Class<?> type) {return new PacketStructure(type);}
+    };
+
+    private final Class<?>   type;
+    private final List<Slot> slots;
+    private volatile MethodHandle constructor; //Lazy, not every structure is instantiated
+
+    private PacketStructure(Class<?> type)
+    {
+        this.type = type;
+        List<Slot> found = new ArrayList<>();
+        for (Class<?> search = type; search != null && search != Object.class; search = search.getSuperclass())
+            for (Field field : search.getDeclaredFields())
+                if (!Modifier.isStatic(field.getModifiers()))
+                    found.add(new Slot(found.size(), field));
+
+        slots = Collections.unmodifiableList(found);
+    }
+
+    /*
+     * Get the cached structure of a class.
+     */
+    static PacketStructure of(Class<?> type)
+    {
+        return CACHE.get(type);
+    }
+
+    Class<?> getType()    {return type;}
+
+    List<Slot> getSlots() {return slots;}
+
+    /*
+     * Same lookup as NMSReflection: declared fields first, then parent classes.
+     */
+    Slot getSlot(String name)
+    {
+        for (Slot slot : slots)
+            if (slot.field.getName().equals(name))
+                return slot;
+
+        throw new NMSReflectionException("Cannot find field " + name + " in " + type);
+    }
+
+    /*
+     * The count-th field with the exact type, same order as NMSReflection.getCountFieldOfTypeAccessor.
+     */
+    Slot getSlot(Class<?> fieldType, int count)
+    {
+        int i = 0;
+        for (Slot slot : slots)
+            if (slot.field.getType() == fieldType && i++ == count)
+                return slot;
+
+        throw new NMSReflectionException("Cannot find a field with type " + fieldType + " in " + type + '.');
+    }
+
+    /*
+     * Call the no-arg constructor, resolved once. Every NMS packet has one, it is used by the decoder. Other classes
+     * without one are allocated without running any of their constructors: their fields keep their default values.
+     */
+    Object newInstance()
+    {
+        MethodHandle handle = constructor;
+        if (handle == null)
+        {
+            try
+            {
+                constructor = handle = instantiator();
+            }
+            catch (ReflectiveOperationException e)
+            {
+                throw new NMSReflectionException(e);
+            }
+        }
+
+        try
+        {
+            return (Object) handle.invokeExact();
+        }
+        catch (Throwable t)
+        {
+            throw rethrow(t);
+        }
+    }
+
+    private MethodHandle instantiator() throws ReflectiveOperationException
+    {
+        MethodHandles.Lookup lookup = MethodHandles.lookup();
+        try
+        {
+            Constructor<?> ctor = type.getDeclaredConstructor();
+            ctor.setAccessible(true);
+            return lookup.unreflectConstructor(ctor).asType(MethodType.methodType(Object.class));
+        }
+        catch (NoSuchMethodException e)
+        {
+            //The serialization constructor: Object's, allocating the class. Reached by reflection, as on Java 9+ it is
+            //in jdk.unsupported, and it must be called through Constructor#newInstance.
+            Class<?>       factoryClass = Class.forName("sun.reflect.ReflectionFactory");
+            Object         factory      = factoryClass.getMethod("getReflectionFactory").invoke(null);
+            Constructor<?> ctor         = (Constructor<?>) factoryClass
+                    .getMethod("newConstructorForSerialization", Class.class, Constructor.class)
+                    .invoke(factory, type, Object.class.getDeclaredConstructor());
+            MethodHandle newInstance = lookup.findVirtual(Constructor.class, "newInstance",
+                                                          MethodType.methodType(Object.class, Object[].class));
+            return MethodHandles.insertArguments(newInstance, 0, ctor, new Object[0]);
+        }
+    }
+
+    /**
+     * A resolved field.
+     */
+    static final class Slot
+    {
+        private final int          index;
+        private final Field        field;
+        private final MethodHandle getter;
+        private final MethodHandle setter;
+
+        private Slot(int index, Field field)
+        {
+            this.index = index;
+            this.field = field;
+            field.setAccessible(true); // Disable Accessible check -- Faster
+            try
+            {
+                MethodHandles.Lookup lookup = MethodHandles.lookup();
+                getter = lookup.unreflectGetter(field).asType(GETTER_TYPE);
+                setter = Modifier.isFinal(field.getModifiers())
+                         ? null //Final fields are only written when copying, through the Field
+                         : lookup.unreflectSetter(field).asType(SETTER_TYPE);
+            }
+            catch (IllegalAccessException e)
+            {
+                throw new NMSReflectionException(e);
+            }
+        }
+
+        int getIndex()         {return index;}
+
+        Field getField()       {return field;}
+
+        Class<?> getType()     {return field.getType();}
+
+        @SuppressWarnings("unchecked")
+        <T> T get(Object instance)
+        {
+            try
+            {
+                return (T) (Object) getter.invokeExact(instance);
+            }
+            catch (Throwable t)
+            {
+                throw rethrow(t);
+            }
+        }
+
+        void set(Object instance, Object value)
+        {
+            try
+            {
+                if (setter == null)
+                    field.set(instance, value);
+                else
+                    setter.invokeExact(instance, value);
+            }
+            catch (Throwable t)
+            {
+                throw rethrow(t);
+            }
+        }
+
+        @Override public String toString() {return field.toString();}
+    }
+
+    private static RuntimeException rethrow(Throwable t)
+    {
+        if (t instanceof RuntimeException)
+            return (RuntimeException) t;
+        if (t instanceof Error)
+            throw (Error) t;
+        return new NMSReflectionException(t);
+    }
+}
@@ -0,0 +1,57 @@
+package me.skybeast.nmsprotocol;
+
+import me.skybeast.nmsprotocol.NMSReflection.FieldAccessor;
+
+import java.lang.reflect.Field;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Java 8 implementation of the version-dependent parts of the library.
+ * <p>
+ * The multi-release jar replaces this class on Java 21 (<code>src/main/java21</code>): both versions must keep the
+ * same members.
+ *
+ * @author SkyBeast
+ */
+final class Platform
+{
+    private static final int             THREADS = Math.max(2, Runtime.getRuntime().availableProcessors());
+    private static final ExecutorService ASYNC   = createAsync();
+
+    private Platform() {}
+
+    /*
+     * Reflection-backed: the field is already accessible.
+     */
+    static <T> FieldAccessor<T> fieldAccessor(Field field)
+    {
+        return () -> field;
+    }
+
+    /*
+     * Runs the async packet listeners.
+     */
+    static ExecutorService asyncExecutor()
+    {
+        return ASYNC;
+    }
+
+    /*
+     * One thread per core and 65536 pending tasks at most. Beyond that, execute throws RejectedExecutionException:
+     * the dispatcher drops the task.
+     */
+    private static ExecutorService createAsync()
+    {
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(THREADS, THREADS, 60, TimeUnit.SECONDS,
+                                                             new ArrayBlockingQueue<>(65536), task -> {
+            Thread thread = new Thread(task, "NMSProtocol-Async");
+            thread.setDaemon(true);
+            return thread;
+        }, new ThreadPoolExecutor.AbortPolicy());
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
+    }
+}
@@ -0,0 +1,152 @@
+package me.skybeast.nmsprotocol;
+
+import io.netty.buffer.ByteBuf;
+import me.skybeast.nmsprotocol.NMSReflection.FieldAccessor;
+
+import javax.annotation.Nonnull;
+import java.net.SocketAddress;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Route incoming plugin messages (<code>PacketPlayInCustomPayload</code>) to handlers by channel, on the event loop of
+ * the connection.
+ * <p>
+ * The channels are looked up in a hash map, replaced on each registration so that routing never locks. A message of a
+ * routed channel is consumed: it reaches neither the packet events nor the server, so the Bukkit messenger and the
+ * main thread are never involved. Other channels go through as usual.
+ * <p>
+ * Handlers receive a read-only slice of the payload, without copy. It is only valid during the call: retain it, or
+ * copy it, to keep it.
+ *
+ * @author SkyBeast
+ */
+public final class PluginMessageRouter
+{
+    private static final Logger                 LOG            = Logger.getLogger("NMSProtocol");
+    private static final Class<?>               CUSTOM_PAYLOAD =
+            NMSReflection.getNMSClass("PacketPlayInCustomPayload");
+    private static final FieldAccessor<String>  CHANNEL        =
+            NMSReflection.getFirstFieldOfTypeAccessor(CUSTOM_PAYLOAD, String.class);
+    private static final FieldAccessor<ByteBuf> PAYLOAD        =
+            NMSReflection.getFirstFieldOfTypeAccessor(CUSTOM_PAYLOAD, "{nms}.PacketDataSerializer");
+
+    private static volatile Map<String, Handler[]> routes = Collections.emptyMap();
+
+    private PluginMessageRouter() {}
+
+    /**
+     * Route a channel to a handler. Several handlers of the same channel are called in registration order.
+     *
+     * @param channel the plugin channel
+     * @param handler the handler
+     */
+    public static synchronized void register(@Nonnull String channel, @Nonnull Handler handler)
+    {
+        Map<String, Handler[]> updated  = new HashMap<>(routes);
+        Handler[]              handlers = updated.get(channel);
+        if (handlers == null)
+            handlers = new Handler[]{handler};
+        else
+        {
+            handlers = Arrays.copyOf(handlers, handlers.length + 1);
+            handlers[handlers.length - 1] = handler;
+        }
+        updated.put(channel, handlers);
+        routes = updated;
+    }
+
+    /**
+     * Remove a handler. The channel stops being routed once it has no handler.
+     *
+     * @param channel the plugin channel
+     * @param handler the handler
+     */
+    public static synchronized void unregister(@Nonnull String channel, @Nonnull Handler handler)
+    {
+        Handler[] handlers = routes.get(channel);
+        if (handlers == null)
+            return;
+
+        Handler[] remaining = Arrays.stream(handlers).filter(registered -> registered != handler)
+                                    .toArray(Handler[]::new);
+        Map<String, Handler[]> updated = new HashMap<>(routes);
+        if (remaining.length == 0)
+            updated.remove(channel);
+        else
+            updated.put(channel, remaining);
+        routes = updated;
+    }
+
+    /**
+     * Stop routing a channel.
+     *
+     * @param channel the plugin channel
+     */
+    public static synchronized void unregisterAll(@Nonnull String channel)
+    {
+        Map<String, Handler[]> updated = new HashMap<>(routes);
+        if (updated.remove(channel) != null)
+            routes = updated;
+    }
+
+    public static boolean isRouted(@Nonnull String channel) {return routes.containsKey(channel);}
+
+    /*
+     * Called by the injected handler with every packet read. Return true if the message was consumed, in which case
+     * its payload is released here: the server will not.
+     */
+    static boolean route(Object packet, SocketAddress from)
+    {
+        Map<String, Handler[]> current = routes;
+        if (current.isEmpty() || packet.getClass() != CUSTOM_PAYLOAD)
+            return false;
+
+        String    channel  = CHANNEL.get(packet);
+        Handler[] handlers = current.get(channel);
+        if (handlers == null)
+            return false;
+
+        ByteBuf payload = PAYLOAD.get(packet);
+        try
+        {
+            for (Handler handler : handlers)
+            {
+                try
+                {
+                    handler.handle(from, channel, payload.slice().asReadOnly()); //Fresh indexes for each handler
+                }
+                catch (Exception e)
+                {
+                    LOG.log(Level.SEVERE, "Could not pass a plugin message of " + channel + " to " + handler, e);
+                }
+            }
+        }
+        finally
+        {
+            payload.release();
+        }
+        return true;
+    }
+
+    /**
+     * Handle the plugin messages of a channel.
+     */
+    @FunctionalInterface
+    public interface Handler
+    {
+        /**
+         * Handle a message, on the event loop of the connection.
+         *
+         * @param from    the address of the connection
+         * @param channel the plugin channel
+         * @param data    a read-only slice of the payload, only valid during the call
+         * @throws Exception logged, the other handlers are still called
+         */
+        void handle(SocketAddress from, String channel, ByteBuf data) throws Exception;
+    }
+}
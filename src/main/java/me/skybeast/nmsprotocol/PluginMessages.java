@@ -0,0 +1,249 @@
+package me.skybeast.nmsprotocol;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.buffer.CompositeByteBuf;
+import io.netty.channel.Channel;
+import org.bukkit.entity.Player;
+
+import javax.annotation.Nonnull;
+import java.net.SocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.Collection;
+
+/**
+ * Send plugin messages (<code>PacketPlayOutCustomPayload</code>) written straight into pooled buffers.
+ * <p>
+ * The payload is written into a buffer of the allocator of the channel, wrapped in a
+ * <code>PacketDataSerializer</code> without copy, and released once the packet is written or dropped:
+ * <pre>
+ * PluginMessages.send(player, "BungeeCord", buf -&gt; new ByteBufOutputStream(buf).writeUTF("GetServer"));
+ * </pre>
+ * A {@link Shared} payload is written once and sent to many connections, each send holding its own reference to the
+ * same memory. A per-connection header can be prepended without copying the shared body.
+ *
+ * @author SkyBeast
+ */
+public final class PluginMessages
+{
+    private static final PacketFactory.Creator<Object> PACKET =
+            PacketFactory.of(NMSReflection.getNMSClass("PacketPlayOutCustomPayload"))
+                         .constructor(String.class, NMSReflection.getNMSClass("PacketDataSerializer"));
+
+    private PluginMessages() {}
+
+    /**
+     * Send a plugin message.
+     *
+     * @param to      the player
+     * @param channel the plugin channel
+     * @param payload writes the payload, on the calling thread
+     * @return <code>false</code> if the player is not connected
+     */
+    public static boolean send(@Nonnull Player to, @Nonnull String channel, @Nonnull PayloadWriter payload)
+    {
+        return send(to.getAddress(), channel, payload);
+    }
+
+    /**
+     * Send a plugin message.
+     *
+     * @param to      the address of the connection
+     * @param channel the plugin channel
+     * @param payload writes the payload, on the calling thread
+     * @return <code>false</code> if the address is not connected
+     */
+    public static boolean send(@Nonnull SocketAddress to, @Nonnull String channel, @Nonnull PayloadWriter payload)
+    {
+        Channel connection = Protocol.channelOf(to);
+        if (connection == null)
+            return false;
+
+        write(connection, channel, allocate(connection.alloc(), payload));
+        return true;
+    }
+
+    /**
+     * Send a plugin message with a payload already written. The library takes the ownership of the buffer: it is
+     * released once sent, or if the address is not connected.
+     *
+     * @param to      the address of the connection
+     * @param channel the plugin channel
+     * @param payload the payload, released by the library
+     * @return <code>false</code> if the address is not connected
+     */
+    public static boolean send(@Nonnull SocketAddress to, @Nonnull String channel, @Nonnull ByteBuf payload)
+    {
+        Channel connection = Protocol.channelOf(to);
+        if (connection == null)
+        {
+            payload.release();
+            return false;
+        }
+
+        write(connection, channel, payload);
+        return true;
+    }
+
+    /**
+     * Write a payload once, to send it to many connections.
+     *
+     * @param channel the plugin channel
+     * @param payload writes the payload, on the calling thread
+     * @return the shared payload, to release once every send is issued
+     */
+    public static Shared share(@Nonnull String channel, @Nonnull PayloadWriter payload)
+    {
+        return new Shared(channel, allocate(ByteBufAllocator.DEFAULT, payload));
+    }
+
+    /**
+     * Write a string the way the protocol does: its length in UTF-8 bytes as a VarInt, then the bytes.
+     *
+     * @param buf   the buffer
+     * @param value the string
+     */
+    public static void writeString(@Nonnull ByteBuf buf, @Nonnull String value)
+    {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        PacketSerializer.writeVarInt(buf, bytes.length);
+        buf.writeBytes(bytes);
+    }
+
+    public static void writeVarInt(@Nonnull ByteBuf buf, int value) {PacketSerializer.writeVarInt(buf, value);}
+
+    private static ByteBuf allocate(ByteBufAllocator alloc, PayloadWriter payload)
+    {
+        ByteBuf buf = alloc.buffer();
+        try
+        {
+            payload.write(buf);
+            return buf;
+        }
+        catch (Exception e)
+        {
+            buf.release();
+            throw e instanceof RuntimeException ? (RuntimeException) e : new IllegalStateException(e);
+        }
+    }
+
+    /*
+     * The packet handler completes the promise of cancelled and dropped packets too, so the buffer is always
+     * released. The encoder reads the payload: it must not be shared between packets.
+     */
+    private static void write(Channel connection, String channel, ByteBuf payload)
+    {
+        Object packet;
+        try
+        {
+            packet = PACKET.create(channel, PacketSerializer.wrap(payload));
+        }
+        catch (RuntimeException e) //Payload above 1 MiB
+        {
+            payload.release();
+            throw e;
+        }
+
+        connection.writeAndFlush(packet).addListener(future -> payload.release());
+    }
+
+    /**
+     * Write a payload.
+     */
+    @FunctionalInterface
+    public interface PayloadWriter
+    {
+        void write(ByteBuf buf) throws Exception;
+    }
+
+    /**
+     * A payload written once and sent to many connections without copy. It must be released once every send is
+     * issued: the pending sends keep their own reference.
+     */
+    public static final class Shared implements AutoCloseable
+    {
+        private final String  channel;
+        private final ByteBuf body;
+
+        private Shared(String channel, ByteBuf body)
+        {
+            this.channel = channel;
+            this.body = body;
+        }
+
+        public String getChannel() {return channel;}
+
+        /**
+         * Get the size of the body.
+         *
+         * @return the size in bytes
+         */
+        public int size()          {return body.readableBytes();}
+
+        public boolean send(@Nonnull Player to)
+        {
+            return send(to.getAddress());
+        }
+
+        /**
+         * Send the payload.
+         *
+         * @param to the address of the connection
+         * @return <code>false</code> if the address is not connected
+         */
+        public boolean send(@Nonnull SocketAddress to)
+        {
+            Channel connection = Protocol.channelOf(to);
+            if (connection == null)
+                return false;
+
+            write(connection, channel, body.retainedDuplicate());
+            return true;
+        }
+
+        /**
+         * Send the payload to several players.
+         *
+         * @param to the players
+         * @return the number of connected players it was sent to
+         */
+        public int send(@Nonnull Collection<? extends Player> to)
+        {
+            int sent = 0;
+            for (Player player : to)
+                if (send(player.getAddress()))
+                    sent++;
+            return sent;
+        }
+
+        /**
+         * Send the payload after a header specific to the connection. The header is written into a buffer of the
+         * channel, and joined to the body in a composite buffer.
+         *
+         * @param to     the address of the connection
+         * @param header writes the header, on the calling thread
+         * @return <code>false</code> if the address is not connected
+         */
+        public boolean send(@Nonnull SocketAddress to, @Nonnull PayloadWriter header)
+        {
+            Channel connection = Protocol.channelOf(to);
+            if (connection == null)
+                return false;
+
+            ByteBuf          head    = allocate(connection.alloc(), header);
+            CompositeByteBuf payload = connection.alloc().compositeBuffer(2);
+            payload.addComponents(true, head, body.retainedDuplicate());
+            write(connection, channel, payload);
+            return true;
+        }
+
+        /**
+         * Release the body. The pending sends are not affected.
+         */
+        @Override
+        public void close()
+        {
+            body.release();
+        }
+    }
+}
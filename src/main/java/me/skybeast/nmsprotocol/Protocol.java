@@ -2,14 +2,25 @@ package me.skybeast.nmsprotocol;
 
 import io.netty.channel.*;
 import io.netty.channel.ChannelHandler.Sharable;
+import io.netty.util.concurrent.Future;
+import io.netty.util.concurrent.ImmediateEventExecutor;
+import io.netty.util.concurrent.Promise;
 import org.bukkit.Bukkit;
 import org.bukkit.entity.Player;
+import org.bukkit.event.EventException;
+import org.bukkit.plugin.Plugin;
+import org.bukkit.plugin.RegisteredListener;
 
 import java.lang.reflect.Field;
 import java.net.SocketAddress;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Deque;
 import java.util.List;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -19,7 +30,37 @@ public final class Protocol
     private static final Logger                            LOG      = Logger.getLogger("NMSProtocol");
     private static final boolean                           SNIFFER  = false;
     private static final Map<SocketAddress, PacketHandler> HANDLERS = new ConcurrentHashMap<>();
-    private static List<ChannelFuture> channelFutures;
+    private static          List<ChannelFuture>  channelFutures;
+    private static volatile boolean              eventReuse;
+    private static volatile WriteBufferWaterMark defaultWaterMark;
+    private static volatile int                  pendingLimit = 4096;
+    private static volatile boolean              deduplication;
+    private static volatile boolean              entityTracking;
+    private static volatile boolean              chunkTracking;
+    private static volatile boolean              chunkPacing;
+    private static volatile boolean              movementAggregation;
+
+    /*
+     * Whether a per-connection feature resolves its NMS members on this server. Checked once: a feature that cannot is
+     * logged and stays off, instead of failing every connection.
+     */
+    private static final ClassValue<Boolean> SUPPORTED = new ClassValue<Boolean>()
+    {
+        @Override
+        protected Boolean computeValue(Class<?> feature)
+        {
+            try
+            {
+                Class.forName(feature.getName(), true, feature.getClassLoader());
+                return true;
+            }
+            catch (ClassNotFoundException | LinkageError e)
+            {
+                LOG.log(Level.WARNING, feature.getSimpleName() + " is not supported on this server, disabled.", e);
+                return false;
+            }
+        }
+    };
 
     /*
      * Injection
@@ -27,21 +68,41 @@ public final class Protocol
 
     public static void inject()
     {
-        long start = System.currentTimeMillis();
+        inject(null);
+    }
+
+    /**
+     * Inject, loading and saving the {@link MappingCache} in the data folder of a plugin.
+     *
+     * @param plugin the plugin owning the mapping cache, or <code>null</code> to disable it
+     * @see MappingCache
+     */
+    public static void inject(Plugin plugin)
+    {
+        long   start = System.currentTimeMillis();
+        Object trace = Telemetry.beginInjection();
         LOG.info("Injection started.");
         LOG.info("Sniffer is " + (SNIFFER ? "enabled." : "disabled."));
 
+        if (plugin != null)
+            MappingCache.load(plugin.getDataFolder());
 
-        Object mcServer      = NMSReflection.getValue(Bukkit.getServer(), "console");
-        Object srvConnection = NMSReflection.getFirstValueOfType(mcServer, "{nms}.ServerConnection");
-        channelFutures = NMSReflection.getFirstValueOfType(srvConnection, List.class); //Steal channelFutures list
+        Object mcServer      = ServerAccessors.CRAFT_SERVER.getServer(Bukkit.getServer());
+        Object srvConnection = ServerAccessors.MINECRAFT_SERVER.getServerConnection(mcServer);
+        channelFutures = ServerAccessors.SERVER_CONNECTION.getChannelFutures(srvConnection); //Steal channelFutures list
 
         for (ChannelFuture o : channelFutures)
             o.channel().pipeline().addFirst(ChannelFutureHandler.ID, ChannelFutureHandler.INSTANCE);
 
+        EventLoopMonitor.discover(channelFutures);
+        EventLoopMonitor.start(1, TimeUnit.SECONDS);
+
         for (Player player : Bukkit.getOnlinePlayers()) // /reload support
             injectPlayer(player);                       // (inject to already connected players)
 
+        MappingCache.save();
+        Telemetry.endInjection(trace, "inject", null, HANDLERS.size());
+
         long elapsed = System.currentTimeMillis() - start;
         LOG.info("Injection finished. (" + elapsed + " ms)");
     }
@@ -49,19 +110,32 @@ public final class Protocol
     private static void injectPlayer(Player player)
     {
         LOG.info("Injection to already connected player " + player.getName() + " [" + player.getAddress() + "].");
-        Channel ch = getChannel(player);
+        attach(getChannel(player));
+    }
+
+    static void attach(Channel channel)
+    {
+        attach(channel, false);
+    }
 
-        PacketHandler handler = new PacketHandler(ch);
-        ch.pipeline().addBefore("packet_handler", PacketHandler.ID, handler);
-        HANDLERS.put(ch.remoteAddress(), handler);
+    /*
+     * Add a packet handler before packet_handler. Also used by LoadGenerator on stand-in pipelines: simulated
+     * connections are registered under the unique address of their local client, and go through the same path as real
+     * ones, except what reaches outside the server (the exporter, the writability event).
+     */
+    static void attach(Channel channel, boolean simulated)
+    {
+        PacketHandler handler = new PacketHandler(channel, simulated);
+        channel.pipeline().addBefore("packet_handler", PacketHandler.ID, handler);
+        HANDLERS.put(channel.remoteAddress(), handler);
     }
 
     private static Channel getChannel(Player player)
-    { //Only called on startup - no reflection cache needed.
-        Object nmsPlayer        = NMSReflection.getValue(player, "entity");
-        Object playerConnection = NMSReflection.getValue(nmsPlayer, "playerConnection");
-        Object networkManager   = NMSReflection.getValue(playerConnection, "networkManager");
-        return NMSReflection.getFirstValueOfType(networkManager, Channel.class);
+    { //Only called on startup - accessors checked by the build, generated for its server version
+        Object nmsPlayer        = ServerAccessors.CRAFT_ENTITY.getHandle(player);
+        Object playerConnection = ServerAccessors.ENTITY_PLAYER.getConnection(nmsPlayer);
+        Object networkManager   = ServerAccessors.PLAYER_CONNECTION.getNetworkManager(playerConnection);
+        return ServerAccessors.NETWORK_MANAGER.getChannel(networkManager);
     }
 
     public static void clean()
@@ -71,6 +145,7 @@ public final class Protocol
         if (channelFutures == null)
             return;
 
+        Object trace = Telemetry.beginInjection();
         for (ChannelFuture o : channelFutures)
         {
             ChannelPipeline pp = o.channel().pipeline();
@@ -82,7 +157,9 @@ public final class Protocol
         {
             handler.channel.pipeline().remove(handler); //Remove all handlers
         }
-
+        EventLoopMonitor.stop();
+        LoadShedding.stopAll();
+        Telemetry.endInjection(trace, "clean", null, HANDLERS.size());
 
         long elapsed = System.currentTimeMillis() - start;
         LOG.info("Cleanup finished. (" + elapsed + " ms)");
@@ -102,26 +179,319 @@ public final class Protocol
         return true;
     }
 
+    /**
+     * Send packets at once: they are written in one event loop task and flushed once.
+     *
+     * @param to      the player
+     * @param packets the packets, in order
+     * @return <code>false</code> if the player is not connected
+     */
+    public static boolean sendPackets(Player to, Collection<?> packets)
+    {
+        return sendPackets(to.getAddress(), packets);
+    }
+
+    /**
+     * Send packets at once: they are written in one event loop task and flushed once.
+     *
+     * @param to      the address of the connection
+     * @param packets the packets, in order
+     * @return <code>false</code> if the address is not connected
+     */
+    public static boolean sendPackets(SocketAddress to, Collection<?> packets)
+    {
+        PacketHandler handler = HANDLERS.get(to);
+        if (handler == null) return false;
+        if (packets.isEmpty()) return true;
+
+        Channel  channel = handler.channel;
+        Object[] batch   = packets.toArray(); //Snapshot, the collection may be reused by the caller
+        channel.eventLoop().execute(() -> {
+            for (Object packet : batch)
+                channel.write(packet);
+            channel.flush();
+        });
+        return true;
+    }
+
+    /**
+     * Send a packet, respecting the writability of the channel.
+     *
+     * @param to     the player
+     * @param packet the packet
+     * @param policy what to do if the channel is not writable
+     * @return <code>false</code> if the player is not connected
+     */
+    public static boolean sendPacket(Player to, Object packet, SendPolicy policy)
+    {
+        return sendPacket(to.getAddress(), packet, policy);
+    }
+
+    /**
+     * Send a packet, respecting the writability of the channel.
+     *
+     * @param to     the address of the connection
+     * @param packet the packet
+     * @param policy what to do if the channel is not writable
+     * @return <code>false</code> if the address is not connected
+     */
+    public static boolean sendPacket(SocketAddress to, Object packet, SendPolicy policy)
+    {
+        PacketHandler handler = HANDLERS.get(to);
+        if (handler == null) return false;
+
+        EventLoop loop = handler.channel.eventLoop();
+        if (loop.inEventLoop())
+            handler.send(packet, policy);
+        else
+            loop.execute(() -> handler.send(packet, policy));
+        return true;
+    }
+
+    /**
+     * Set the write buffer water marks of a connection. Its channel becomes not writable when the outbound buffer goes
+     * above <code>high</code> bytes, and writable again when it goes below <code>low</code> bytes.
+     *
+     * @param player the player
+     * @param low    the low water mark
+     * @param high   the high water mark
+     * @return <code>false</code> if the player is not connected
+     */
+    public static boolean setWriteBufferWaterMark(Player player, int low, int high)
+    {
+        return setWriteBufferWaterMark(player.getAddress(), low, high);
+    }
+
+    /**
+     * Set the write buffer water marks of a connection. Its channel becomes not writable when the outbound buffer goes
+     * above <code>high</code> bytes, and writable again when it goes below <code>low</code> bytes.
+     *
+     * @param address the address of the connection
+     * @param low     the low water mark
+     * @param high    the high water mark
+     * @return <code>false</code> if the address is not connected
+     */
+    public static boolean setWriteBufferWaterMark(SocketAddress address, int low, int high)
+    {
+        PacketHandler handler = HANDLERS.get(address);
+        if (handler == null) return false;
+
+        handler.channel.config().setWriteBufferWaterMark(new WriteBufferWaterMark(low, high));
+        return true;
+    }
+
+    /**
+     * Set the write buffer water marks applied to new connections.
+     *
+     * @param waterMark the water marks, or <code>null</code> to keep the Netty defaults
+     */
+    public static void setDefaultWriteBufferWaterMark(WriteBufferWaterMark waterMark)
+    {
+        defaultWaterMark = waterMark;
+    }
+
+    /**
+     * Set the maximum number of packets held per connection by {@link SendPolicy#QUEUE} and
+     * {@link SendPolicy#DROP_OLDEST}.
+     *
+     * @param limit the limit, 4096 by default
+     */
+    public static void setPendingLimit(int limit)
+    {
+        if (limit < 0) throw new IllegalArgumentException("limit < 0");
+        pendingLimit = limit;
+    }
+
     public static boolean receivePacket(Player from, Object packet)
     {
         return receivePacket(from.getAddress(), packet);
     }
 
+    /**
+     * Receive a packet as if the client sent it, going through the filters and listeners. The packet is injected on
+     * the event loop of the connection.
+     *
+     * @param from   the address of the connection
+     * @param packet the packet
+     * @return <code>false</code> if the address is not connected
+     */
     public static boolean receivePacket(SocketAddress from, Object packet)
     {
         PacketHandler handler = HANDLERS.get(from);
         if (handler == null) return false;
 
-        handler.channel.pipeline().context("encoder").fireChannelRead(packet);
+        handler.inject(new Object[]{packet}, true, handler.channel.eventLoop().newPromise());
         return true;
     }
 
-    private static <T extends PacketEvent> boolean callEvent(T event)
+    /**
+     * Receive packets as if the client sent them, in one event loop task.
+     *
+     * @param from     the player
+     * @param packets  the packets, in order
+     * @param dispatch whether the packets go through the filters and listeners of this library, or straight to the
+     *                 server
+     * @return a future completed once every packet was passed to the server, or failed if the player is not
+     * connected
+     */
+    public static Future<Void> receivePackets(Player from, Collection<?> packets, boolean dispatch)
+    {
+        return receivePackets(from.getAddress(), packets, dispatch);
+    }
+
+    /**
+     * Receive packets as if the client sent them, in one event loop task.
+     *
+     * @param from     the address of the connection
+     * @param packets  the packets, in order
+     * @param dispatch whether the packets go through the filters and listeners of this library, or straight to the
+     *                 server
+     * @return a future completed once every packet was passed to the server, or failed if the address is not
+     * connected
+     */
+    public static Future<Void> receivePackets(SocketAddress from, Collection<?> packets, boolean dispatch)
     {
-        Bukkit.getPluginManager().callEvent(event);
+        PacketHandler handler = HANDLERS.get(from);
+        if (handler == null)
+            return ImmediateEventExecutor.INSTANCE.newFailedFuture(
+                    new IllegalStateException(from + " is not connected"));
+
+        Promise<Void> promise = handler.channel.eventLoop().newPromise();
+        handler.inject(packets.toArray(), dispatch, promise); //Snapshot, the collection may be reused by the caller
+        return promise;
+    }
+
+    /**
+     * Enable or disable event reuse. When enabled, each connection dispatches one mutable event instance per
+     * direction instead of allocating a new one for every packet.
+     * <p>
+     * This is safe because a connection's packets are always dispatched on its event loop, but listeners must call
+     * {@link PacketEvent#snapshot()} if they need to keep the event.
+     *
+     * @param reuse whether to reuse event instances
+     */
+    public static void setEventReuse(boolean reuse) {eventReuse = reuse;}
+
+    public static boolean isEventReuse()            {return eventReuse;}
+
+    /**
+     * Enable or disable the deduplication of outgoing packets. When enabled, entity metadata, entity equipment, team
+     * and scoreboard packets identical to the last one of their kind sent to the same player, for the same entity
+     * or name, are dropped. Each connection uses 20 KiB to remember the last packets.
+     * <p>
+     * Packets sent through a {@link PacketCache} are not seen: do not mix both for the same kinds of packets.
+     *
+     * @param enabled whether to drop duplicate packets
+     */
+    public static void setDeduplication(boolean enabled) {deduplication = enabled;}
+
+    public static boolean isDeduplication()              {return deduplication;}
+
+    /**
+     * Enable or disable the {@link EntityIndex} of each connection. Disabled by default. A connection indexes from its
+     * next packet: enable it before players join.
+     *
+     * @param enabled whether to index the entities known by each client
+     */
+    public static void setEntityTracking(boolean enabled) {entityTracking = enabled;}
+
+    public static boolean isEntityTracking()              {return entityTracking;}
+
+    /**
+     * Enable or disable the {@link ChunkTracker} of each connection. Disabled by default. A connection tracks from its
+     * next packet: enable it before players join.
+     *
+     * @param enabled whether to track the chunks loaded by each client
+     */
+    public static void setChunkTracking(boolean enabled) {chunkTracking = enabled;}
+
+    public static boolean isChunkTracking()              {return chunkTracking;}
+
+    /**
+     * Enable or disable chunk pacing, see {@link ChunkPacer}. Disabled by default. Once disabled, the held chunks are
+     * released with the next outgoing packet of their connection, or the next tick.
+     *
+     * @param enabled whether to pace chunk packets
+     */
+    public static void setChunkPacing(boolean enabled) {chunkPacing = enabled;}
+
+    public static boolean isChunkPacing()              {return chunkPacing;}
+
+    /**
+     * Enable or disable the aggregation of movement packets while the server is behind, see
+     * {@link MovementAggregator}. Disabled by default.
+     *
+     * @param enabled whether to merge movements while the server is behind
+     */
+    public static void setMovementAggregation(boolean enabled) {movementAggregation = enabled;}
+
+    public static boolean isMovementAggregation()              {return movementAggregation;}
+
+    private static <T extends PacketEvent> boolean callEvent(T event, LoadShedding.Probe probe)
+    {
+        boolean shedding = probe.isShedding();
+        PacketListeners.dispatch(event, false, shedding);
+        if (shedding)
+            callCriticalListeners(event);
+        else
+            Bukkit.getPluginManager().callEvent(event);
+        PacketListeners.dispatch(event, true, shedding);
+
+        if (!probe.isSheddingObservers())
+            AsyncDispatcher.dispatch(event);
         return event.isCancelled();
     }
 
+    /*
+     * Same as PluginManager#callEvent, without the BestEffort listeners.
+     */
+    private static void callCriticalListeners(PacketEvent event)
+    {
+        for (RegisteredListener registered : event.getHandlers().getRegisteredListeners())
+        {
+            if (registered.getListener() instanceof BestEffort || !registered.getPlugin().isEnabled())
+                continue;
+
+            try
+            {
+                registered.callEvent(event);
+            }
+            catch (EventException | RuntimeException e)
+            {
+                LOG.log(Level.SEVERE, "Could not pass event " + event.getEventName() + " to "
+                                      + registered.getPlugin().getName(), e);
+            }
+        }
+    }
+
+    static Collection<Channel> channels()
+    {
+        List<Channel> channels = new ArrayList<>(HANDLERS.size());
+        for (PacketHandler handler : HANDLERS.values())
+            channels.add(handler.channel);
+        return channels;
+    }
+
+    static Channel channelOf(SocketAddress address)
+    {
+        PacketHandler handler = HANDLERS.get(address);
+        return handler == null ? null : handler.channel;
+    }
+
+    static EntityIndex entityIndexOf(SocketAddress address)
+    {
+        PacketHandler handler = HANDLERS.get(address);
+        return handler == null ? null : handler.entities;
+    }
+
+    static ChunkTracker chunkTrackerOf(SocketAddress address)
+    {
+        PacketHandler handler = HANDLERS.get(address);
+        return handler == null ? null : handler.chunks;
+    }
+
+    static boolean isSupported(Class<?> feature) {return SUPPORTED.get(feature);}
+
     static Player getPlayer(SocketAddress address)
     {
         for (Player player : Bukkit.getOnlinePlayers())
@@ -157,12 +527,10 @@ public final class Protocol
         @Override
         public void channelRead(ChannelHandlerContext ctx, Object msg) throws Exception
         {
-            PacketHandler handler = new PacketHandler(channel);
-            HANDLERS.put(channel.remoteAddress(), handler);
-
-            ChannelPipeline pipeline = ctx.channel().pipeline();
-            pipeline.addBefore("packet_handler", PacketHandler.ID, handler);
-            pipeline.remove(this); //Auto-remove
+            Object trace = Telemetry.beginInjection();
+            attach(channel);
+            ctx.pipeline().remove(this); //Auto-remove
+            Telemetry.endInjection(trace, "connection", channel.remoteAddress(), 1);
 
             super.channelRead(ctx, msg);
         }
@@ -173,7 +541,20 @@ public final class Protocol
     public static final class PacketHandler extends ChannelDuplexHandler
     {
         private static final String ID = "NMSProtocol-PacketHandler";
-        private final Channel channel;
+        private final Channel                channel;
+        private final SendPacketEvent        sendEvent;
+        private final ReceivePacketEvent     receiveEvent;
+        private final PacketRewriter.Context rewriteContext;
+        private       boolean                sending; //Reused events are busy (nested dispatch, eg. send while sending)
+        private       boolean                receiving;
+        private final Deque<Object>          pending  = new ArrayDeque<>(); //Held until writable, event loop only
+        private       EntityIndex            entities; //Lazy, only when enabled -- as the following
+        private       ChunkTracker           chunks;
+        private       ChunkPacer             pacer;
+        private       MovementAggregator     moves;
+        private       SendDeduplicator       deduplicator;
+        private final LoadShedding.Probe     probe;
+        private final boolean                simulated; //LoadGenerator connection, muted outside the server
 
         @Override
         public void write(ChannelHandlerContext ctx, Object msg, ChannelPromise promise) throws Exception
@@ -181,9 +562,26 @@ public final class Protocol
             if (SNIFFER)
                 debugPacket(msg, false);
 
-            SocketAddress remote = channel.remoteAddress();
-            if (!callEvent(new SendPacketEvent(msg, remote))) //if event not cancelled
-                super.write(ctx, msg, promise);
+            if (!simulated && !probe.isSheddingObservers())
+                PacketExporter.export(msg, false, channel.remoteAddress());
+            Object out = dispatch(msg, false);
+            if (out == null) //Filtered or event cancelled
+            {
+                promise.trySuccess(); //Listeners may release what the packet holds
+                return;
+            }
+
+            if (isDuplicate(out))
+            {
+                promise.trySuccess(); //Already sent
+                return;
+            }
+            if (pacer() != null && pacer.hold(ctx, out, promise))
+                return;
+
+            observeEntity(out);
+            observeChunk(out);
+            super.write(ctx, out, promise);
         }
 
         @Override
@@ -192,19 +590,283 @@ public final class Protocol
             if (SNIFFER)
                 debugPacket(msg, true);
 
-            SocketAddress remote = channel.remoteAddress();
-            if (!callEvent(new ReceivePacketEvent(msg, remote))) //if event not cancelled
-                super.channelRead(ctx, msg);
+            if (!simulated && !probe.isSheddingObservers())
+                PacketExporter.export(msg, true, channel.remoteAddress());
+            if (PluginMessageRouter.route(msg, channel.remoteAddress())) //Consumed, off the main thread
+                return;
+            Object in = dispatch(msg, true);
+            if (in != null) //if not filtered and event not cancelled
+            {
+                if (pacer != null)
+                    pacer.observeIncoming(in);
+                if (moves() == null || !moves.read(ctx, in)) //Held while the server is behind
+                    super.channelRead(ctx, in);
+            }
+        }
+
+        /*
+         * Filter, call the event and rewrite (outgoing only). Return the packet to forward, or null if cancelled.
+         */
+        private Object dispatch(Object msg, boolean incoming)
+        {
+            Object trace = Telemetry.beginDispatch();
+            Object out;
+            Object packet = PacketFilter.apply(rewriteContext, msg); //Rewrite rules work on a copy
+            if (packet == null)
+            {
+                Telemetry.cancelled(msg, incoming, channel.remoteAddress(), true);
+                out = null;
+            }
+            else if (incoming ? callReceiveEvent(packet) : callSendEvent(packet))
+            {
+                Telemetry.cancelled(msg, incoming, channel.remoteAddress(), false);
+                out = null;
+            }
+            else
+                out = incoming ? packet : RewritePipeline.apply(rewriteContext, packet, packet != msg);
+
+            Telemetry.endDispatch(trace, msg, incoming, out == null);
+            return out;
+        }
+
+        private boolean isDuplicate(Object msg)
+        {
+            if (!deduplication)
+            {
+                deduplicator = null; //Stale once disabled: invalidations are not observed anymore
+                return false;
+            }
+
+            if (deduplicator == null)
+            {
+                if (!isSupported(SendDeduplicator.class))
+                    return false;
+                deduplicator = new SendDeduplicator();
+            }
+            return deduplicator.isDuplicate(msg);
+        }
+
+        private void observeEntity(Object msg)
+        {
+            if (!entityTracking)
+                entities = null; //Stale once disabled
+            else if (entities == null && isSupported(EntityIndex.class))
+                entities = new EntityIndex();
+
+            if (entities != null)
+                entities.observe(msg);
+        }
+
+        /*
+         * Also called by the pacer when it releases a chunk.
+         */
+        private void observeChunk(Object msg)
+        {
+            if (!chunkTracking)
+                chunks = null;
+            else if (chunks == null && isSupported(ChunkTracker.class))
+                chunks = new ChunkTracker();
+
+            if (chunks != null)
+                chunks.observe(msg);
+        }
+
+        /*
+         * Kept once created: a disabled pacer or aggregator still releases what it holds.
+         */
+        private ChunkPacer pacer()
+        {
+            if (pacer == null && chunkPacing && isSupported(ChunkPacer.class))
+                pacer = new ChunkPacer(this::observeChunk);
+            return pacer;
+        }
+
+        private MovementAggregator moves()
+        {
+            if (moves == null && movementAggregation && isSupported(MovementAggregator.class))
+                moves = new MovementAggregator();
+            return moves;
+        }
+
+        /*
+         * Always called from the event loop of the channel.
+         */
+        private boolean callSendEvent(Object msg)
+        {
+            if (!eventReuse || sending)
+                return callEvent(new SendPacketEvent(msg, channel.remoteAddress()), probe);
+
+            sending = true;
+            try
+            {
+                return callEvent(sendEvent.reuse(msg), probe);
+            }
+            finally
+            {
+                sendEvent.reuse(null); //Do not retain the packet
+                sending = false;
+            }
+        }
+
+        private boolean callReceiveEvent(Object msg)
+        {
+            if (!eventReuse || receiving)
+                return callEvent(new ReceivePacketEvent(msg, channel.remoteAddress()), probe);
+
+            receiving = true;
+            try
+            {
+                return callEvent(receiveEvent.reuse(msg), probe);
+            }
+            finally
+            {
+                receiveEvent.reuse(null);
+                receiving = false;
+            }
+        }
+
+        /*
+         * Always called from the event loop of the channel.
+         */
+        private void send(Object packet, SendPolicy policy)
+        {
+            if (channel.isWritable() && pending.isEmpty()) //Queued packets go first
+            {
+                channel.writeAndFlush(packet);
+                return;
+            }
+
+            switch (policy)
+            {
+                case QUEUE:
+                    if (pending.size() < pendingLimit)
+                        pending.add(packet);
+                    break;
+                case DROP_OLDEST:
+                    if (pending.size() >= pendingLimit)
+                        pending.poll();
+                    if (pendingLimit > 0)
+                        pending.add(packet);
+                    break;
+                case DROP_NEW:
+                    break;
+                case DISCONNECT:
+                    if (channel.isWritable() && pending.size() < pendingLimit)
+                    {
+                        pending.add(packet); //Writable, only behind queued packets
+                        break;
+                    }
+                    pending.clear();
+                    channel.close();
+                    break;
+            }
         }
 
-        private PacketHandler(Channel channel) {this.channel = channel;}
+        private void inject(Object[] packets, boolean dispatch, Promise<Void> promise)
+        {
+            EventLoop loop = channel.eventLoop();
+            if (loop.inEventLoop())
+                receive(packets, dispatch, promise);
+            else
+                loop.execute(() -> receive(packets, dispatch, promise));
+        }
+
+        /*
+         * On the event loop. The packets go through this handler, or skip it and go straight to packet_handler.
+         */
+        private void receive(Object[] packets, boolean dispatch, Promise<Void> promise)
+        {
+            ChannelHandlerContext ctx = channel.pipeline().context(this);
+            if (ctx == null)
+            {
+                promise.tryFailure(new IllegalStateException(channel.remoteAddress() + " is not connected"));
+                return;
+            }
+
+            try
+            {
+                for (Object packet : packets)
+                {
+                    if (dispatch)
+                        channelRead(ctx, packet);
+                    else
+                        ctx.fireChannelRead(packet);
+                }
+                promise.trySuccess(null);
+            }
+            catch (Exception e)
+            {
+                promise.tryFailure(e);
+            }
+        }
+
+        private void drainPending()
+        {
+            if (pending.isEmpty()) return;
+
+            while (channel.isWritable() && !pending.isEmpty())
+                channel.write(pending.poll());
+            channel.flush();
+        }
+
+        @Override
+        public void channelWritabilityChanged(ChannelHandlerContext ctx) throws Exception
+        {
+            boolean writable = channel.isWritable();
+            if (writable)
+                drainPending();
+
+            if (!simulated)
+                Bukkit.getPluginManager().callEvent(new WritabilityChangeEvent(channel.remoteAddress(), writable));
+            ctx.fireChannelWritabilityChanged();
+        }
+
+        private PacketHandler(Channel channel, boolean simulated)
+        {
+            this.channel = channel;
+            this.simulated = simulated;
+            probe = LoadShedding.probe(channel.eventLoop());
+            WriteBufferWaterMark waterMark = defaultWaterMark;
+            if (waterMark != null)
+                channel.config().setWriteBufferWaterMark(waterMark);
+
+            SocketAddress remote = channel.remoteAddress();
+            sendEvent = new SendPacketEvent(null, remote);
+            receiveEvent = new ReceivePacketEvent(null, remote);
+            rewriteContext = new PacketRewriter.Context(remote);
+        }
 
         @Override
         public void channelUnregistered(ChannelHandlerContext ctx) throws Exception
         {
-            HANDLERS.remove(channel.remoteAddress());
+            HANDLERS.remove(channel.remoteAddress(), this);
+            pending.clear();
+            if (pacer != null)
+                pacer.discard();
+            if (moves != null)
+                moves.discard();
             ctx.fireChannelUnregistered();
         }
+
+        @Override
+        public void handlerRemoved(ChannelHandlerContext ctx) throws Exception
+        {
+            boolean active = channel.isActive(); //Cleanup: held chunks and movements still go
+            if (pacer != null)
+            {
+                if (active)
+                    pacer.flushAll(ctx);
+                else
+                    pacer.discard();
+            }
+            if (moves != null)
+            {
+                if (active)
+                    moves.flush(ctx);
+                else
+                    moves.discard();
+            }
+        }
     }
 
     private static void debugPacket(Object o, boolean in)
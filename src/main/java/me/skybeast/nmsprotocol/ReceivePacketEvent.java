@@ -10,4 +10,11 @@ public class ReceivePacketEvent extends PacketEvent
     }
 
     @Override public boolean isIncoming() {return true;}
+
+    @Override public ReceivePacketEvent snapshot()
+    {
+        ReceivePacketEvent copy = new ReceivePacketEvent(getPacket(), getAddress());
+        copy.setCancelled(isCancelled());
+        return copy;
+    }
 }
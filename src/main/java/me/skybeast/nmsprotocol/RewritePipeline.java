@@ -0,0 +1,111 @@
+package me.skybeast.nmsprotocol;
+
+import me.skybeast.nmsprotocol.PacketRewriter.Context;
+import org.bukkit.event.EventPriority;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The registered {@link PacketRewriter}s, chained per concrete packet class.
+ *
+ * @author SkyBeast
+ */
+final class RewritePipeline
+{
+    private static final PacketRewriter[] NONE = new PacketRewriter[0];
+
+    private static volatile Chains chains = new Chains(new Entry[0]);
+
+    static synchronized void register(Class<?> packetClass, EventPriority priority, PacketRewriter rewriter)
+    {
+        Entry[] entries = Arrays.copyOf(chains.entries, chains.entries.length + 1);
+        entries[entries.length - 1] = new Entry(packetClass, priority, rewriter);
+        chains = new Chains(entries);
+    }
+
+    static synchronized void unregister(PacketRewriter rewriter)
+    {
+        Entry[] entries = Arrays.stream(chains.entries).filter(entry -> entry.rewriter != rewriter)
+                                .toArray(Entry[]::new);
+        if (entries.length != chains.entries.length)
+            chains = new Chains(entries);
+    }
+
+    /*
+     * Run the chain. Return the packet to write: the original one or its only copy. If the packet is already a copy,
+     * the rewriters edit it in place.
+     */
+    static Object apply(Context context, Object packet, boolean copied)
+    {
+        Chains current = chains;
+        if (current.entries.length == 0)
+            return packet;
+
+        PacketRewriter[] chain = current.compiled.computeIfAbsent(packet.getClass(), current::chain);
+        if (chain.length == 0)
+            return packet;
+
+        context.reset(packet, copied);
+        try
+        {
+            for (PacketRewriter rewriter : chain)
+                rewriter.rewrite(context);
+            return context.getPacket();
+        }
+        finally
+        {
+            context.reset(null); //Do not retain the packet
+        }
+    }
+
+    /*
+     * The registered entries and their chains, replaced as a whole on each change: a chain built from old entries can
+     * only land in the old map.
+     */
+    private static final class Chains
+    {
+        private final Entry[]                         entries;
+        private final Map<Class<?>, PacketRewriter[]> compiled = new ConcurrentHashMap<>();
+
+        private Chains(Entry[] entries) {this.entries = entries;}
+
+        private PacketRewriter[] chain(Class<?> type)
+        {
+            List<Entry> matching = new ArrayList<>();
+            for (Entry entry : entries)
+                if (entry.packetClass.isAssignableFrom(type))
+                    matching.add(entry);
+
+            if (matching.isEmpty())
+                return NONE;
+
+            matching.sort(Comparator.comparing(entry -> entry.priority)); //Stable: registration order kept
+
+            PacketRewriter[] chain = new PacketRewriter[matching.size()];
+            for (int i = 0; i < chain.length; i++)
+                chain[i] = matching.get(i).rewriter;
+            return chain;
+        }
+    }
+
+    private static final class Entry
+    {
+        private final Class<?>       packetClass;
+        private final EventPriority  priority;
+        private final PacketRewriter rewriter;
+
+        private Entry(Class<?> packetClass, EventPriority priority, PacketRewriter rewriter)
+        {
+            this.packetClass = packetClass;
+            this.priority = priority;
+            this.rewriter = rewriter;
+        }
+    }
+
+    private RewritePipeline() {}
+}
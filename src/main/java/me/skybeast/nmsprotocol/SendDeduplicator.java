@@ -0,0 +1,254 @@
+package me.skybeast.nmsprotocol;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import me.skybeast.nmsprotocol.NMSReflection.FieldAccessor;
+import me.skybeast.nmsprotocol.NMSReflection.NMSReflectionException;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Drops outgoing packets identical to the last one of the same kind sent to the same viewer: entity metadata and
+ * equipment (per entity and slot), teams, objectives, scores and display slots.
+ * <p>
+ * The state is a fixed-size direct-mapped table of (key, content hash) pairs, where the key is the packet kind and
+ * the entity id or name, and the hash is a 64-bit hash of the serialized packet. A slot collision only forgets the
+ * previous entry, so memory is bounded and a packet is never dropped unless it matches the last one sent for its
+ * key. Entity entries are forgotten when the entity is destroyed or spawned, score and display slot entries when their
+ * objective is created or removed (the client clears them), the scores of a name when it is removed from every
+ * objective, and everything on join and respawn.
+ * <p>
+ * One instance per connection, used on its event loop only. Enabled by {@link Protocol#setDeduplication(boolean)}.
+ *
+ * @author SkyBeast
+ */
+final class SendDeduplicator
+{
+    private static final int SLOT_BITS = 10;
+    private static final int SLOTS     = 1 << SLOT_BITS; //24 KiB per connection
+
+    private static final int METADATA  = 1;
+    private static final int EQUIPMENT = 2; //+ slot ordinal, 6 slots
+    private static final int TEAM      = 8;
+    private static final int OBJECTIVE = 9;
+    private static final int SCORE     = 10;
+    private static final int DISPLAY   = 11;
+
+    private static final Map<Class<?>, Rule> RULES  = new HashMap<>();
+    private static final ClassValue<Rule>    LOOKUP = new ClassValue<Rule>()
+    {
+        @Override
+        protected Rule computeValue(Class<?> type) {return RULES.getOrDefault(type, Rule.NONE);}
+    };
+
+    static
+    {
+        FieldAccessor<Integer> metadataId = firstInt("PacketPlayOutEntityMetadata");
+        rule("PacketPlayOutEntityMetadata", (dedup, packet) -> key(METADATA, metadataId.get(packet)));
+
+        FieldAccessor<Integer> equipmentId   = firstInt("PacketPlayOutEntityEquipment");
+        FieldAccessor<Enum<?>> equipmentSlot = NMSReflection.getFirstFieldOfTypeAccessor(
+                "{nms}.PacketPlayOutEntityEquipment", "{nms}.EnumItemSlot");
+        rule("PacketPlayOutEntityEquipment", (dedup, packet) -> key(EQUIPMENT + equipmentSlot.get(packet).ordinal(),
+                                                                    equipmentId.get(packet)));
+
+        FieldAccessor<String> teamName = firstString("PacketPlayOutScoreboardTeam");
+        rule("PacketPlayOutScoreboardTeam", (dedup, packet) -> key(TEAM, teamName.get(packet).hashCode()));
+
+        FieldAccessor<String>  objectiveName = firstString("PacketPlayOutScoreboardObjective");
+        FieldAccessor<Integer> objectiveMode = firstInt("PacketPlayOutScoreboardObjective");
+        rule("PacketPlayOutScoreboardObjective", (dedup, packet) -> {
+            int objective = objectiveName.get(packet).hashCode();
+            if (objectiveMode.get(packet) != 2) //Created or removed, not updated
+                dedup.forgetObjective(objective);
+            return key(OBJECTIVE, objective);
+        });
+
+        FieldAccessor<String> scoreName      = firstString("PacketPlayOutScoreboardScore");
+        FieldAccessor<String> scoreObjective = NMSReflection.getCountFieldOfTypeAccessor(
+                "{nms}.PacketPlayOutScoreboardScore", String.class, 1);
+        rule("PacketPlayOutScoreboardScore", (dedup, packet) -> {
+            String objective = scoreObjective.get(packet);
+            int    name      = scoreName.get(packet).hashCode();
+            if (objective.isEmpty()) //Removed from every objective
+            {
+                dedup.forgetScores(name);
+                return 0L;
+            }
+
+            dedup.owner = objective.hashCode();
+            dedup.name = name;
+            return key(SCORE, name * 31 + dedup.owner);
+        });
+
+        FieldAccessor<Integer> displaySlot      = firstInt("PacketPlayOutScoreboardDisplayObjective");
+        FieldAccessor<String>  displayObjective = firstString("PacketPlayOutScoreboardDisplayObjective");
+        rule("PacketPlayOutScoreboardDisplayObjective", (dedup, packet) -> {
+            String objective = displayObjective.get(packet);
+            dedup.owner = objective == null ? 0 : objective.hashCode(); //null clears the slot
+            return key(DISPLAY, displaySlot.get(packet));
+        });
+
+        FieldAccessor<int[]> destroyed = NMSReflection.getFirstFieldOfTypeAccessor(
+                "{nms}.PacketPlayOutEntityDestroy", int[].class);
+        rule("PacketPlayOutEntityDestroy", (dedup, packet) -> {
+            for (int id : destroyed.get(packet))
+                dedup.forgetEntity(id);
+            return 0L;
+        });
+
+        for (String spawn : new String[]{"PacketPlayOutSpawnEntity", "PacketPlayOutSpawnEntityLiving",
+                                         "PacketPlayOutNamedEntitySpawn", "PacketPlayOutSpawnEntityPainting",
+                                         "PacketPlayOutSpawnEntityExperienceOrb", "PacketPlayOutSpawnEntityWeather"})
+        {
+            FieldAccessor<Integer> id = firstInt(spawn);
+            rule(spawn, (dedup, packet) -> {
+                dedup.forgetEntity(id.get(packet)); //Spawn packets carry their own metadata
+                return 0L;
+            });
+        }
+
+        Rule forgetAll = (dedup, packet) -> {
+            Arrays.fill(dedup.keys, 0L);
+            return 0L;
+        };
+        rule("PacketPlayOutLogin", forgetAll);
+        rule("PacketPlayOutRespawn", forgetAll); //The client drops its world and scoreboard
+    }
+
+    private final long[]  keys    = new long[SLOTS]; //0 is empty: kinds start at 1
+    private final long[]  hashes  = new long[SLOTS];
+    private final int[]   owners  = new int[SLOTS]; //Objective name hash of score and display entries
+    private final int[]   names   = new int[SLOTS]; //Name hash of score entries
+    private final ByteBuf scratch = Unpooled.buffer(256);
+    private       int     owner; //Set by the rule of the packet being checked, as the following
+    private       int     name;
+
+    /*
+     * Return true if the packet must be dropped. Otherwise, remember it as the last one sent for its key.
+     */
+    boolean isDuplicate(Object packet)
+    {
+        owner = 0;
+        name = 0;
+        long key = LOOKUP.get(packet.getClass()).key(this, packet);
+        if (key == 0L)
+            return false;
+
+        long hash;
+        try
+        {
+            scratch.clear();
+            PacketSerializer.write(packet, scratch);
+            hash = hash(scratch);
+        }
+        catch (NMSReflectionException e)
+        {
+            return false; //Let the encoder report it
+        }
+
+        int slot = slot(key);
+        if (keys[slot] == key && hashes[slot] == hash)
+            return true;
+
+        keys[slot] = key;
+        hashes[slot] = hash;
+        owners[slot] = owner;
+        names[slot] = name;
+        return false;
+    }
+
+    /*
+     * Rare: a scan of the table is fine. A name hash collision only forgets more.
+     */
+    private void forgetObjective(int objective)
+    {
+        for (int slot = 0; slot < SLOTS; slot++)
+        {
+            int kind = (int) (keys[slot] >>> 32);
+            if ((kind == SCORE || kind == DISPLAY) && owners[slot] == objective)
+                keys[slot] = 0L;
+        }
+    }
+
+    /*
+     * Same for the scores of a name removed from every objective.
+     */
+    private void forgetScores(int name)
+    {
+        for (int slot = 0; slot < SLOTS; slot++)
+            if ((int) (keys[slot] >>> 32) == SCORE && names[slot] == name)
+                keys[slot] = 0L;
+    }
+
+    private void forgetEntity(int id)
+    {
+        for (int kind = METADATA; kind < TEAM; kind++)
+        {
+            long key  = key(kind, id);
+            int  slot = slot(key);
+            if (keys[slot] == key)
+                keys[slot] = 0L;
+        }
+    }
+
+    private static long key(int kind, int id)
+    {
+        return (long) kind << 32 | id & 0xFFFFFFFFL;
+    }
+
+    private static int slot(long key)
+    {
+        return (int) (key * 0x9E3779B97F4A7C15L >>> 64 - SLOT_BITS);
+    }
+
+    /*
+     * 8 bytes at a time, each round finalized by the SplitMix64 mixer.
+     */
+    private static long hash(ByteBuf buf)
+    {
+        long h   = buf.readableBytes();
+        int  i   = buf.readerIndex();
+        int  end = buf.writerIndex();
+        for (; i + 8 <= end; i += 8)
+            h = mix(h + buf.getLong(i));
+        for (; i < end; i++)
+            h = mix(h + (buf.getByte(i) & 0xFF));
+        return h;
+    }
+
+    private static long mix(long h)
+    {
+        h = (h ^ h >>> 30) * 0xBF58476D1CE4E5B9L;
+        h = (h ^ h >>> 27) * 0x94D049BB133111EBL;
+        return h ^ h >>> 31;
+    }
+
+    private static FieldAccessor<Integer> firstInt(String packet)
+    {
+        return NMSReflection.getFirstFieldOfTypeAccessor("{nms}." + packet, int.class);
+    }
+
+    private static FieldAccessor<String> firstString(String packet)
+    {
+        return NMSReflection.getFirstFieldOfTypeAccessor("{nms}." + packet, String.class);
+    }
+
+    private static void rule(String packet, Rule rule)
+    {
+        RULES.put(NMSReflection.getNMSClass(packet), rule);
+    }
+
+    /*
+     * Return the key of a packet, or 0 if it is never dropped.
+     */
+    @FunctionalInterface
+    private interface Rule
+    {
+        Rule NONE = (dedup, packet) -> 0L;
+
+        long key(SendDeduplicator dedup, Object packet);
+    }
+}
@@ -12,4 +12,11 @@ public class SendPacketEvent extends PacketEvent
     }
 
     @Override public boolean isIncoming() {return false;}
+
+    @Override public SendPacketEvent snapshot()
+    {
+        SendPacketEvent copy = new SendPacketEvent(getPacket(), getAddress());
+        copy.setCancelled(isCancelled());
+        return copy;
+    }
 }
@@ -0,0 +1,32 @@
+package me.skybeast.nmsprotocol;
+
+/**
+ * What {@link Protocol#sendPacket(java.net.SocketAddress, Object, SendPolicy)} does when the channel is not writable,
+ * that is when its outbound buffer is above the high water mark.
+ *
+ * @author SkyBeast
+ */
+public enum SendPolicy
+{
+    /**
+     * Hold the packet in the connection queue until the channel is writable again. Drop it if the queue is full.
+     */
+    QUEUE,
+
+    /**
+     * Hold the packet in the connection queue until the channel is writable again. Drop the oldest queued packet if
+     * the queue is full.
+     */
+    DROP_OLDEST,
+
+    /**
+     * Drop the packet.
+     */
+    DROP_NEW,
+
+    /**
+     * Close the connection. If the channel is writable but earlier packets are still queued, the packet is queued
+     * behind them instead, unless the queue is full.
+     */
+    DISCONNECT
+}
@@ -0,0 +1,74 @@
+package me.skybeast.nmsprotocol;
+
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelFuture;
+
+import java.util.List;
+
+/**
+ * The server members the library itself reaches, as {@link NMSAccessor}s: the build checks them against the server
+ * jar, and generates their implementations.
+ *
+ * @author SkyBeast
+ */
+final class ServerAccessors
+{
+    static final CraftServer      CRAFT_SERVER      = NMSAccessors.get(CraftServer.class);
+    static final MinecraftServer  MINECRAFT_SERVER  = NMSAccessors.get(MinecraftServer.class);
+    static final ServerConnection SERVER_CONNECTION = NMSAccessors.get(ServerConnection.class);
+    static final CraftEntity      CRAFT_ENTITY      = NMSAccessors.get(CraftEntity.class);
+    static final EntityPlayer     ENTITY_PLAYER     = NMSAccessors.get(EntityPlayer.class);
+    static final PlayerConnection PLAYER_CONNECTION = NMSAccessors.get(PlayerConnection.class);
+    static final NetworkManager   NETWORK_MANAGER   = NMSAccessors.get(NetworkManager.class);
+
+    private ServerAccessors() {}
+
+    @NMSAccessor("{cb}.CraftServer")
+    interface CraftServer
+    {
+        @NMSField("console")
+        Object getServer(Object craftServer);
+    }
+
+    @NMSAccessor("{nms}.MinecraftServer")
+    interface MinecraftServer
+    {
+        @NMSField(type = "{nms}.ServerConnection")
+        Object getServerConnection(Object server);
+    }
+
+    @NMSAccessor("{nms}.ServerConnection")
+    interface ServerConnection
+    {
+        @NMSField(type = "java.util.List")
+        List<ChannelFuture> getChannelFutures(Object connection);
+    }
+
+    @NMSAccessor("{cb}.entity.CraftEntity")
+    interface CraftEntity
+    {
+        @NMSField("entity")
+        Object getHandle(Object craftEntity);
+    }
+
+    @NMSAccessor("{nms}.EntityPlayer")
+    interface EntityPlayer
+    {
+        @NMSField("playerConnection")
+        Object getConnection(Object player);
+    }
+
+    @NMSAccessor("{nms}.PlayerConnection")
+    interface PlayerConnection
+    {
+        @NMSField("networkManager")
+        Object getNetworkManager(Object connection);
+    }
+
+    @NMSAccessor("{nms}.NetworkManager")
+    interface NetworkManager
+    {
+        @NMSField(type = "io.netty.channel.Channel")
+        Channel getChannel(Object networkManager);
+    }
+}
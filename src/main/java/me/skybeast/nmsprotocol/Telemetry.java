@@ -0,0 +1,52 @@
+package me.skybeast.nmsprotocol;
+
+import java.net.SocketAddress;
+
+/**
+ * Java 8 implementation of the Java Flight Recorder events of the library: every method is a no-op.
+ * <p>
+ * The multi-release jar replaces this class on Java 21 (<code>src/main/java21</code>), where packet dispatch,
+ * cancellations, injection and reflection resolution are recorded as <code>nmsprotocol.*</code> events. Both
+ * versions must keep the same members.
+ *
+ * @author SkyBeast
+ */
+final class Telemetry
+{
+    private Telemetry() {}
+
+    /*
+     * Return a token for endDispatch, or null if the event is disabled.
+     */
+    static Object beginDispatch()
+    {
+        return null;
+    }
+
+    static void endDispatch(Object token, Object packet, boolean incoming, boolean cancelled) {}
+
+    /*
+     * A packet was cancelled, by a filter or by a listener.
+     */
+    static void cancelled(Object packet, boolean incoming, SocketAddress address, boolean filtered) {}
+
+    static Object beginInjection()
+    {
+        return null;
+    }
+
+    /*
+     * Action is "inject", "clean" or "connection".
+     */
+    static void endInjection(Object token, String action, SocketAddress address, int connections) {}
+
+    static Object beginResolution()
+    {
+        return null;
+    }
+
+    /*
+     * Kind is "class", "field", "method" or "constructor".
+     */
+    static void endResolution(Object token, String kind, Class<?> owner, String member) {}
+}
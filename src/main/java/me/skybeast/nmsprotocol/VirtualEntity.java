@@ -0,0 +1,124 @@
+package me.skybeast.nmsprotocol;
+
+import org.bukkit.Location;
+import org.bukkit.World;
+
+import javax.annotation.Nonnull;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A client-side-only entity driven by a {@link VirtualEntityTracker}.
+ * <p>
+ * Implementations build the version-specific packets; the tracker decides when and to whom they are sent. Every
+ * method is called from the main thread.
+ *
+ * @author SkyBeast
+ */
+public abstract class VirtualEntity
+{
+    //Counts down from the top of the range, away from the server counter which counts up from 0
+    private static final AtomicInteger NEXT_ID = new AtomicInteger(Integer.MAX_VALUE);
+
+    private final int                  id = NEXT_ID.getAndDecrement();
+    private       World                world;
+    private       double               x, y, z;
+    private       float                yaw, pitch;
+    private       boolean              moved;
+    private       boolean              updated;
+                  VirtualEntityTracker tracker; //Owned by the tracker
+                  long                 cell;
+                  int                  seen;
+                  boolean              queued;
+                  Collection<?>        moveCache;
+                  Collection<?>        updateCache;
+
+    protected VirtualEntity(@Nonnull Location location)
+    {
+        world = location.getWorld();
+        x = location.getX();
+        y = location.getY();
+        z = location.getZ();
+        yaw = location.getYaw();
+        pitch = location.getPitch();
+    }
+
+    /**
+     * Build the packets spawning this entity for a viewer (spawn, metadata, equipment...).
+     *
+     * @return the packets, in order
+     */
+    protected abstract Collection<?> spawnPackets();
+
+    /**
+     * Build the packets moving this entity to its current position.
+     *
+     * @return the packets, in order
+     */
+    protected abstract Collection<?> movePackets();
+
+    /**
+     * Build the packets sent after {@link #markUpdated()} (metadata, equipment...).
+     *
+     * @return the packets, in order
+     */
+    protected Collection<?> updatePackets() {return Collections.emptyList();}
+
+    public final int getEntityId()                 {return id;}
+
+    public final World getWorld()                  {return world;}
+
+    public final double getX()                     {return x;}
+
+    public final double getY()                     {return y;}
+
+    public final double getZ()                     {return z;}
+
+    public final float getYaw()                    {return yaw;}
+
+    public final float getPitch()                  {return pitch;}
+
+    public final VirtualEntityTracker getTracker() {return tracker;}
+
+    /**
+     * Move the entity. Viewers get the move packets on the next tick of the tracker, or a spawn/destroy if they enter
+     * or leave the range. Changing the world respawns the entity.
+     *
+     * @param location the new location
+     */
+    public final void teleport(@Nonnull Location location)
+    {
+        World previous = world;
+        world = location.getWorld();
+        x = location.getX();
+        y = location.getY();
+        z = location.getZ();
+        yaw = location.getYaw();
+        pitch = location.getPitch();
+        moved = true;
+
+        if (tracker != null)
+            tracker.moved(this, previous);
+    }
+
+    /**
+     * Schedule the {@link #updatePackets()} for the current viewers on the next tick of the tracker.
+     */
+    public final void markUpdated()
+    {
+        updated = true;
+        if (tracker != null)
+            tracker.markDirty(this);
+    }
+
+    final boolean isMoved()         {return moved;}
+
+    final boolean isUpdated()       {return updated;}
+
+    final void clearDirty()
+    {
+        moved = false;
+        updated = false;
+    }
+}
@@ -0,0 +1,335 @@
+package me.skybeast.nmsprotocol;
+
+import io.netty.util.collection.IntObjectHashMap;
+import io.netty.util.collection.LongObjectHashMap;
+import org.bukkit.Bukkit;
+import org.bukkit.Location;
+import org.bukkit.World;
+import org.bukkit.entity.Player;
+import org.bukkit.event.EventHandler;
+import org.bukkit.event.EventPriority;
+import org.bukkit.event.HandlerList;
+import org.bukkit.event.Listener;
+import org.bukkit.event.player.PlayerChangedWorldEvent;
+import org.bukkit.event.player.PlayerRespawnEvent;
+import org.bukkit.plugin.Plugin;
+import org.bukkit.scheduler.BukkitTask;
+
+import javax.annotation.Nonnull;
+import java.util.*;
+
+/**
+ * Drive {@link VirtualEntity}s with a spatial grid index.
+ * <p>
+ * Entities are bucketed in square cells whose side is the view range, so each viewer only checks the entities of the
+ * 3x3 cells around it instead of every entity. Spawn and destroy packets are sent when a viewer enters or leaves the
+ * range of an entity; move and update packets only to the viewers already seeing it. Every packet for a viewer is
+ * written in one batch per tick, and the destroyed entities of a tick share a single destroy packet.
+ * <p>
+ * The client drops every entity when it respawns, changes world or joins: its viewer is reset then, and the entities
+ * in range are spawned again on the next tick. Respawns and world changes are observed once {@link #start(Plugin)}
+ * is called.
+ * <p>
+ * Not thread-safe: use it from the main thread.
+ *
+ * @author SkyBeast
+ */
+public final class VirtualEntityTracker
+{
+    private static final PacketFactory.Creator<Object> DESTROY =
+            PacketFactory.of("{nms}.PacketPlayOutEntityDestroy").constructor(int[].class);
+
+    private final double                                             range;
+    private final double                                             rangeSquared;
+    private final Map<World, LongObjectHashMap<List<VirtualEntity>>> grid     = new HashMap<>();
+    private final Set<VirtualEntity>                                 entities = Collections.newSetFromMap(
+            new IdentityHashMap<>());
+    private final Map<UUID, Viewer>                                  viewers  = new HashMap<>();
+    private final List<VirtualEntity>                                dirty    = new ArrayList<>();
+    private final Listener                                           resets   = new ViewerResets();
+    private       BukkitTask                                         task;
+    private       int                                                stamp;
+    private       int                                                pass;
+
+    /**
+     * Create a tracker.
+     *
+     * @param range the view range, in blocks
+     */
+    public VirtualEntityTracker(double range)
+    {
+        if (range <= 0) throw new IllegalArgumentException("range <= 0");
+        this.range = range;
+        rangeSquared = range * range;
+    }
+
+    /**
+     * Tick every server tick.
+     *
+     * @param plugin the plugin owning the task
+     */
+    public void start(@Nonnull Plugin plugin)
+    {
+        if (task == null)
+        {
+            task = Bukkit.getScheduler().runTaskTimer(plugin, this::tick, 1L, 1L);
+            Bukkit.getPluginManager().registerEvents(resets, plugin);
+        }
+    }
+
+    /**
+     * Stop ticking, and destroy every entity for its viewers.
+     */
+    public void stop()
+    {
+        if (task != null)
+        {
+            task.cancel();
+            task = null;
+            HandlerList.unregisterAll(resets);
+        }
+
+        for (Viewer viewer : viewers.values())
+            if (!viewer.visible.isEmpty())
+                Protocol.sendPacket(viewer.player, destroyPacket(viewer.visible.keySet()));
+        viewers.clear();
+    }
+
+    public double getRange()                       {return range;}
+
+    public Collection<VirtualEntity> getEntities() {return Collections.unmodifiableSet(entities);}
+
+    /**
+     * Start tracking an entity. It is spawned for the viewers in range on the next tick.
+     *
+     * @param entity the entity
+     * @throws IllegalStateException if the entity is already tracked
+     */
+    public void add(@Nonnull VirtualEntity entity)
+    {
+        if (entity.tracker != null)
+            throw new IllegalStateException("Entity " + entity.getEntityId() + " is already tracked");
+
+        entity.tracker = this;
+        entities.add(entity);
+        index(entity);
+    }
+
+    /**
+     * Stop tracking an entity. It is destroyed for its viewers on the next tick.
+     *
+     * @param entity the entity
+     */
+    public void remove(@Nonnull VirtualEntity entity)
+    {
+        if (entity.tracker != this)
+            return;
+
+        unindex(entity, entity.getWorld());
+        entities.remove(entity);
+        entity.tracker = null;
+    }
+
+    /**
+     * Run one tick: spawn, destroy, move and update entities for every online player.
+     */
+    public void tick()
+    {
+        int tick = ++stamp;
+        for (Player player : Bukkit.getOnlinePlayers())
+        {
+            Viewer viewer = viewers.computeIfAbsent(player.getUniqueId(), uuid -> new Viewer(player));
+            if (viewer.player != player) //Relogged
+            {
+                viewer.player = player;
+                viewer.visible.clear();
+            }
+            viewer.stamp = tick;
+            update(viewer);
+        }
+
+        viewers.values().removeIf(viewer -> viewer.stamp != tick); //Disconnected
+
+        for (VirtualEntity entity : dirty)
+        {
+            entity.clearDirty();
+            entity.moveCache = null;
+            entity.updateCache = null;
+            entity.queued = false;
+        }
+        dirty.clear();
+    }
+
+    private void update(Viewer viewer)
+    {
+        Location     location = viewer.player.getLocation();
+        double       x        = location.getX();
+        double       y        = location.getY();
+        double       z        = location.getZ();
+        int          cellX    = cell(x);
+        int          cellZ    = cell(z);
+        int          seen     = ++pass;
+        List<Object> out      = viewer.out;
+
+        LongObjectHashMap<List<VirtualEntity>> cells = grid.get(location.getWorld());
+        if (cells != null)
+            for (int cx = cellX - 1; cx <= cellX + 1; cx++)
+                for (int cz = cellZ - 1; cz <= cellZ + 1; cz++)
+                {
+                    List<VirtualEntity> bucket = cells.get(key(cx, cz));
+                    if (bucket == null)
+                        continue;
+
+                    for (VirtualEntity entity : bucket)
+                    {
+                        double dx = entity.getX() - x, dy = entity.getY() - y, dz = entity.getZ() - z;
+                        if (dx * dx + dy * dy + dz * dz > rangeSquared)
+                            continue;
+
+                        entity.seen = seen;
+                        if (viewer.visible.put(entity.getEntityId(), entity) == null)
+                            out.addAll(entity.spawnPackets()); //Entered the range
+                        else
+                        {
+                            if (entity.isMoved())
+                                out.addAll(moves(entity));
+                            if (entity.isUpdated())
+                                out.addAll(updates(entity));
+                        }
+                    }
+                }
+
+        //Left the range, or removed
+        int[] destroyed = null;
+        int   count     = 0;
+        for (Iterator<VirtualEntity> it = viewer.visible.values().iterator(); it.hasNext(); )
+        {
+            VirtualEntity entity = it.next();
+            if (entity.seen == seen && entity.tracker == this)
+                continue;
+
+            if (destroyed == null)
+                destroyed = new int[Math.min(viewer.visible.size(), 64)];
+            else if (count == destroyed.length)
+                destroyed = Arrays.copyOf(destroyed, count << 1);
+            destroyed[count++] = entity.getEntityId();
+            it.remove();
+        }
+
+        if (destroyed != null)
+            out.add(0, DESTROY.create((Object) Arrays.copyOf(destroyed, count)));
+
+        if (!out.isEmpty())
+        {
+            Protocol.sendPackets(viewer.player, out);
+            out.clear();
+        }
+    }
+
+    /*
+     * Built once per tick, shared by every viewer.
+     */
+    private Collection<?> moves(VirtualEntity entity)
+    {
+        if (entity.moveCache == null)
+            entity.moveCache = entity.movePackets();
+        return entity.moveCache;
+    }
+
+    private Collection<?> updates(VirtualEntity entity)
+    {
+        if (entity.updateCache == null)
+            entity.updateCache = entity.updatePackets();
+        return entity.updateCache;
+    }
+
+    void moved(VirtualEntity entity, World previous)
+    {
+        long cell = key(cell(entity.getX()), cell(entity.getZ()));
+        if (previous != entity.getWorld() || cell != entity.cell)
+        {
+            unindex(entity, previous);
+            index(entity);
+        }
+        markDirty(entity);
+    }
+
+    /*
+     * Called by VirtualEntity#teleport and VirtualEntity#markUpdated.
+     */
+    void markDirty(VirtualEntity entity)
+    {
+        if (!entity.queued)
+        {
+            entity.queued = true;
+            dirty.add(entity);
+        }
+    }
+
+    private void index(VirtualEntity entity)
+    {
+        entity.cell = key(cell(entity.getX()), cell(entity.getZ()));
+        grid.computeIfAbsent(entity.getWorld(), world -> new LongObjectHashMap<>())
+            .computeIfAbsent(entity.cell, cell -> new ArrayList<>())
+            .add(entity);
+    }
+
+    private void unindex(VirtualEntity entity, World world)
+    {
+        LongObjectHashMap<List<VirtualEntity>> cells = grid.get(world);
+        if (cells == null)
+            return;
+
+        List<VirtualEntity> bucket = cells.get(entity.cell);
+        if (bucket != null && bucket.remove(entity) && bucket.isEmpty())
+            cells.remove(entity.cell);
+    }
+
+    private int cell(double coordinate)
+    {
+        return (int) Math.floor(coordinate / range);
+    }
+
+    private static long key(int x, int z)
+    {
+        return (long) x << 32 | z & 0xFFFFFFFFL;
+    }
+
+    private static Object destroyPacket(Collection<Integer> ids)
+    {
+        int[] array = new int[ids.size()];
+        int   i     = 0;
+        for (int id : ids)
+            array[i++] = id;
+        return DESTROY.create((Object) array);
+    }
+
+    /*
+     * The client dropped its entities: spawn them again on the next tick.
+     */
+    private void reset(Player player)
+    {
+        Viewer viewer = viewers.get(player.getUniqueId());
+        if (viewer != null)
+            viewer.visible.clear();
+    }
+
+    private final class ViewerResets implements Listener
+    {
+        @EventHandler(priority = EventPriority.MONITOR)
+        public void onRespawn(PlayerRespawnEvent event) {reset(event.getPlayer());}
+
+        @EventHandler(priority = EventPriority.MONITOR)
+        public void onChangedWorld(PlayerChangedWorldEvent event) {reset(event.getPlayer());}
+    }
+
+    private static final class Viewer
+    {
+        private final IntObjectHashMap<VirtualEntity> visible = new IntObjectHashMap<>();
+        private final List<Object>                    out     = new ArrayList<>();
+        private       Player                          player;
+        private       int                             stamp;
+
+        private Viewer(Player player) {this.player = player;}
+    }
+}
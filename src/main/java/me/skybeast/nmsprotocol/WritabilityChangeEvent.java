@@ -0,0 +1,43 @@
+package me.skybeast.nmsprotocol;
+
+import org.bukkit.entity.Player;
+import org.bukkit.event.Event;
+import org.bukkit.event.HandlerList;
+
+import java.net.SocketAddress;
+
+/**
+ * Called from the event loop of a connection when its channel becomes writable or not writable.
+ */
+public class WritabilityChangeEvent extends Event
+{
+    private static final HandlerList HANDLERS = new HandlerList();
+    private final SocketAddress address;
+    private final boolean       writable;
+
+    WritabilityChangeEvent(SocketAddress address, boolean writable)
+    {
+        super(true);
+        this.address = address;
+        this.writable = writable;
+    }
+
+    @Override public HandlerList getHandlers() {return HANDLERS;}
+
+    public static HandlerList getHandlerList() {return HANDLERS;}
+
+    public boolean isWritable()                {return writable;}
+
+    public SocketAddress getAddress()          {return address;}
+
+    public Player getPlayer()                  {return Protocol.getPlayer(address);}
+
+    @Override public String toString()
+    {
+        return getClass().getSimpleName() +
+               '{' +
+               "address=" + address +
+               ", writable=" + writable +
+               '}';
+    }
+}
@@ -0,0 +1,152 @@
+package me.skybeast.nmsprotocol;
+
+import me.skybeast.nmsprotocol.NMSReflection.FieldAccessor;
+import me.skybeast.nmsprotocol.NMSReflection.NMSReflectionException;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.util.List;
+import java.util.concurrent.AbstractExecutorService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Java 21 implementation of the version-dependent parts of the library: {@link VarHandle} field accessors, and
+ * virtual threads for the async packet listeners.
+ *
+ * @author SkyBeast
+ */
+final class Platform
+{
+    private static final int             MAX_TASKS = Math.max(2, Runtime.getRuntime().availableProcessors()) + 65536;
+    private static final ExecutorService ASYNC     = new BoundedExecutor(Executors.newVirtualThreadPerTaskExecutor());
+
+    private Platform() {}
+
+    /*
+     * VarHandle-backed. Final fields have read-only handles: they are still written through the Field.
+     */
+    static <T> FieldAccessor<T> fieldAccessor(Field field)
+    {
+        try
+        {
+            MethodHandles.Lookup lookup = MethodHandles.privateLookupIn(field.getDeclaringClass(),
+                                                                        MethodHandles.lookup());
+            return new VarHandleAccessor<>(field, lookup.unreflectVarHandle(field));
+        }
+        catch (IllegalAccessException e)
+        {
+            return () -> field; //Not open to us, keep reflection
+        }
+    }
+
+    /*
+     * Runs the async packet listeners.
+     */
+    static ExecutorService asyncExecutor()
+    {
+        return ASYNC;
+    }
+
+    /*
+     * One virtual thread per task, and as many tasks in flight as the Java 8 pool holds (its threads and its queue).
+     * Beyond that, execute throws RejectedExecutionException: the dispatcher drops the task.
+     */
+    private static final class BoundedExecutor extends AbstractExecutorService
+    {
+        private final ExecutorService delegate;
+        private final Semaphore       permits = new Semaphore(MAX_TASKS);
+
+        private BoundedExecutor(ExecutorService delegate) {this.delegate = delegate;}
+
+        @Override
+        public void execute(Runnable task)
+        {
+            if (!permits.tryAcquire())
+                throw new RejectedExecutionException("Too many async tasks in flight");
+
+            try
+            {
+                delegate.execute(() -> {
+                    try
+                    {
+                        task.run();
+                    }
+                    finally
+                    {
+                        permits.release();
+                    }
+                });
+            }
+            catch (RejectedExecutionException e)
+            {
+                permits.release();
+                throw e;
+            }
+        }
+
+        @Override public void shutdown()                {delegate.shutdown();}
+
+        @Override public List<Runnable> shutdownNow()   {return delegate.shutdownNow();}
+
+        @Override public boolean isShutdown()           {return delegate.isShutdown();}
+
+        @Override public boolean isTerminated()         {return delegate.isTerminated();}
+
+        @Override
+        public boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException
+        {
+            return delegate.awaitTermination(timeout, unit);
+        }
+    }
+
+    private static final class VarHandleAccessor<T> implements FieldAccessor<T>
+    {
+        private final Field     field;
+        private final VarHandle handle;
+        private final boolean   isStatic;
+        private final boolean   isFinal;
+
+        private VarHandleAccessor(Field field, VarHandle handle)
+        {
+            this.field = field;
+            this.handle = handle;
+            isStatic = Modifier.isStatic(field.getModifiers());
+            isFinal = Modifier.isFinal(field.getModifiers());
+        }
+
+        @Override public Field get() {return field;}
+
+        @Override
+        @SuppressWarnings("unchecked")
+        public T get(Object instance)
+        {
+            return (T) (isStatic ? handle.get() : handle.get(instance));
+        }
+
+        @Override
+        public void set(Object instance, T value)
+        {
+            if (isFinal)
+            {
+                try
+                {
+                    field.set(instance, value);
+                }
+                catch (ReflectiveOperationException e)
+                {
+                    throw new NMSReflectionException(e);
+                }
+            }
+            else if (isStatic)
+                handle.set(value);
+            else
+                handle.set(instance, value);
+        }
+    }
+}
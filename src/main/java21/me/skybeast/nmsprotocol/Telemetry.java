@@ -0,0 +1,192 @@
+package me.skybeast.nmsprotocol;
+
+import jdk.jfr.*;
+
+import java.net.SocketAddress;
+
+/**
+ * Java 21 implementation of the Java Flight Recorder events of the library.
+ * <p>
+ * Each method checks whether its event type is enabled in a running recording before allocating anything, so the
+ * events cost a volatile read when JFR is off. Packet dispatches are only committed above their threshold (1 ms by
+ * default, see <code>nmsprotocol.PacketDispatch#threshold</code> in the recording settings).
+ *
+ * @author SkyBeast
+ */
+final class Telemetry
+{
+    private static final EventType DISPATCH   = EventType.getEventType(DispatchEvent.class);
+    private static final EventType CANCEL     = EventType.getEventType(CancelEvent.class);
+    private static final EventType INJECTION  = EventType.getEventType(InjectionEvent.class);
+    private static final EventType RESOLUTION = EventType.getEventType(ResolutionEvent.class);
+
+    private Telemetry() {}
+
+    /*
+     * Return a token for endDispatch, or null if the event is disabled.
+     */
+    static Object beginDispatch()
+    {
+        if (!DISPATCH.isEnabled())
+            return null;
+
+        DispatchEvent event = new DispatchEvent();
+        event.begin();
+        return event;
+    }
+
+    static void endDispatch(Object token, Object packet, boolean incoming, boolean cancelled)
+    {
+        if (token == null)
+            return;
+
+        DispatchEvent event = (DispatchEvent) token;
+        event.end();
+        if (event.shouldCommit())
+        {
+            event.packet = packet.getClass();
+            event.incoming = incoming;
+            event.cancelled = cancelled;
+            event.commit();
+        }
+    }
+
+    /*
+     * A packet was cancelled, by a filter or by a listener.
+     */
+    static void cancelled(Object packet, boolean incoming, SocketAddress address, boolean filtered)
+    {
+        if (!CANCEL.isEnabled())
+            return;
+
+        CancelEvent event = new CancelEvent();
+        event.packet = packet.getClass();
+        event.incoming = incoming;
+        event.address = String.valueOf(address);
+        event.cause = filtered ? "filter" : "listener";
+        event.commit();
+    }
+
+    static Object beginInjection()
+    {
+        if (!INJECTION.isEnabled())
+            return null;
+
+        InjectionEvent event = new InjectionEvent();
+        event.begin();
+        return event;
+    }
+
+    /*
+     * Action is "inject", "clean" or "connection".
+     */
+    static void endInjection(Object token, String action, SocketAddress address, int connections)
+    {
+        if (token == null)
+            return;
+
+        InjectionEvent event = (InjectionEvent) token;
+        event.end();
+        event.action = action;
+        event.address = address == null ? null : address.toString();
+        event.connections = connections;
+        event.commit();
+    }
+
+    static Object beginResolution()
+    {
+        if (!RESOLUTION.isEnabled())
+            return null;
+
+        ResolutionEvent event = new ResolutionEvent();
+        event.begin();
+        return event;
+    }
+
+    /*
+     * Kind is "class", "field", "method" or "constructor".
+     */
+    static void endResolution(Object token, String kind, Class<?> owner, String member)
+    {
+        if (token == null)
+            return;
+
+        ResolutionEvent event = (ResolutionEvent) token;
+        event.end();
+        event.kind = kind;
+        event.owner = owner;
+        event.member = member;
+        event.commit();
+    }
+
+    @Name("nmsprotocol.PacketDispatch")
+    @Label("Packet Dispatch")
+    @Description("A packet went through the filters, listeners and rewriters")
+    @Category({"NMSProtocol", "Packets"})
+    @Threshold("1 ms")
+    @StackTrace(false)
+    private static final class DispatchEvent extends Event
+    {
+        @Label("Packet")
+        private Class<?> packet;
+
+        @Label("Incoming")
+        private boolean incoming;
+
+        @Label("Cancelled")
+        private boolean cancelled;
+    }
+
+    @Name("nmsprotocol.PacketCancel")
+    @Label("Packet Cancel")
+    @Description("A packet was cancelled by a filter or a listener")
+    @Category({"NMSProtocol", "Packets"})
+    @StackTrace(false)
+    private static final class CancelEvent extends Event
+    {
+        @Label("Packet")
+        private Class<?> packet;
+
+        @Label("Incoming")
+        private boolean incoming;
+
+        @Label("Address")
+        private String address;
+
+        @Label("Cause")
+        private String cause;
+    }
+
+    @Name("nmsprotocol.Injection")
+    @Label("Injection")
+    @Description("The packet handlers were injected in, or removed from, the Netty pipelines")
+    @Category("NMSProtocol")
+    @StackTrace(false)
+    private static final class InjectionEvent extends Event
+    {
+        @Label("Action")
+        private String action;
+
+        @Label("Address")
+        private String address;
+
+        @Label("Connections")
+        private int connections;
+    }
+
+    @Name("nmsprotocol.Resolution")
+    @Label("Reflection Resolution")
+    @Description("A class or member was looked up by reflection")
+    @Category("NMSProtocol")
+    private static final class ResolutionEvent extends Event
+    {
+        @Label("Kind")
+        private String kind;
+
+        @Label("Owner")
+        private Class<?> owner;
+
+        @Label("Member")
+        private String member;
+    }
+}
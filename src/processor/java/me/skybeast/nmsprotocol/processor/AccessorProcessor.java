@@ -0,0 +1,607 @@
+package me.skybeast.nmsprotocol.processor;
+
+import javax.annotation.processing.*;
+import javax.lang.model.SourceVersion;
+import javax.lang.model.element.*;
+import javax.lang.model.type.TypeKind;
+import javax.lang.model.type.TypeMirror;
+import javax.lang.model.util.ElementFilter;
+import javax.tools.Diagnostic.Kind;
+import java.io.File;
+import java.io.IOException;
+import java.io.Writer;
+import java.lang.reflect.Array;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Field;
+import java.lang.reflect.Member;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.util.*;
+
+import static javax.lang.model.element.Modifier.ABSTRACT;
+import static javax.lang.model.element.Modifier.DEFAULT;
+import static javax.lang.model.element.Modifier.PRIVATE;
+
+/**
+ * Generate the implementations of the <code>@NMSAccessor</code> interfaces for the server jars given by the
+ * <code>-Anmsprotocol.server=&lt;jar&gt;[:&lt;jar&gt;...]</code> option.
+ * <p>
+ * Every member is resolved in the jar with the same rules as <code>NMSAccessors</code> at runtime, so that a typo or a
+ * member missing from a version fails the build. Public members of classes on the compile classpath are accessed
+ * directly, the others through constant method handles. Without the option, nothing is generated and the accessors
+ * fall back to reflection.
+ * <p>
+ * The processor only knows the annotations by name: it does not depend on the library.
+ *
+ * @author SkyBeast
+ */
+@SupportedAnnotationTypes(AccessorProcessor.ACCESSOR)
+@SupportedOptions(AccessorProcessor.SERVER_OPTION)
+public final class AccessorProcessor extends AbstractProcessor
+{
+    static final String ACCESSOR      = "me.skybeast.nmsprotocol.NMSAccessor";
+    static final String SERVER_OPTION = "nmsprotocol.server";
+
+    private static final String FIELD       = "me.skybeast.nmsprotocol.NMSField";
+    private static final String METHOD      = "me.skybeast.nmsprotocol.NMSMethod";
+    private static final String CONSTRUCTOR = "me.skybeast.nmsprotocol.NMSConstructor";
+
+    private final List<ServerJar> servers = new ArrayList<>();
+
+    @Override
+    public SourceVersion getSupportedSourceVersion() {return SourceVersion.latestSupported();}
+
+    @Override
+    public synchronized void init(ProcessingEnvironment env)
+    {
+        super.init(env);
+        String option = env.getOptions().get(SERVER_OPTION);
+        if (option == null)
+        {
+            env.getMessager().printMessage(Kind.NOTE, "No -A" + SERVER_OPTION + ", NMS accessors are resolved at"
+                                                      + " runtime");
+            return;
+        }
+
+        for (String path : option.split(File.pathSeparator))
+        {
+            if (path.isEmpty())
+                continue;
+
+            try
+            {
+                servers.add(new ServerJar(new File(path)));
+            }
+            catch (IOException | IllegalArgumentException e)
+            {
+                env.getMessager().printMessage(Kind.ERROR, "Cannot read the server jar " + path + ": " + e);
+            }
+        }
+    }
+
+    @Override
+    public boolean process(Set<? extends TypeElement> annotations, RoundEnvironment round)
+    {
+        for (TypeElement annotation : annotations)
+            for (Element element : round.getElementsAnnotatedWith(annotation))
+            {
+                if (element.getKind() != ElementKind.INTERFACE || element.getModifiers().contains(PRIVATE))
+                {
+                    error(element, "@NMSAccessor must annotate a non-private interface");
+                    continue;
+                }
+
+                TypeElement accessor = (TypeElement) element;
+                if (checkAnnotations(accessor))
+                    for (ServerJar server : servers)
+                        generate(accessor, server);
+            }
+
+        if (round.processingOver())
+        {
+            for (ServerJar server : servers)
+                server.close(); //Do not keep the jar open in the Gradle daemon
+            servers.clear();
+        }
+        return true;
+    }
+
+    /*
+     * Every abstract method has exactly one member annotation. Default methods are rejected: the reflective fallback
+     * could not call them.
+     */
+    private boolean checkAnnotations(TypeElement accessor)
+    {
+        boolean valid = true;
+        for (ExecutableElement method : ElementFilter.methodsIn(
+                processingEnv.getElementUtils().getAllMembers(accessor)))
+            if (method.getModifiers().contains(DEFAULT))
+            {
+                error(method, "An accessor cannot have default methods");
+                valid = false;
+            }
+
+        for (ExecutableElement method : abstractMethods(accessor))
+        {
+            int count = 0;
+            for (String name : new String[]{FIELD, METHOD, CONSTRUCTOR})
+                if (mirror(method, name) != null)
+                    count++;
+
+            if (count != 1)
+            {
+                error(method, "An accessor method needs exactly one of @NMSField, @NMSMethod and @NMSConstructor");
+                valid = false;
+            }
+        }
+        return valid;
+    }
+
+    private void generate(TypeElement accessor, ServerJar server)
+    {
+        String   targetName = server.resolve((String) value(mirror(accessor, ACCESSOR), "value"));
+        Class<?> target     = server.load(targetName);
+        if (target == null)
+        {
+            error(accessor, "Cannot find " + targetName + " in " + server);
+            return;
+        }
+
+        Generator generator = new Generator(accessor, server);
+        boolean   valid     = true;
+        for (ExecutableElement method : abstractMethods(accessor))
+            valid &= generator.implement(method, target);
+
+        if (valid)
+            generator.write();
+    }
+
+    private List<ExecutableElement> abstractMethods(TypeElement accessor)
+    {
+        List<ExecutableElement> methods = new ArrayList<>();
+        for (ExecutableElement method : ElementFilter.methodsIn(
+                processingEnv.getElementUtils().getAllMembers(accessor)))
+            if (method.getModifiers().contains(ABSTRACT))
+                methods.add(method);
+        return methods;
+    }
+
+    private AnnotationMirror mirror(Element element, String annotation)
+    {
+        for (AnnotationMirror mirror : element.getAnnotationMirrors())
+            if (((TypeElement) mirror.getAnnotationType().asElement()).getQualifiedName().contentEquals(annotation))
+                return mirror;
+        return null;
+    }
+
+    /*
+     * Strings and ints as is, arrays as String[].
+     */
+    private Object value(AnnotationMirror mirror, String name)
+    {
+        for (Map.Entry<? extends ExecutableElement, ? extends AnnotationValue> entry
+                : processingEnv.getElementUtils().getElementValuesWithDefaults(mirror).entrySet())
+            if (entry.getKey().getSimpleName().contentEquals(name))
+            {
+                Object value = entry.getValue().getValue();
+                if (!(value instanceof List))
+                    return value;
+
+                List<?>  values  = (List<?>) value;
+                String[] strings = new String[values.size()];
+                for (int i = 0; i < strings.length; i++)
+                    strings[i] = (String) ((AnnotationValue) values.get(i)).getValue();
+                return strings;
+            }
+        throw new IllegalStateException("No " + name + " in " + mirror);
+    }
+
+    private void error(Element element, String message)
+    {
+        processingEnv.getMessager().printMessage(Kind.ERROR, message, element);
+    }
+
+    /**
+     * The source of one implementation.
+     */
+    private final class Generator
+    {
+        private final TypeElement   accessor;
+        private final ServerJar     server;
+        private final StringBuilder handles = new StringBuilder();
+        private final StringBuilder init    = new StringBuilder();
+        private final StringBuilder methods = new StringBuilder();
+        private       int           count;
+
+        private Generator(TypeElement accessor, ServerJar server)
+        {
+            this.accessor = accessor;
+            this.server = server;
+        }
+
+        private boolean implement(ExecutableElement method, Class<?> target)
+        {
+            try
+            {
+                AnnotationMirror field       = mirror(method, FIELD);
+                AnnotationMirror call        = mirror(method, METHOD);
+                int              arity       = method.getParameters().size();
+                String           returnType  = erasure(method.getReturnType());
+                boolean          returnsVoid = method.getReturnType().getKind() == TypeKind.VOID;
+                String           body;
+
+                if (field != null)
+                    body = field(method, target, field, arity, returnType, returnsVoid);
+                else if (call != null)
+                    body = call(method, target, call, arity, returnType, returnsVoid);
+                else
+                    body = construct(method, target, arity, returnType, returnsVoid);
+
+                methods.append("\n    @Override\n    public ").append(returnType).append(' ')
+                       .append(method.getSimpleName()).append('(');
+                for (int i = 0; i < arity; i++)
+                    methods.append(i == 0 ? "" : ", ").append(erasure(method.getParameters().get(i).asType()))
+                           .append(" a").append(i);
+                methods.append(")\n    {\n").append(body).append("    }\n");
+                return true;
+            }
+            catch (ResolutionException e)
+            {
+                error(method, e.getMessage() + " (" + server + ')');
+                return false;
+            }
+        }
+
+        private String field(ExecutableElement method, Class<?> target, AnnotationMirror annotation, int arity,
+                             String returnType, boolean returnsVoid)
+        {
+            String name  = (String) value(annotation, "value");
+            Field  field = name.isEmpty()
+                           ? countFieldOfType(target, type((String) value(annotation, "type")),
+                                              (Integer) value(annotation, "index"))
+                           : findField(target, name);
+
+            boolean isStatic    = Modifier.isStatic(field.getModifiers());
+            int     getterArity = isStatic ? 0 : 1;
+            boolean setter      = returnsVoid && arity == getterArity + 1;
+            if (!setter && arity != getterArity)
+                throw new ResolutionException(method.getSimpleName() + " does not take the arguments of " + field);
+            if (setter && isStatic && Modifier.isFinal(field.getModifiers()))
+                throw new ResolutionException(field + " is static final");
+
+            boolean direct = isVisible(field) && isVisible(field.getDeclaringClass())
+                             && !(setter && (Modifier.isFinal(field.getModifiers()) || !isVisible(field.getType())));
+            if (direct)
+            {
+                String access = (isStatic ? canonical(field.getDeclaringClass())
+                                          : "((" + canonical(field.getDeclaringClass()) + ") a0)")
+                                + '.' + field.getName();
+                return setter ? "        " + access + " = (" + canonical(field.getType()) + ") a" + getterArity
+                                + ";\n"
+                              : "        return " + cast(returnType, access) + ";\n";
+            }
+
+            String handle = handle();
+            init.append("            java.lang.reflect.Field ").append(handle.toLowerCase()).append(" = ")
+                .append(typeExpression(field.getDeclaringClass())).append(".getDeclaredField(\"")
+                .append(field.getName()).append("\");\n");
+            unreflect(handle, setter ? "unreflectSetter" : "unreflectGetter");
+            return invoke(handle, arity, returnType, returnsVoid);
+        }
+
+        private String call(ExecutableElement method, Class<?> target, AnnotationMirror annotation, int arity,
+                            String returnType, boolean returnsVoid)
+        {
+            String   name   = (String) value(annotation, "value");
+            String[] params = (String[]) value(annotation, "params");
+            Method   found  = params.length == 0 ? findMethod(target, name, arity)
+                                                 : findMethod(target, name, types(params));
+
+            boolean isStatic = Modifier.isStatic(found.getModifiers());
+            if (found.getParameterCount() + (isStatic ? 0 : 1) != arity)
+                throw new ResolutionException(method.getSimpleName() + " does not take the arguments of " + found);
+            if (!returnsVoid && found.getReturnType() == void.class)
+                throw new ResolutionException(found + " returns void");
+
+            if (isVisible(found) && isVisible(found.getDeclaringClass()) && areVisible(found.getParameterTypes()))
+            {
+                String call = (isStatic ? canonical(found.getDeclaringClass())
+                                        : "((" + canonical(found.getDeclaringClass()) + ") a0)")
+                              + '.' + found.getName() + '(' + arguments(found.getParameterTypes(), isStatic ? 0 : 1)
+                              + ')';
+                return guard(returnsVoid ? call + ';' : "return " + cast(returnType, call) + ';',
+                             found.getExceptionTypes().length > 0);
+            }
+
+            String handle = handle();
+            init.append("            java.lang.reflect.Method ").append(handle.toLowerCase()).append(" = ")
+                .append(typeExpression(found.getDeclaringClass())).append(".getDeclaredMethod(\"")
+                .append(found.getName()).append('"').append(typeExpressions(found.getParameterTypes()))
+                .append(");\n");
+            unreflect(handle, "unreflect");
+            return invoke(handle, arity, returnType, returnsVoid);
+        }
+
+        private String construct(ExecutableElement method, Class<?> target, int arity, String returnType,
+                                 boolean returnsVoid)
+        {
+            String[]       params = (String[]) value(mirror(method, CONSTRUCTOR), "params");
+            Constructor<?> found  = params.length == 0 ? findConstructor(target, arity)
+                                                       : findConstructor(target, types(params));
+
+            if (found.getParameterCount() != arity)
+                throw new ResolutionException(method.getSimpleName() + " does not take the arguments of " + found);
+            if (returnsVoid)
+                throw new ResolutionException(method.getSimpleName() + " must return the new instance");
+
+            if (isVisible(found) && isVisible(target) && !Modifier.isAbstract(target.getModifiers())
+                && areVisible(found.getParameterTypes()))
+            {
+                String call = "new " + canonical(target) + '(' + arguments(found.getParameterTypes(), 0) + ')';
+                return guard("return " + cast(returnType, call) + ';', found.getExceptionTypes().length > 0);
+            }
+
+            String handle = handle();
+            init.append("            java.lang.reflect.Constructor<?> ").append(handle.toLowerCase()).append(" = ")
+                .append(typeExpression(target)).append(".getDeclaredConstructor(")
+                .append(typeExpressions(found.getParameterTypes()).replaceFirst("^, ", "")).append(");\n");
+            unreflect(handle, "unreflectConstructor");
+            return invoke(handle, arity, returnType, returnsVoid);
+        }
+
+        private String handle()
+        {
+            String handle = "H" + count++;
+            handles.append("    private static final java.lang.invoke.MethodHandle ").append(handle).append(";\n");
+            return handle;
+        }
+
+        private void unreflect(String handle, String unreflect)
+        {
+            String member = handle.toLowerCase();
+            init.append("            ").append(member).append(".setAccessible(true);\n")
+                .append("            ").append(handle).append(" = lookup.").append(unreflect).append('(')
+                .append(member).append(");\n");
+        }
+
+        /*
+         * invoke() adapts the arguments and the result to the types of the accessor method.
+         */
+        private String invoke(String handle, int arity, String returnType, boolean returnsVoid)
+        {
+            StringBuilder call = new StringBuilder(handle).append(".invoke(");
+            for (int i = 0; i < arity; i++)
+                call.append(i == 0 ? "" : ", ").append('a').append(i);
+            call.append(')');
+            return guard(returnsVoid ? call + ";" : "return (" + returnType + ") " + call + ';', true);
+        }
+
+        private String guard(String statement, boolean checked)
+        {
+            if (!checked)
+                return "        " + statement + '\n';
+
+            return "        try\n"
+                   + "        {\n"
+                   + "            " + statement + '\n'
+                   + "        }\n"
+                   + "        catch (RuntimeException | Error e)\n"
+                   + "        {\n"
+                   + "            throw e;\n"
+                   + "        }\n"
+                   + "        catch (Throwable e)\n"
+                   + "        {\n"
+                   + "            throw new java.lang.reflect.UndeclaredThrowableException(e);\n"
+                   + "        }\n";
+        }
+
+        private String arguments(Class<?>[] types, int offset)
+        {
+            StringBuilder arguments = new StringBuilder();
+            for (int i = 0; i < types.length; i++)
+                arguments.append(i == 0 ? "" : ", ").append('(').append(canonical(types[i])).append(") a")
+                         .append(i + offset);
+            return arguments.toString();
+        }
+
+        private String typeExpressions(Class<?>[] types)
+        {
+            StringBuilder expressions = new StringBuilder();
+            for (Class<?> type : types)
+                expressions.append(", ").append(typeExpression(type));
+            return expressions.toString();
+        }
+
+        /*
+         * Class literals for the types javac can see, names otherwise.
+         */
+        private String typeExpression(Class<?> type)
+        {
+            return type.isPrimitive() || isVisible(type) ? canonical(type) + ".class"
+                                                         : "Class.forName(\"" + type.getName() + "\")";
+        }
+
+        private void write()
+        {
+            String pkg    = processingEnv.getElementUtils().getPackageOf(accessor).getQualifiedName().toString();
+            String flat   = processingEnv.getElementUtils().getBinaryName(accessor).toString().replace('$', '_')
+                            + '_' + server.version;
+            String simple = pkg.isEmpty() ? flat : flat.substring(pkg.length() + 1);
+
+            StringBuilder source = new StringBuilder();
+            if (!pkg.isEmpty())
+                source.append("package ").append(pkg).append(";\n\n");
+            source.append("/**\n * {@link ").append(accessor.getQualifiedName()).append("} for ")
+                  .append(server.version).append(", generated by the NMSProtocol accessor processor.\n */\n")
+                  .append("@SuppressWarnings({\"unchecked\", \"rawtypes\"})\n")
+                  .append("final class ").append(simple).append(" implements ").append(accessor.getQualifiedName())
+                  .append("\n{\n").append(handles);
+            if (init.length() > 0)
+                source.append("\n    static\n    {\n")
+                      .append("        java.lang.invoke.MethodHandles.Lookup lookup = java.lang.invoke.MethodHandles"
+                              + ".lookup();\n")
+                      .append("        try\n        {\n").append(init).append("        }\n")
+                      .append("        catch (ReflectiveOperationException e)\n        {\n")
+                      .append("            throw new ExceptionInInitializerError(e);\n        }\n    }\n");
+            source.append(methods).append("}\n");
+
+            try (Writer writer = processingEnv.getFiler().createSourceFile(flat, accessor).openWriter())
+            {
+                writer.write(source.toString());
+            }
+            catch (IOException e)
+            {
+                error(accessor, "Cannot write " + flat + ": " + e);
+            }
+        }
+
+        /*
+         * Casting through Object boxes primitives, and lets any reference be cast.
+         */
+        private String cast(String type, String expression)
+        {
+            if (type.equals("java.lang.Object"))
+                return expression;
+            if (isPrimitiveName(type))
+                return '(' + type + ") " + expression;
+            return '(' + type + ") (Object) " + expression;
+        }
+
+        private Class<?>[] types(String[] names)
+        {
+            Class<?>[] types = new Class<?>[names.length];
+            for (int i = 0; i < names.length; i++)
+                types[i] = type(names[i]);
+            return types;
+        }
+
+        private Class<?> type(String name)
+        {
+            if (name.endsWith("[]"))
+                return Array.newInstance(type(name.substring(0, name.length() - 2)), 0).getClass();
+
+            Class<?> primitive = ServerJar.PRIMITIVES.get(name);
+            if (primitive != null)
+                return primitive;
+
+            Class<?> type = server.load(server.resolve(name));
+            if (type == null)
+                throw new ResolutionException("Cannot find " + server.resolve(name));
+            return type;
+        }
+
+        private boolean areVisible(Class<?>[] types)
+        {
+            for (Class<?> type : types)
+                if (!isVisible(type))
+                    return false;
+            return true;
+        }
+
+        /*
+         * Public, and on the compile classpath.
+         */
+        private boolean isVisible(Class<?> type)
+        {
+            if (type.isPrimitive())
+                return true;
+            if (type.isArray())
+                return isVisible(type.getComponentType());
+
+            for (Class<?> enclosing = type; enclosing != null; enclosing = enclosing.getEnclosingClass())
+                if (!Modifier.isPublic(enclosing.getModifiers()))
+                    return false;
+            return processingEnv.getElementUtils().getTypeElement(type.getCanonicalName()) != null;
+        }
+
+        private boolean isVisible(Member member) {return Modifier.isPublic(member.getModifiers());}
+
+        private String erasure(TypeMirror type)
+        {
+            return processingEnv.getTypeUtils().erasure(type).toString();
+        }
+    }
+
+    /*
+     * Same searches as NMSReflection.
+     */
+    private static Field findField(Class<?> target, String name)
+    {
+        for (Class<?> search = target; search != null; search = search.getSuperclass())
+            for (Field field : search.getDeclaredFields())
+                if (field.getName().equals(name))
+                    return field;
+        throw new ResolutionException("Cannot find field " + name + " in " + target.getName());
+    }
+
+    private static Field countFieldOfType(Class<?> target, Class<?> type, int index)
+    {
+        for (Class<?> search = target; search != null; search = search.getSuperclass())
+        {
+            int i = 0;
+            for (Field field : search.getDeclaredFields())
+                if (field.getType() == type && i++ == index)
+                    return field;
+        }
+        throw new ResolutionException("Cannot find a field with type " + type.getName() + " in " + target.getName());
+    }
+
+    private static Method findMethod(Class<?> target, String name, Class<?>[] params)
+    {
+        for (Class<?> search = target; search != null; search = search.getSuperclass())
+            for (Method method : search.getDeclaredMethods())
+                if (method.getName().equals(name) && Arrays.equals(params, method.getParameterTypes()))
+                    return method;
+        throw new ResolutionException("Cannot find method " + name + Arrays.toString(params) + " in "
+                                      + target.getName());
+    }
+
+    private static Method findMethod(Class<?> target, String name, int arity)
+    {
+        List<Method> found = new ArrayList<>();
+        for (Class<?> search = target; search != null; search = search.getSuperclass())
+            for (Method method : search.getDeclaredMethods())
+                if (method.getName().equals(name) && !method.isBridge() && !method.isSynthetic()
+                    && method.getParameterCount() + (Modifier.isStatic(method.getModifiers()) ? 0 : 1) == arity)
+                    found.add(method);
+
+        if (found.size() != 1)
+            throw new ResolutionException(found.size() + " methods " + name + " with " + arity + " arguments in "
+                                          + target.getName() + ", declare their parameters");
+        return found.get(0);
+    }
+
+    private static Constructor<?> findConstructor(Class<?> target, Class<?>[] params)
+    {
+        for (Constructor<?> constructor : target.getDeclaredConstructors())
+            if (Arrays.equals(params, constructor.getParameterTypes()))
+                return constructor;
+        throw new ResolutionException("Cannot find constructor " + Arrays.toString(params) + " in "
+                                      + target.getName());
+    }
+
+    private static Constructor<?> findConstructor(Class<?> target, int arity)
+    {
+        List<Constructor<?>> found = new ArrayList<>();
+        for (Constructor<?> constructor : target.getDeclaredConstructors())
+            if (constructor.getParameterCount() == arity)
+                found.add(constructor);
+
+        if (found.size() != 1)
+            throw new ResolutionException(found.size() + " constructors with " + arity + " arguments in "
+                                          + target.getName() + ", declare their parameters");
+        return found.get(0);
+    }
+
+    private static String canonical(Class<?> type) {return type.getCanonicalName();}
+
+    private static boolean isPrimitiveName(String name) {return ServerJar.PRIMITIVES.containsKey(name);}
+
+    /**
+     * A member missing or not matching its accessor method.
+     */
+    private static final class ResolutionException extends RuntimeException
+    {
+        private ResolutionException(String message) {super(message);}
+    }
+}
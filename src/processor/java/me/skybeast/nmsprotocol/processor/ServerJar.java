@@ -0,0 +1,98 @@
+package me.skybeast.nmsprotocol.processor;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.jar.JarEntry;
+import java.util.jar.JarFile;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * A server jar read by the processor. Its classes are loaded in an isolated class loader, without being initialized.
+ *
+ * @author SkyBeast
+ */
+final class ServerJar implements Closeable
+{
+    static final Map<String, Class<?>> PRIMITIVES = new HashMap<>();
+
+    private static final Pattern CRAFTBUKKIT = Pattern.compile("org/bukkit/craftbukkit/(v\\d+_\\d+_R\\d+)/");
+
+    static
+    {
+        for (Class<?> primitive : new Class<?>[]{boolean.class, byte.class, short.class, char.class, int.class,
+                                                 long.class, float.class, double.class})
+            PRIMITIVES.put(primitive.getName(), primitive);
+    }
+
+    final         String         version;
+    private final File           file;
+    private final URLClassLoader loader;
+
+    ServerJar(File file) throws IOException
+    {
+        this.file = file;
+        version = findVersion(file);
+        loader = new URLClassLoader(new URL[]{file.toURI().toURL()},
+                                    ClassLoader.getSystemClassLoader().getParent()); //JDK classes only
+    }
+
+    /*
+     * Same placeholders as NMSReflection.getClass.
+     */
+    String resolve(String name)
+    {
+        return name.replace("{nms}", "net.minecraft.server." + version)
+                   .replace("{cb}", "org.bukkit.craftbukkit." + version)
+                   .replace("{version}", version);
+    }
+
+    /*
+     * Return null if the class is missing, or cannot be linked.
+     */
+    Class<?> load(String name)
+    {
+        try
+        {
+            return Class.forName(name, false, loader);
+        }
+        catch (ClassNotFoundException | LinkageError e)
+        {
+            return null;
+        }
+    }
+
+    @Override
+    public void close()
+    {
+        try
+        {
+            loader.close();
+        }
+        catch (IOException ignored) {} //Only the jar file handle
+    }
+
+    private static String findVersion(File file) throws IOException
+    {
+        try (JarFile jar = new JarFile(file))
+        {
+            Enumeration<JarEntry> entries = jar.entries();
+            while (entries.hasMoreElements())
+            {
+                Matcher matcher = CRAFTBUKKIT.matcher(entries.nextElement().getName());
+                if (matcher.lookingAt())
+                    return matcher.group(1);
+            }
+        }
+        throw new IllegalArgumentException("not a CraftBukkit server jar");
+    }
+
+    @Override
+    public String toString() {return file.getName() + " (" + version + ')';}
+}